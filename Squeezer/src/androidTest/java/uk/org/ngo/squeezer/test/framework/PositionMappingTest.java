@@ -0,0 +1,115 @@
+package uk.org.ngo.squeezer.test.framework;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+
+import uk.org.ngo.squeezer.framework.PositionMapping;
+
+public class PositionMappingTest extends TestCase {
+
+    /**
+     * @return Where the items at each position before the change end up, e.g. [A, B, C] mapped
+     * by removing position 1 is [A, C].
+     */
+    private static String apply(PositionMapping mapping, String... items) {
+        String[] result = new String[mapping.getNewCount()];
+        for (int i = 0; i < items.length; i++) {
+            int newPosition = mapping.map(i);
+            if (newPosition >= 0 && newPosition < result.length) {
+                assertNull("Two items moved to " + newPosition, result[newPosition]);
+                result[newPosition] = items[i];
+            }
+        }
+        return Arrays.toString(result);
+    }
+
+    public void testRemove() {
+        PositionMapping mapping = PositionMapping.remove(1, 4);
+
+        assertEquals("[A, C, D]", apply(mapping, "A", "B", "C", "D"));
+        assertEquals(3, mapping.getNewCount());
+        assertEquals(1, mapping.getFirstChanged());
+    }
+
+    public void testRemoveLast() {
+        PositionMapping mapping = PositionMapping.remove(3, 4);
+
+        assertEquals("[A, B, C]", apply(mapping, "A", "B", "C", "D"));
+        assertEquals(3, mapping.getFirstChanged());
+    }
+
+    public void testMoveDown() {
+        PositionMapping mapping = PositionMapping.move(1, 3, 5);
+
+        assertEquals("[A, C, D, B, E]", apply(mapping, "A", "B", "C", "D", "E"));
+        assertEquals(5, mapping.getNewCount());
+        assertEquals(1, mapping.getFirstChanged());
+    }
+
+    public void testMoveUp() {
+        PositionMapping mapping = PositionMapping.move(3, 1, 5);
+
+        assertEquals("[A, D, B, C, E]", apply(mapping, "A", "B", "C", "D", "E"));
+        assertEquals(5, mapping.getNewCount());
+        assertEquals(1, mapping.getFirstChanged());
+    }
+
+    public void testMoveToEnd() {
+        PositionMapping mapping = PositionMapping.move(0, 4, 5);
+
+        assertEquals("[B, C, D, E, A]", apply(mapping, "A", "B", "C", "D", "E"));
+    }
+
+    public void testMoveToSamePosition() {
+        PositionMapping mapping = PositionMapping.move(2, 2, 5);
+
+        assertEquals("[A, B, C, D, E]", apply(mapping, "A", "B", "C", "D", "E"));
+    }
+
+    public void testInsert() {
+        PositionMapping mapping = PositionMapping.insert(1, 2, 4);
+
+        assertEquals("[A, null, null, B, C, D]", apply(mapping, "A", "B", "C", "D"));
+        assertEquals(6, mapping.getNewCount());
+        assertEquals(1, mapping.getFirstChanged());
+    }
+
+    public void testInsertAtEnd() {
+        PositionMapping mapping = PositionMapping.insert(Integer.MAX_VALUE, 2, 3);
+
+        assertEquals("[A, B, C, null, null]", apply(mapping, "A", "B", "C"));
+        assertEquals(5, mapping.getNewCount());
+        assertEquals(3, mapping.getFirstChanged());
+    }
+
+    public void testInvalidate() {
+        PositionMapping mapping = PositionMapping.invalidate(2, 4);
+
+        assertEquals("[A, B, null, null]", apply(mapping, "A", "B", "C", "D"));
+        assertEquals(4, mapping.getNewCount());
+        assertEquals(2, mapping.getFirstChanged());
+    }
+
+    /** Items added at the end of the list don't drop any of the items before them. */
+    public void testInvalidateAtEnd() {
+        PositionMapping mapping = PositionMapping.invalidate(4, 4);
+
+        assertEquals("[A, B, C, D]", apply(mapping, "A", "B", "C", "D"));
+        assertEquals(4, mapping.getFirstChanged());
+    }
+
+    public void testInvalidatePastEnd() {
+        PositionMapping mapping = PositionMapping.invalidate(10, 4);
+
+        assertEquals("[A, B, C, D]", apply(mapping, "A", "B", "C", "D"));
+        assertEquals(4, mapping.getFirstChanged());
+    }
+
+    public void testInvalidateAll() {
+        PositionMapping mapping = PositionMapping.invalidate(0, 3);
+
+        assertEquals("[null, null, null]", apply(mapping, "A", "B", "C"));
+        assertEquals(0, mapping.getFirstChanged());
+    }
+}
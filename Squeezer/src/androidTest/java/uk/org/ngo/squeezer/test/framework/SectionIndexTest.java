@@ -0,0 +1,77 @@
+package uk.org.ngo.squeezer.test.framework;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+
+import uk.org.ngo.squeezer.framework.SectionIndex;
+
+public class SectionIndexTest extends TestCase {
+
+    private static SectionIndex build(String... keys) {
+        SectionIndex.Builder builder = new SectionIndex.Builder();
+        for (String key : keys) {
+            builder.add(key);
+        }
+        return builder.build();
+    }
+
+    public void testEmpty() {
+        SectionIndex index = new SectionIndex.Builder().build();
+
+        assertEquals(0, index.size());
+        assertEquals(0, index.getPositionForSection(0));
+        assertEquals(0, index.getSectionForPosition(0));
+    }
+
+    public void testBuilder() {
+        SectionIndex.Builder builder = new SectionIndex.Builder();
+        for (String key : new String[]{"#", "A", "A", "B", "D", "D", "D"}) {
+            builder.add(key);
+        }
+        SectionIndex index = builder.build();
+
+        assertEquals(7, builder.getCount());
+        assertEquals(Arrays.asList("#", "A", "B", "D"), Arrays.asList(index.getSections()));
+        assertEquals(0, index.getPositionForSection(0));
+        assertEquals(1, index.getPositionForSection(1));
+        assertEquals(3, index.getPositionForSection(2));
+        assertEquals(4, index.getPositionForSection(3));
+    }
+
+    /** Sections follow the order of the list, even if a key comes back. */
+    public void testBuilderKeepsListOrder() {
+        SectionIndex index = build("B", "A", "B");
+
+        assertEquals(Arrays.asList("B", "A", "B"), Arrays.asList(index.getSections()));
+    }
+
+    public void testGetSectionForPosition() {
+        SectionIndex index = build("A", "A", "B", "D", "D", "D");
+
+        assertEquals(0, index.getSectionForPosition(0));
+        assertEquals(0, index.getSectionForPosition(1));
+        assertEquals(1, index.getSectionForPosition(2));
+        assertEquals(2, index.getSectionForPosition(3));
+        assertEquals(2, index.getSectionForPosition(5));
+        // Positions past the end are in the last section.
+        assertEquals(2, index.getSectionForPosition(100));
+        assertEquals(0, index.getSectionForPosition(-1));
+    }
+
+    public void testGetPositionForSectionClamps() {
+        SectionIndex index = build("A", "B", "B", "C");
+
+        assertEquals(0, index.getPositionForSection(-1));
+        assertEquals(3, index.getPositionForSection(3));
+        assertEquals(3, index.getPositionForSection(100));
+    }
+
+    public void testKeyFor() {
+        assertEquals("A", SectionIndex.keyFor("abba"));
+        assertEquals("Z", SectionIndex.keyFor("Zappa"));
+        assertEquals("#", SectionIndex.keyFor("10cc"));
+        assertEquals("#", SectionIndex.keyFor(""));
+        assertEquals("#", SectionIndex.keyFor(null));
+    }
+}
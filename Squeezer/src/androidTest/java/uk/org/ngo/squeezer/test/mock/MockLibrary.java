@@ -0,0 +1,332 @@
+package uk.org.ngo.squeezer.test.mock;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * A synthetic music library for {@link SqueezeboxServerMock}.
+ * <p/>
+ * The library is generated from a seed, so the same size and seed always give the same library.
+ * Only the structure (which tracks are on which album, by which artist, and so on) is kept in
+ * memory, in primitive arrays. Names are derived from IDs when they are asked for, so libraries
+ * of a few hundred thousand tracks fit comfortably in a test process.
+ * <p/>
+ * The distributions are meant to look like a real collection: a few artists have many albums
+ * and most have one or two, most albums have 8-16 tracks with some singles and EPs, about one
+ * album in twelve is a compilation with a different artist per track, genres are skewed towards
+ * a handful of popular ones, and some names have non-ASCII characters.
+ * <p/>
+ * IDs of tracks, albums, artists and genres start at 1, and are the index in to the arrays plus
+ * one.
+ */
+public class MockLibrary {
+
+    private static final String[] WORDS = {
+            "blue", "night", "river", "love", "song", "light", "dream", "road", "time", "home",
+            "rain", "fire", "heart", "shadow", "morning", "ocean", "city", "gold", "silver", "wind",
+            "summer", "winter", "stone", "glass", "paper", "moon", "sun", "desert", "garden",
+            "island", "electric", "quiet", "wild", "lost", "little", "last", "first", "broken",
+            "café", "señor", "über", "niño", "fjörd", "æther", "déjà vu", "naïve", "smörgås",
+    };
+
+    private static final String[] GENRES = {
+            "Rock", "Pop", "Jazz", "Classical", "Electronic", "Hip-Hop", "Folk", "Blues", "Soul",
+            "Country", "Reggae", "Metal", "Punk", "Ambient", "World", "Soundtrack", "Latin",
+            "R&B", "Funk", "Indie", "Alternative", "Gospel", "Opera", "Chanson", "Ska",
+    };
+
+    /** Artist ID of the "Various Artists" artist that compilations are credited to. */
+    public static final int VARIOUS_ARTISTS_ID = 1;
+
+    private final int[] trackAlbum;
+
+    private final int[] trackArtist;
+
+    private final int[] trackNum;
+
+    private final int[] trackDuration;
+
+    private final int[] albumArtist;
+
+    private final int[] albumYear;
+
+    private final int[] albumGenre;
+
+    private final boolean[] albumCompilation;
+
+    private final int[] albumFirstTrack;
+
+    private final int[] albumTrackCount;
+
+    private final int artistCount;
+
+    /** Album IDs in each sort order, created when first needed. */
+    private int[] albumsByName;
+
+    private int[] albumsByArtistYear;
+
+    private int[] artistsByName;
+
+    /**
+     * Generate a library.
+     *
+     * @param trackCount Number of tracks in the library.
+     * @param seed Seed for the random number generator.
+     */
+    public MockLibrary(int trackCount, long seed) {
+        Random random = new Random(seed);
+
+        // Work out the size of each album first, so the arrays can be sized exactly.
+        List<Integer> albumSizes = new ArrayList<Integer>();
+        int tracks = 0;
+        while (tracks < trackCount) {
+            double kind = random.nextDouble();
+            int size;
+            if (kind < 0.10) {
+                size = 1 + random.nextInt(2);
+            } else if (kind < 0.25) {
+                size = 4 + random.nextInt(3);
+            } else {
+                size = 8 + random.nextInt(9);
+            }
+            size = Math.min(size, trackCount - tracks);
+            albumSizes.add(size);
+            tracks += size;
+        }
+
+        int albumCount = albumSizes.size();
+        artistCount = Math.max(2, albumCount / 3);
+
+        trackAlbum = new int[trackCount];
+        trackArtist = new int[trackCount];
+        trackNum = new int[trackCount];
+        trackDuration = new int[trackCount];
+        albumArtist = new int[albumCount];
+        albumYear = new int[albumCount];
+        albumGenre = new int[albumCount];
+        albumCompilation = new boolean[albumCount];
+        albumFirstTrack = new int[albumCount];
+        albumTrackCount = new int[albumCount];
+
+        int track = 0;
+        for (int album = 0; album < albumCount; album++) {
+            boolean compilation = random.nextDouble() < 0.08;
+            albumCompilation[album] = compilation;
+            albumArtist[album] = compilation ? VARIOUS_ARTISTS_ID : skewed(random, artistCount - 1) + 2;
+            albumYear[album] = Math.max(1940, Math.min(2014,
+                    (int) Math.round(1995 + 15 * random.nextGaussian())));
+            albumGenre[album] = skewed(random, GENRES.length) + 1;
+            albumFirstTrack[album] = track + 1;
+            albumTrackCount[album] = albumSizes.get(album);
+
+            for (int i = 0; i < albumTrackCount[album]; i++, track++) {
+                trackAlbum[track] = album + 1;
+                trackArtist[track] = compilation ? skewed(random, artistCount - 1) + 2
+                        : albumArtist[album];
+                trackNum[track] = i + 1;
+                // Log-normal, with a median of about four minutes.
+                trackDuration[track] = Math.max(20, Math.min(1800,
+                        (int) Math.round(Math.exp(Math.log(230) + 0.35 * random.nextGaussian()))));
+            }
+        }
+    }
+
+    /**
+     * @return A random index in [0, size), with low indexes much more likely than high ones.
+     */
+    private static int skewed(Random random, int size) {
+        return (int) (size * Math.pow(random.nextDouble(), 3));
+    }
+
+    public int getTrackCount() {
+        return trackAlbum.length;
+    }
+
+    public int getAlbumCount() {
+        return albumArtist.length;
+    }
+
+    public int getArtistCount() {
+        return artistCount;
+    }
+
+    public int getGenreCount() {
+        return GENRES.length;
+    }
+
+    public int getTrackAlbum(int trackId) {
+        return trackAlbum[trackId - 1];
+    }
+
+    public int getTrackArtist(int trackId) {
+        return trackArtist[trackId - 1];
+    }
+
+    public int getTrackNum(int trackId) {
+        return trackNum[trackId - 1];
+    }
+
+    /** @return Duration, in seconds. */
+    public int getTrackDuration(int trackId) {
+        return trackDuration[trackId - 1];
+    }
+
+    public String getTrackTitle(int trackId) {
+        return name(trackId * 31L + 7, 1 + (int) (mix(trackId) % 4));
+    }
+
+    public String getTrackUrl(int trackId) {
+        int album = getTrackAlbum(trackId);
+        return String.format(Locale.US, "file:///music/%s/%s/%02d.flac",
+                getArtistName(getAlbumArtist(album)), getAlbumName(album), getTrackNum(trackId));
+    }
+
+    public int getAlbumArtist(int albumId) {
+        return albumArtist[albumId - 1];
+    }
+
+    public int getAlbumYear(int albumId) {
+        return albumYear[albumId - 1];
+    }
+
+    public int getAlbumGenre(int albumId) {
+        return albumGenre[albumId - 1];
+    }
+
+    public boolean isCompilation(int albumId) {
+        return albumCompilation[albumId - 1];
+    }
+
+    public int getAlbumFirstTrack(int albumId) {
+        return albumFirstTrack[albumId - 1];
+    }
+
+    public int getAlbumTrackCount(int albumId) {
+        return albumTrackCount[albumId - 1];
+    }
+
+    public String getAlbumName(int albumId) {
+        return name(albumId * 131L + 3, 1 + (int) (mix(albumId * 7L) % 3));
+    }
+
+    public String getArtistName(int artistId) {
+        if (artistId == VARIOUS_ARTISTS_ID) {
+            return "Various Artists";
+        }
+        long hash = mix(artistId * 17L);
+        return (hash % 3 == 0 ? "The " : "") + name(artistId * 257L + 11, 1 + (int) (hash % 2));
+    }
+
+    public String getGenreName(int genreId) {
+        return GENRES[genreId - 1];
+    }
+
+    /**
+     * @return IDs of all the albums, sorted by name, then ID.
+     */
+    public synchronized int[] getAlbumsByName() {
+        if (albumsByName == null) {
+            albumsByName = sortedIds(getAlbumCount(), new Comparator<Integer>() {
+                @Override
+                public int compare(Integer lhs, Integer rhs) {
+                    return getAlbumName(lhs).compareToIgnoreCase(getAlbumName(rhs));
+                }
+            });
+        }
+        return albumsByName;
+    }
+
+    /**
+     * @return IDs of all the albums, sorted by artist name, then year.
+     */
+    public synchronized int[] getAlbumsByArtistYear() {
+        if (albumsByArtistYear == null) {
+            albumsByArtistYear = sortedIds(getAlbumCount(), new Comparator<Integer>() {
+                @Override
+                public int compare(Integer lhs, Integer rhs) {
+                    int result = getArtistName(getAlbumArtist(lhs))
+                            .compareToIgnoreCase(getArtistName(getAlbumArtist(rhs)));
+                    return result != 0 ? result : getAlbumYear(lhs) - getAlbumYear(rhs);
+                }
+            });
+        }
+        return albumsByArtistYear;
+    }
+
+    /**
+     * @return IDs of all the artists, sorted by name.
+     */
+    public synchronized int[] getArtistsByName() {
+        if (artistsByName == null) {
+            artistsByName = sortedIds(getArtistCount(), new Comparator<Integer>() {
+                @Override
+                public int compare(Integer lhs, Integer rhs) {
+                    return getArtistName(lhs).compareToIgnoreCase(getArtistName(rhs));
+                }
+            });
+        }
+        return artistsByName;
+    }
+
+    private static int[] sortedIds(int count, Comparator<Integer> comparator) {
+        Integer[] ids = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            ids[i] = i + 1;
+        }
+        // Stable, so equal names stay in ID order.
+        Arrays.sort(ids, comparator);
+        int[] result = new int[count];
+        for (int i = 0; i < count; i++) {
+            result[i] = ids[i];
+        }
+        return result;
+    }
+
+    /**
+     * @return The years that albums were released in, most recent first.
+     */
+    public List<Integer> getYears() {
+        List<Integer> years = new ArrayList<Integer>();
+        boolean[] seen = new boolean[2015];
+        for (int year : albumYear) {
+            if (!seen[year]) {
+                seen[year] = true;
+                years.add(year);
+            }
+        }
+        Collections.sort(years, Collections.reverseOrder());
+        return years;
+    }
+
+    /**
+     * Build a name of a few words. The same key always gives the same name.
+     */
+    private static String name(long key, int wordCount) {
+        StringBuilder sb = new StringBuilder();
+        long hash = key;
+        for (int i = 0; i < wordCount; i++) {
+            hash = mix(hash + i);
+            String word = WORDS[(int) (hash % WORDS.length)];
+            if (i > 0) {
+                sb.append(' ');
+            }
+            sb.append(Character.toUpperCase(word.charAt(0))).append(word.substring(1));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * A non-negative hash of the given value, with the bits well mixed (from SplitMix64).
+     */
+    private static long mix(long value) {
+        long z = value + 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return (z ^ (z >>> 31)) & Long.MAX_VALUE;
+    }
+}
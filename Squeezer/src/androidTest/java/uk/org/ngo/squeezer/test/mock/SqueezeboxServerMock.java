@@ -1,4 +1,3 @@
-
 package uk.org.ngo.squeezer.test.mock;
 
 import junit.framework.AssertionFailedError;
@@ -9,19 +8,43 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import uk.org.ngo.squeezer.itemlist.dialog.AlbumViewDialog.AlbumsSortOrder;
 
 /**
  * Emulates LMS for testing purposes
  * <p/>
- * Each instance will wait for an incoming connection, accept it, read commands from the
+ * Each instance will wait for incoming connections, accept them, read commands from the
  * inputstream, and reply to the outputstream, until the connection is broken or the exit command is
- * received, at which point the connection is terminated.
+ * received, at which point the connection is terminated. Once the configured number of connections
+ * (one by default) have been accepted and terminated the server stops.
+ * <p/>
+ * To make a new connection after that a new instance must be started.
  * <p/>
- * To make a new connection a new instance must be started.
+ * Besides the handshake commands the server answers the extended query format commands for
+ * players, artists, albums, songs, genres, years and player status, from a synthetic
+ * {@link MockLibrary}. Replies are paged, and echo the request parameters (including the
+ * correlation id) the way the real server does. Player status subscriptions are honoured, with
+ * each player playing through a playlist in real time.
+ * <p/>
+ * A fixed latency can be added to every reply, and the bandwidth of each connection can be
+ * limited, to see how Squeezer behaves on a slow network.
  *
  * @author Kurt Aaholst <kaaholst@gmail.com>
  */
@@ -31,6 +54,9 @@ public class SqueezeboxServerMock extends Thread {
 
     public static final int CLI_PORT = 9091;
 
+    /** Number of tracks in each player's playlist, if the library is large enough. */
+    private static final int PLAYLIST_SIZE = 50;
+
     private Object serverReadyMonitor = new Object();
 
     private boolean accepting;
@@ -80,6 +106,51 @@ public class SqueezeboxServerMock extends Thread {
             return this;
         }
 
+        /**
+         * Serve a library with the given number of tracks. Ignored if a library is set with
+         * {@link #library(MockLibrary)}.
+         */
+        public Starter tracks(int tracks) {
+            this.tracks = tracks;
+            return this;
+        }
+
+        /**
+         * Serve the given library. Generating a large library takes a while, so tests that start
+         * several servers may want to share one.
+         */
+        public Starter library(MockLibrary library) {
+            this.library = library;
+            return this;
+        }
+
+        /** Number of players connected to the server. */
+        public Starter players(int players) {
+            this.players = players;
+            return this;
+        }
+
+        /** Delay, in milliseconds, before each reply or notification is sent. */
+        public Starter latency(int latencyMillis) {
+            this.latencyMillis = latencyMillis;
+            return this;
+        }
+
+        /** Maximum number of bytes per second sent on each connection, 0 for no limit. */
+        public Starter bandwidth(int bytesPerSecond) {
+            this.bytesPerSecond = bytesPerSecond;
+            return this;
+        }
+
+        /**
+         * Number of connections to accept before the server stops, e.g., to test reconnecting.
+         * Connections are served concurrently.
+         */
+        public Starter connections(int connections) {
+            this.connections = connections;
+            return this;
+        }
+
         private String username = null;
 
         private String password = null;
@@ -89,6 +160,18 @@ public class SqueezeboxServerMock extends Thread {
         private boolean canMusicFolder = true;
 
         private AlbumsSortOrder albumsSortOrder = AlbumsSortOrder.album;
+
+        private int tracks = 1000;
+
+        private MockLibrary library = null;
+
+        private int players = 1;
+
+        private int latencyMillis = 0;
+
+        private int bytesPerSecond = 0;
+
+        private int connections = 1;
     }
 
     public static Starter starter() {
@@ -101,6 +184,16 @@ public class SqueezeboxServerMock extends Thread {
         canRamdomplay = starter.canRandomplay;
         canMusicFolder = starter.canMusicFolder;
         albumsSortOrder = starter.albumsSortOrder;
+        library = (starter.library != null ? starter.library : new MockLibrary(starter.tracks, 0));
+        latencyMillis = starter.latencyMillis;
+        bytesPerSecond = starter.bytesPerSecond;
+        connections = starter.connections;
+
+        Random random = new Random(starter.players);
+        for (int i = 0; i < starter.players; i++) {
+            MockPlayer player = new MockPlayer(i, library, random);
+            players.put(player.id, player);
+        }
     }
 
     private String username;
@@ -113,94 +206,681 @@ public class SqueezeboxServerMock extends Thread {
 
     private AlbumsSortOrder albumsSortOrder;
 
+    private final MockLibrary library;
+
+    private final Map<String, MockPlayer> players = new LinkedHashMap<String, MockPlayer>();
+
+    private final int latencyMillis;
+
+    private final int bytesPerSecond;
+
+    private final int connections;
+
     @Override
     public void run() {
         ServerSocket serverSocket;
-        Socket socket;
-        BufferedReader in;
-        PrintWriter out;
+        List<Connection> served = new ArrayList<Connection>();
         try {
             // Establish server socket
             serverSocket = new ServerSocket(CLI_PORT);
 
-            // Wait for incoming connection
+            // Wait for incoming connections
             Log.d(TAG, "Mock server listening on port: " + serverSocket.getLocalPort());
             synchronized (serverReadyMonitor) {
                 accepting = true;
                 serverReadyMonitor.notifyAll();
             }
-            socket = serverSocket.accept();
-
-            Log.d(TAG, "Mock server connected to: " + socket.getRemoteSocketAddress());
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()), 128);
-            out = new PrintWriter(socket.getOutputStream(), true);
+            for (int i = 0; i < connections; i++) {
+                Socket socket = serverSocket.accept();
+                Log.d(TAG, "Mock server connected to: " + socket.getRemoteSocketAddress());
+                Connection connection = new Connection(socket);
+                connection.start();
+                served.add(connection);
+            }
         } catch (IOException e) {
             throw new Error(e);
         }
 
-        boolean loggedIn = (username == null || password == null);
-
-        while (true) {
-            // read data from Socket
-            String line;
+        for (Connection connection : served) {
             try {
-                line = in.readLine();
-            } catch (IOException e) {
-                line = null;
-            }
-            Log.d(TAG, "Mock server got: " + line);
-            if (line == null) {
-                break; // Client disconnected
+                connection.join();
+            } catch (InterruptedException e) {
+                Log.w(TAG, "Interrupted while waiting for a connection to finish");
             }
+        }
+
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+        }
+    }
+
+    /**
+     * Serves one client connection.
+     */
+    private class Connection extends Thread {
+        private final Socket socket;
+
+        private final BufferedReader in;
+
+        private final PrintWriter out;
+
+        /** Sends replies in order, after the configured latency. */
+        private final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor();
+
+        /** Sends status notifications for subscribed players. */
+        private final ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor();
+
+        /** The active status subscriptions, keyed by player ID. */
+        private final Map<String, Subscription> subscriptions
+                = new ConcurrentHashMap<String, Subscription>();
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"), 128);
+            out = new PrintWriter(socket.getOutputStream(), true);
+        }
+
+        @Override
+        public void run() {
+            ticker.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    sendSubscribedStatus();
+                }
+            }, 1, 1, TimeUnit.SECONDS);
+
+            boolean loggedIn = (username == null || password == null);
+
+            while (true) {
+                // read data from Socket
+                String line;
+                try {
+                    line = in.readLine();
+                } catch (IOException e) {
+                    line = null;
+                }
+                Log.d(TAG, "Mock server got: " + line);
+                if (line == null) {
+                    break; // Client disconnected
+                }
 
-            String[] tokens = line.split(" ");
+                String[] tokens = line.split(" ");
 
-            if (tokens[0].equals("login")) {
-                out.println(tokens[0] + " " + tokens[1] + " ******");
-                if (username != null && password != null) {
-                    if (tokens.length < 2 || !username.equals(tokens[1])) {
+                if (tokens[0].equals("login")) {
+                    send(tokens[0] + " " + tokens[1] + " ******");
+                    if (username != null && password != null) {
+                        if (tokens.length < 2 || !username.equals(tokens[1])) {
+                            break;
+                        }
+                        if (tokens.length < 3 || !password.equals(tokens[2])) {
+                            break;
+                        }
+                    }
+                    loggedIn = true;
+                } else {
+                    if (!loggedIn) {
                         break;
                     }
-                    if (tokens.length < 3 || !password.equals(tokens[2])) {
+
+                    if (line.equals("exit")) {
+                        send(line);
                         break;
+                    } else if (line.equals("listen 1")) {
+                        //Just ignore, the mock only sends player status notifications
+                        send("listen 1");
+                    } else if (line.equals("can musicfolder ?")) {
+                        send("can musicfolder " + (canMusicFolder ? 1 : 0));
+                    } else if (line.equals("can randomplay ?")) {
+                        send("can randomplay " + (canRamdomplay ? 1 : 0));
+                    } else if (line.equals("pref httpport ?")) {
+                        send("pref httpport 9092");
+                    } else if (line.equals("pref jivealbumsort ?")) {
+                        send("pref jivealbumsort " + albumsSortOrder);
+                    } else if (line.equals("pref language ?")) {
+                        send("pref language EN");
+                    } else if (line.equals("version ?")) {
+                        send("version 7.7.2");
+                    } else if (!handleQuery(tokens)) {
+                        send(line);
                     }
                 }
-                loggedIn = true;
-            } else {
-                if (!loggedIn) {
-                    break;
+            }
+
+            ticker.shutdownNow();
+            writer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        socket.close();
+                    } catch (IOException e) {
+                    }
                 }
+            }, latencyMillis, TimeUnit.MILLISECONDS);
+            writer.shutdown();
+            try {
+                writer.awaitTermination(60, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Log.w(TAG, "Interrupted while sending the last replies");
+            }
+        }
 
-                if (line.equals("exit")) {
+        /**
+         * Send a line to the client after the configured latency, and no faster than the
+         * configured bandwidth.
+         */
+        private void send(final String line) {
+            writer.schedule(new Runnable() {
+                @Override
+                public void run() {
                     out.println(line);
-                    break;
-                } else if (line.equals("listen 1")) {
-                    //Just ignore, mock doesn't support server side events
-                    out.println("listen 1");
-                } else if (line.equals("can musicfolder ?")) {
-                    out.println("can musicfolder " + (canMusicFolder ? 1 : 0));
-                } else if (line.equals("can randomplay ?")) {
-                    out.println("can randomplay " + (canRamdomplay ? 1 : 0));
-                } else if (line.equals("pref httpport ?")) {
-                    out.println("pref httpport 9092");
-                } else if (line.equals("pref jivealbumsort ?")) {
-                    out.println("pref jivealbumsort " + albumsSortOrder);
-                } else if (line.equals("version ?")) {
-                    out.println("version 7.7.2");
-                } else if (tokens[0].equals("players")) {
-                    //TODO implement
+                    if (bytesPerSecond > 0) {
+                        try {
+                            int bytes = line.getBytes("UTF-8").length + 1;
+                            Thread.sleep(bytes * 1000L / bytesPerSecond);
+                        } catch (UnsupportedEncodingException e) {
+                            throw new Error(e);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                }
+            }, latencyMillis, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Answer an extended query format command.
+         *
+         * @return True if the command was answered, false if it isn't a supported query.
+         */
+        private boolean handleQuery(String[] tokens) {
+            MockPlayer player = players.get(decode(tokens[0]));
+            int ofs = (player != null ? 1 : 0);
+            if (tokens.length < ofs + 3) {
+                return false;
+            }
+
+            String cmd = tokens[ofs];
+            if (player != null) {
+                if (!cmd.equals("status")) {
+                    return false;
+                }
+            } else if (!Arrays.asList("players", "artists", "albums", "songs", "genres", "years")
+                    .contains(cmd)) {
+                return false;
+            }
+
+            StringBuilder reply = new StringBuilder();
+            for (int i = 0; i <= ofs + 2; i++) {
+                reply.append(i > 0 ? " " : "").append(tokens[i]);
+            }
+            Map<String, String> parameters = new LinkedHashMap<String, String>();
+            for (int i = ofs + 3; i < tokens.length; i++) {
+                String token = decode(tokens[i]);
+                int colonPos = token.indexOf(':');
+                if (colonPos != -1) {
+                    String key = token.substring(0, colonPos);
+                    String value = token.substring(colonPos + 1);
+                    parameters.put(key, value);
+                    appendTag(reply, key, value);
+                }
+            }
+
+            int count = parseInt(tokens[ofs + 2], 0);
+            if (player != null) {
+                String subscribe = parameters.get("subscribe");
+                // As the server: "-" cancels, "0" notifies on changes, and "n" every n seconds.
+                if ("-".equals(subscribe)) {
+                    subscriptions.remove(player.id);
+                } else if (subscribe != null) {
+                    subscriptions.put(player.id, new Subscription(player,
+                            parseInt(subscribe, 0), parameters));
+                }
+                appendStatus(reply, player, tokens[ofs + 1], count, parameters.get("tags"));
+            } else {
+                appendItems(reply, cmd, parseInt(tokens[ofs + 1], 0), count, parameters);
+            }
+            send(reply.toString());
+            return true;
+        }
+
+        private void appendItems(StringBuilder reply, String cmd, int start, int count,
+                Map<String, String> parameters) {
+            String tags = parameters.containsKey("tags") ? parameters.get("tags") : "";
+            if (cmd.equals("players")) {
+                List<MockPlayer> playerList = new ArrayList<MockPlayer>(players.values());
+                appendTag(reply, "count", playerList.size());
+                for (int i = start; i < Math.min(playerList.size(), start + count); i++) {
+                    MockPlayer player = playerList.get(i);
+                    appendTag(reply, "playerid", player.id);
+                    appendTag(reply, "ip", "192.168.1." + (100 + player.index) + ":3483");
+                    appendTag(reply, "name", player.name);
+                    appendTag(reply, "model", "squeezebox3");
+                    appendTag(reply, "canpoweroff", 1);
+                    appendTag(reply, "connected", 1);
+                }
+            } else if (cmd.equals("years")) {
+                List<Integer> years = library.getYears();
+                appendTag(reply, "count", years.size());
+                for (int i = start; i < Math.min(years.size(), start + count); i++) {
+                    appendTag(reply, "year", years.get(i));
+                }
+            } else {
+                int[] ids;
+                if (cmd.equals("artists")) {
+                    ids = findArtists(parameters);
+                } else if (cmd.equals("albums")) {
+                    ids = findAlbums(parameters);
+                } else if (cmd.equals("songs")) {
+                    ids = findSongs(parameters);
                 } else {
-                    out.println(line);
+                    ids = new int[library.getGenreCount()];
+                    for (int i = 0; i < ids.length; i++) {
+                        ids[i] = i + 1;
+                    }
+                }
+
+                appendTag(reply, "count", ids.length);
+                for (int i = start; i < Math.min(ids.length, start + count); i++) {
+                    if (cmd.equals("artists")) {
+                        appendTag(reply, "id", ids[i]);
+                        appendTag(reply, "artist", library.getArtistName(ids[i]));
+                    } else if (cmd.equals("albums")) {
+                        appendAlbum(reply, ids[i], tags);
+                    } else if (cmd.equals("songs")) {
+                        appendTag(reply, "id", ids[i]);
+                        appendSong(reply, ids[i], tags);
+                    } else {
+                        appendTag(reply, "id", ids[i]);
+                        appendTag(reply, "genre", library.getGenreName(ids[i]));
+                    }
                 }
             }
         }
 
+        private void appendStatus(StringBuilder reply, MockPlayer player, String start, int count,
+                String tags) {
+            synchronized (player) {
+                player.update();
+                appendTag(reply, "player_name", player.name);
+                appendTag(reply, "player_connected", 1);
+                appendTag(reply, "power", 1);
+                appendTag(reply, "mode", player.playlist.length > 0 ? "play" : "stop");
+                if (player.playlist.length > 0) {
+                    int trackId = player.playlist[player.currentIndex];
+                    appendTag(reply, "time", String.format(Locale.US, "%.3f",
+                            player.getElapsedMillis() / 1000.0));
+                    appendTag(reply, "rate", 1);
+                    appendTag(reply, "duration", library.getTrackDuration(trackId));
+                    appendTag(reply, "can_seek", 1);
+                }
+                appendTag(reply, "mixer volume", 50);
+                appendTag(reply, "playlist repeat", 2);
+                appendTag(reply, "playlist shuffle", 0);
+                appendTag(reply, "playlist_cur_index", player.currentIndex);
+                appendTag(reply, "playlist_timestamp", player.playlistTimestamp);
+                appendTag(reply, "playlist_tracks", player.playlist.length);
+
+                int first = start.equals("-") ? player.currentIndex : parseInt(start, 0);
+                for (int i = first; i < Math.min(player.playlist.length, first + count); i++) {
+                    appendTag(reply, "playlist index", i);
+                    appendTag(reply, "id", player.playlist[i]);
+                    appendSong(reply, player.playlist[i], tags == null ? "" : tags);
+                }
+            }
+        }
+
+        private void appendAlbum(StringBuilder reply, int albumId, String tags) {
+            appendTag(reply, "id", albumId);
+            for (char tag : tags.toCharArray()) {
+                switch (tag) {
+                    case 'l':
+                        appendTag(reply, "album", library.getAlbumName(albumId));
+                        break;
+                    case 'a':
+                        appendTag(reply, "artist",
+                                library.getArtistName(library.getAlbumArtist(albumId)));
+                        break;
+                    case 'S':
+                        appendTag(reply, "artist_id", library.getAlbumArtist(albumId));
+                        break;
+                    case 'y':
+                        appendTag(reply, "year", library.getAlbumYear(albumId));
+                        break;
+                    case 'j':
+                        appendTag(reply, "artwork_track_id", library.getAlbumFirstTrack(albumId));
+                        break;
+                }
+            }
+        }
+
+        /**
+         * Append the tags of a song, except the ID (which is not always the item delimiter).
+         */
+        private void appendSong(StringBuilder reply, int trackId, String tags) {
+            int albumId = library.getTrackAlbum(trackId);
+            appendTag(reply, "title", library.getTrackTitle(trackId));
+            for (char tag : tags.toCharArray()) {
+                switch (tag) {
+                    case 'a':
+                        appendTag(reply, "artist",
+                                library.getArtistName(library.getTrackArtist(trackId)));
+                        break;
+                    case 'C':
+                        appendTag(reply, "compilation", library.isCompilation(albumId) ? 1 : 0);
+                        break;
+                    case 'd':
+                        appendTag(reply, "duration", library.getTrackDuration(trackId));
+                        break;
+                    case 'e':
+                        appendTag(reply, "album_id", albumId);
+                        break;
+                    case 'g':
+                        appendTag(reply, "genre",
+                                library.getGenreName(library.getAlbumGenre(albumId)));
+                        break;
+                    case 'j':
+                        appendTag(reply, "coverart", 1);
+                        break;
+                    case 'J':
+                        appendTag(reply, "artwork_track_id", library.getAlbumFirstTrack(albumId));
+                        break;
+                    case 'l':
+                        appendTag(reply, "album", library.getAlbumName(albumId));
+                        break;
+                    case 'p':
+                        appendTag(reply, "genre_id", library.getAlbumGenre(albumId));
+                        break;
+                    case 's':
+                        appendTag(reply, "artist_id", library.getTrackArtist(trackId));
+                        break;
+                    case 't':
+                        appendTag(reply, "tracknum", library.getTrackNum(trackId));
+                        break;
+                    case 'u':
+                        appendTag(reply, "url", library.getTrackUrl(trackId));
+                        break;
+                    case 'x':
+                        appendTag(reply, "remote", 0);
+                        break;
+                    case 'y':
+                        appendTag(reply, "year", library.getAlbumYear(albumId));
+                        break;
+                }
+            }
+        }
+
+        private int[] findArtists(Map<String, String> parameters) {
+            int genreId = parseInt(parameters.get("genre_id"), 0);
+            int albumId = parseInt(parameters.get("album_id"), 0);
+            String search = lowerCase(parameters.get("search"));
+
+            boolean[] wanted = new boolean[library.getArtistCount() + 1];
+            if (genreId != 0 || albumId != 0) {
+                for (int album = 1; album <= library.getAlbumCount(); album++) {
+                    if ((albumId == 0 || album == albumId)
+                            && (genreId == 0 || library.getAlbumGenre(album) == genreId)) {
+                        wanted[library.getAlbumArtist(album)] = true;
+                    }
+                }
+            } else {
+                Arrays.fill(wanted, true);
+            }
+
+            return filter(library.getArtistsByName(), wanted, search, new NameFunction() {
+                @Override
+                public String name(int id) {
+                    return library.getArtistName(id);
+                }
+            });
+        }
+
+        private int[] findAlbums(Map<String, String> parameters) {
+            int artistId = parseInt(parameters.get("artist_id"), 0);
+            int genreId = parseInt(parameters.get("genre_id"), 0);
+            int year = parseInt(parameters.get("year"), 0);
+            String search = lowerCase(parameters.get("search"));
+
+            boolean[] wanted = new boolean[library.getAlbumCount() + 1];
+            for (int album = 1; album <= library.getAlbumCount(); album++) {
+                wanted[album] = (artistId == 0 || library.getAlbumArtist(album) == artistId)
+                        && (genreId == 0 || library.getAlbumGenre(album) == genreId)
+                        && (year == 0 || library.getAlbumYear(album) == year);
+            }
+            if (artistId != 0) {
+                // Include compilations the artist appears on.
+                for (int track = 1; track <= library.getTrackCount(); track++) {
+                    if (library.getTrackArtist(track) == artistId) {
+                        int album = library.getTrackAlbum(track);
+                        wanted[album] = (genreId == 0 || library.getAlbumGenre(album) == genreId)
+                                && (year == 0 || library.getAlbumYear(album) == year);
+                    }
+                }
+            }
+
+            String sort = parameters.get("sort");
+            int[] order;
+            if ("new".equals(sort)) {
+                order = new int[library.getAlbumCount()];
+                for (int i = 0; i < order.length; i++) {
+                    order[i] = order.length - i;
+                }
+            } else if ("artflow".equals(sort) || "artistalbum".equals(sort)) {
+                order = library.getAlbumsByArtistYear();
+            } else {
+                order = library.getAlbumsByName();
+            }
+
+            return filter(order, wanted, search, new NameFunction() {
+                @Override
+                public String name(int id) {
+                    return library.getAlbumName(id);
+                }
+            });
+        }
+
+        private int[] findSongs(Map<String, String> parameters) {
+            int artistId = parseInt(parameters.get("artist_id"), 0);
+            int albumId = parseInt(parameters.get("album_id"), 0);
+            int genreId = parseInt(parameters.get("genre_id"), 0);
+            int year = parseInt(parameters.get("year"), 0);
+            String search = lowerCase(parameters.get("search"));
+
+            int first = 1;
+            int last = library.getTrackCount();
+            if (albumId != 0) {
+                first = library.getAlbumFirstTrack(albumId);
+                last = first + library.getAlbumTrackCount(albumId) - 1;
+            }
+
+            int[] ids = new int[last - first + 1];
+            int found = 0;
+            for (int track = first; track <= last; track++) {
+                int album = library.getTrackAlbum(track);
+                if ((artistId == 0 || library.getTrackArtist(track) == artistId)
+                        && (genreId == 0 || library.getAlbumGenre(album) == genreId)
+                        && (year == 0 || library.getAlbumYear(album) == year)
+                        && (search == null
+                        || library.getTrackTitle(track).toLowerCase().contains(search))) {
+                    ids[found++] = track;
+                }
+            }
+            return truncate(ids, found);
+        }
+
+        /**
+         * Send a status notification for every subscription that is due one: either its interval
+         * has passed, or (for subscriptions without an interval) the current song changed.
+         */
+        private void sendSubscribedStatus() {
+            long now = System.currentTimeMillis();
+            for (Subscription subscription : subscriptions.values()) {
+                boolean changed;
+                synchronized (subscription.player) {
+                    changed = subscription.player.update();
+                }
+                boolean due = subscription.intervalSeconds > 0
+                        && now - subscription.lastSent >= subscription.intervalSeconds * 1000L;
+                if (changed || due) {
+                    subscription.lastSent = now;
+                    StringBuilder reply = new StringBuilder();
+                    reply.append(encode(subscription.player.id)).append(" status - 1");
+                    for (Map.Entry<String, String> entry : subscription.parameters.entrySet()) {
+                        appendTag(reply, entry.getKey(), entry.getValue());
+                    }
+                    appendStatus(reply, subscription.player, "-", 1,
+                            subscription.parameters.get("tags"));
+                    send(reply.toString());
+                }
+            }
+        }
+    }
+
+    private interface NameFunction {
+        String name(int id);
+    }
+
+    /**
+     * @return The IDs in <code>order</code> that are wanted and whose names contain the search
+     *     string (if any), in the same order.
+     */
+    private static int[] filter(int[] order, boolean[] wanted, String search,
+            NameFunction nameFunction) {
+        int[] ids = new int[order.length];
+        int found = 0;
+        for (int id : order) {
+            if (wanted[id] && (search == null
+                    || nameFunction.name(id).toLowerCase().contains(search))) {
+                ids[found++] = id;
+            }
+        }
+        return truncate(ids, found);
+    }
+
+    /**
+     * A status subscription on one connection.
+     */
+    private static class Subscription {
+        final MockPlayer player;
+
+        /** Seconds between notifications, or 0 to only notify on changes. */
+        final int intervalSeconds;
+
+        /** The parameters of the subscribe command, repeated in each notification. */
+        final Map<String, String> parameters;
+
+        long lastSent = System.currentTimeMillis();
+
+        Subscription(MockPlayer player, int intervalSeconds, Map<String, String> parameters) {
+            this.player = player;
+            this.intervalSeconds = intervalSeconds;
+            this.parameters = parameters;
+        }
+    }
+
+    /**
+     * A player that plays through its playlist, and then starts again.
+     * <p/>
+     * Accesses must be synchronized on the player.
+     */
+    private static class MockPlayer {
+        final int index;
+
+        final String id;
+
+        final String name;
+
+        final int[] playlist;
+
+        final String playlistTimestamp;
+
+        private final MockLibrary library;
+
+        int currentIndex;
+
+        long trackStartMillis = System.currentTimeMillis();
+
+        MockPlayer(int index, MockLibrary library, Random random) {
+            this.index = index;
+            this.library = library;
+            id = String.format(Locale.US, "00:04:20:00:%02x:%02x", index / 256, index % 256);
+            name = "Player " + (index + 1);
+            playlist = new int[Math.min(PLAYLIST_SIZE, library.getTrackCount())];
+            for (int i = 0; i < playlist.length; i++) {
+                playlist[i] = 1 + random.nextInt(library.getTrackCount());
+            }
+            if (playlist.length > 0) {
+                currentIndex = random.nextInt(playlist.length);
+            }
+            playlistTimestamp = String.format(Locale.US, "%.4f",
+                    System.currentTimeMillis() / 1000.0);
+        }
+
+        long getElapsedMillis() {
+            return System.currentTimeMillis() - trackStartMillis;
+        }
+
+        /**
+         * Move on to the next song if the current one has finished.
+         *
+         * @return True if the current song changed.
+         */
+        boolean update() {
+            boolean changed = false;
+            while (playlist.length > 0 && getElapsedMillis()
+                    >= library.getTrackDuration(playlist[currentIndex]) * 1000L) {
+                trackStartMillis += library.getTrackDuration(playlist[currentIndex]) * 1000L;
+                currentIndex = (currentIndex + 1) % playlist.length;
+                changed = true;
+            }
+            return changed;
+        }
+    }
+
+    private static void appendTag(StringBuilder reply, String key, Object value) {
+        reply.append(' ').append(encode(key)).append("%3A").append(encode(String.valueOf(value)));
+    }
+
+    private static int parseInt(String value, int defaultValue) {
+        if (value == null) {
+            return defaultValue;
+        }
         try {
-            socket.close();
-            serverSocket.close();
-        } catch (IOException e) {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
         }
+    }
+
+    private static String lowerCase(String value) {
+        return value == null ? null : value.toLowerCase();
+    }
+
+    private static String encode(String string) {
+        try {
+            return URLEncoder.encode(string, "UTF-8").replace("+", "%20");
+        } catch (UnsupportedEncodingException e) {
+            throw new Error(e);
+        }
+    }
+
+    /**
+     * @return The decoded string, or the string itself if it isn't validly encoded.
+     */
+    private static String decode(String string) {
+        try {
+            return URLDecoder.decode(string, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new Error(e);
+        } catch (IllegalArgumentException e) {
+            return string;
+        }
+    }
 
+    private static int[] truncate(int[] ids, int length) {
+        int[] result = new int[length];
+        System.arraycopy(ids, 0, result, 0, length);
+        return result;
     }
 
 }
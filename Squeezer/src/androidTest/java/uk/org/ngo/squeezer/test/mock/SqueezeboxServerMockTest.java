@@ -9,6 +9,7 @@ import java.io.PrintWriter;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketAddress;
+import java.net.URLEncoder;
 import java.net.UnknownHostException;
 
 import uk.org.ngo.squeezer.itemlist.dialog.AlbumViewDialog.AlbumsSortOrder;
@@ -191,4 +192,43 @@ public class SqueezeboxServerMockTest extends TestCase {
         }
     }
 
+    public void testPagedQuery() {
+        MockLibrary library = new MockLibrary(500, 0);
+        SqueezeboxServerMock.starter().library(library).start();
+
+        try {
+            SocketAddress sa = new InetSocketAddress("localhost", SqueezeboxServerMock.CLI_PORT);
+            Socket socket = new Socket();
+
+            socket.connect(sa, 10 * 1000);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()),
+                    128);
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+
+            out.println("genres 2 2 tags%3As correlationid:7");
+            assertEquals("genres 2 2 tags%3As correlationid%3A7 count%3A"
+                    + library.getGenreCount() + " id%3A3 genre%3AJazz id%3A4 genre%3AClassical",
+                    in.readLine());
+
+            out.println("songs 0 1 album_id%3A1 tags%3At correlationid:8");
+            assertEquals("songs 0 1 album_id%3A1 tags%3At correlationid%3A8 count%3A"
+                    + library.getAlbumTrackCount(1) + " id%3A1 title%3A"
+                    + URLEncoder.encode(library.getTrackTitle(1), "UTF-8").replace("+", "%20") + " tracknum%3A1",
+                    in.readLine());
+
+            out.println("exit");
+            assertEquals("exit", in.readLine());
+
+            assertNull(in.readLine());
+
+            in.close();
+            out.close();
+            socket.close();
+        } catch (UnknownHostException e) {
+            e.printStackTrace();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
 }
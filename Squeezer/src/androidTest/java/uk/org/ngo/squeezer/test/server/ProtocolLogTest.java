@@ -0,0 +1,27 @@
+package uk.org.ngo.squeezer.test.server;
+
+import junit.framework.TestCase;
+
+import uk.org.ngo.squeezer.service.ProtocolLog;
+
+public class ProtocolLogTest extends TestCase {
+
+    public void testRedactLogin() {
+        assertEquals("login ******", ProtocolLog.redact("login user%20name s3cret"));
+        assertEquals("login ******", ProtocolLog.redact("login user ******"));
+    }
+
+    public void testRedactLoginAmongCommands() {
+        String redacted = ProtocolLog.redact("listen 1\nlogin user s3cret\nversion ?");
+        assertEquals("listen 1\nlogin ******\nversion ?", redacted);
+        assertFalse(redacted.contains("s3cret"));
+        assertFalse(redacted.contains("user"));
+    }
+
+    public void testOtherLinesUnchanged() {
+        String line = "00%3A04%3A20%3A12%3Ab3%3A17 status - 1 tags:login";
+        assertSame(line, ProtocolLog.redact(line));
+        assertEquals("loginx y", ProtocolLog.redact("loginx y"));
+        assertEquals("", ProtocolLog.redact(""));
+    }
+}
@@ -0,0 +1,135 @@
+package uk.org.ngo.squeezer.test.util;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.test.AndroidTestCase;
+import android.widget.ImageView;
+
+import uk.org.ngo.squeezer.util.BitmapPool;
+import uk.org.ngo.squeezer.util.UIUtils;
+
+public class BitmapPoolTest extends AndroidTestCase {
+
+    private BitmapPool pool;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        pool = BitmapPool.getInstance();
+        pool.clear();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        pool.clear();
+        super.tearDown();
+    }
+
+    /**
+     * @return Options for decoding an image of the given size, as they are after the bounds have
+     * been decoded.
+     */
+    private static BitmapFactory.Options options(int width, int height) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.outWidth = width;
+        options.outHeight = height;
+        options.inSampleSize = 1;
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        return options;
+    }
+
+    /** @return The pooled bitmap that an image of the given size would be decoded into. */
+    private Bitmap reusableFor(int width, int height) {
+        BitmapFactory.Options options = options(width, height);
+        pool.addInBitmapOptions(options);
+        return options.inBitmap;
+    }
+
+    private static Bitmap bitmap(int width, int height) {
+        return Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+    }
+
+    public void testReusesBitmapOfSameSize() {
+        if (!UIUtils.hasHoneycomb()) {
+            return;
+        }
+        Bitmap bitmap = bitmap(32, 32);
+        pool.put(bitmap);
+
+        assertSame(bitmap, reusableFor(32, 32));
+        assertNull("A bitmap is only reused once", reusableFor(32, 32));
+    }
+
+    public void testDecodesMutableBitmaps() {
+        if (!UIUtils.hasHoneycomb()) {
+            return;
+        }
+        BitmapFactory.Options options = options(32, 32);
+        pool.addInBitmapOptions(options);
+
+        assertTrue(options.inMutable);
+    }
+
+    public void testImmutableBitmapIsNotPooled() {
+        pool.put(bitmap(32, 32).copy(Bitmap.Config.ARGB_8888, false));
+
+        assertNull(reusableFor(32, 32));
+    }
+
+    public void testLargerBitmapIsReusedFromKitKat() {
+        if (!UIUtils.hasHoneycomb()) {
+            return;
+        }
+        Bitmap bitmap = bitmap(32, 32);
+        pool.put(bitmap);
+
+        if (UIUtils.hasKitKat()) {
+            assertSame(bitmap, reusableFor(16, 16));
+        } else {
+            assertNull("Only the same size can be reused before KitKat", reusableFor(16, 16));
+        }
+    }
+
+    /** A much larger bitmap would waste its memory on a small image. */
+    public void testMuchLargerBitmapIsNotReused() {
+        pool.put(bitmap(64, 64));
+
+        assertNull(reusableFor(16, 16));
+    }
+
+    public void testBitmapLargerThanPoolIsNotPooled() {
+        pool.put(bitmap(1024, 1024));
+
+        assertNull(reusableFor(1024, 1024));
+    }
+
+    public void testHeldBitmapIsNotReused() {
+        if (!UIUtils.hasHoneycomb()) {
+            return;
+        }
+        Bitmap bitmap = bitmap(32, 32);
+        pool.put(bitmap);
+        pool.hold(bitmap);
+        pool.hold(bitmap);
+
+        assertNull(reusableFor(32, 32));
+        pool.release(bitmap);
+        assertNull("Still held once", reusableFor(32, 32));
+        pool.release(bitmap);
+        assertSame(bitmap, reusableFor(32, 32));
+    }
+
+    public void testDisplayedBitmapIsNotReused() {
+        if (!UIUtils.hasHoneycomb()) {
+            return;
+        }
+        Bitmap bitmap = bitmap(32, 32);
+        ImageView imageView = new ImageView(getContext());
+        pool.setDisplayed(imageView, bitmap);
+        pool.put(bitmap);
+
+        assertNull(reusableFor(32, 32));
+        pool.setDisplayed(imageView, null);
+        assertSame(bitmap, reusableFor(32, 32));
+    }
+}
@@ -1,30 +1,101 @@
-/*
- * Copyright (c) 2014 Google Inc.  All Rights Reserved.
- *
- * Licensed under the Apache License, Version 2.0 (the "License");
- * you may not use this file except in compliance with the License.
- * You may obtain a copy of the License at
- *
- *      http://www.apache.org/licenses/LICENSE-2.0
- *
- * Unless required by applicable law or agreed to in writing, software
- * distributed under the License is distributed on an "AS IS" BASIS,
- * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
- * See the License for the specific language governing permissions and
- * limitations under the License.
- */
-
-package uk.org.ngo.squeezer.test.util;
-
-import junit.framework.TestCase;
-
-import uk.org.ngo.squeezer.util.ImageCache;
-
-public class ImageCacheTest extends TestCase {
-    /** Verify that hashKeyForDisk returns correct MD5 checksums. */
-    public void testHashKeyForDisk() {
-        assertEquals("acbd18db4cc2f85cedef654fccc4a4d8", ImageCache.hashKeyForDisk("foo"));
-        assertEquals("37b51d194a7513e45b56f6524f2d51f2", ImageCache.hashKeyForDisk("bar"));
-        assertEquals("73feffa4b7f6bb68e44cf984c85f6e88", ImageCache.hashKeyForDisk("baz"));
-    }
-}
+/*
+ * Copyright (c) 2014 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.test.util;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+
+import uk.org.ngo.squeezer.protocol.Metrics;
+import uk.org.ngo.squeezer.util.ImageCache;
+
+public class ImageCacheTest extends TestCase {
+
+    private ImageCache imageCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        File dir = new File(System.getProperty("java.io.tmpdir"), "ImageCacheTest");
+        imageCache = new ImageCache(new ImageCache.ImageCacheParams(dir));
+        imageCache.initDiskCache();
+
+        // Nothing left over from an earlier run.
+        imageCache.clearCache();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        imageCache.clearCache();
+        imageCache.close();
+        super.tearDown();
+    }
+
+    private static Bitmap bitmap(Bitmap.Config config, int color) {
+        Bitmap bitmap = Bitmap.createBitmap(16, 16, config);
+        bitmap.eraseColor(color);
+        return bitmap;
+    }
+
+    /** Verify that hashKeyForDisk returns correct MD5 checksums. */
+    public void testHashKeyForDisk() {
+        assertEquals("acbd18db4cc2f85cedef654fccc4a4d8", ImageCache.hashKeyForDisk("foo"));
+        assertEquals("37b51d194a7513e45b56f6524f2d51f2", ImageCache.hashKeyForDisk("bar"));
+        assertEquals("73feffa4b7f6bb68e44cf984c85f6e88", ImageCache.hashKeyForDisk("baz"));
+    }
+
+    /** Keys with the same image, e.g. the tracks of an album, share one copy on disk. */
+    public void testSameImageIsStoredOnce() {
+        Metrics.Counter merged = Metrics.counter("image.disk_cache_duplicates_merged");
+        long mergedBefore = merged.get();
+        Bitmap bitmap = bitmap(Bitmap.Config.RGB_565, Color.RED);
+
+        imageCache.addBitmapToDiskCache("track1", bitmap);
+        imageCache.addBitmapToDiskCache("track2", bitmap);
+
+        assertEquals(mergedBefore + 1, merged.get());
+        assertNotNull(imageCache.getBitmapFromDiskCache("track1"));
+        assertNotNull(imageCache.getBitmapFromDiskCache("track2"));
+    }
+
+    public void testDifferentImagesAreStoredApart() {
+        imageCache.addBitmapToDiskCache("track1", bitmap(Bitmap.Config.RGB_565, Color.RED));
+        imageCache.addBitmapToDiskCache("track2", bitmap(Bitmap.Config.RGB_565, Color.BLUE));
+
+        // The images are compressed lossily, so the colours are only close.
+        int red = imageCache.getBitmapFromDiskCache("track1").getPixel(8, 8);
+        int blue = imageCache.getBitmapFromDiskCache("track2").getPixel(8, 8);
+        assertTrue(Color.red(red) > Color.blue(red));
+        assertTrue(Color.blue(blue) > Color.red(blue));
+    }
+
+    /** Transparent images, e.g. plugin icons, don't come back with black backgrounds. */
+    public void testTransparencyIsKept() {
+        imageCache.addBitmapToDiskCache("icon", bitmap(Bitmap.Config.ARGB_8888, Color.TRANSPARENT));
+
+        Bitmap bitmap = imageCache.getBitmapFromDiskCache("icon");
+        assertTrue(bitmap.hasAlpha());
+        assertEquals(0, Color.alpha(bitmap.getPixel(8, 8)));
+    }
+
+    public void testMissingKey() {
+        assertNull(imageCache.getBitmapFromDiskCache("missing"));
+    }
+}
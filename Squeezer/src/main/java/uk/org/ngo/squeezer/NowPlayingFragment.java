@@ -58,10 +58,13 @@ import android.widget.SeekBar.OnSeekBarChangeListener;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import com.google.common.base.Objects;
+
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
 import uk.org.ngo.squeezer.dialog.AboutDialog;
 import uk.org.ngo.squeezer.dialog.AuthenticationDialog;
@@ -70,6 +73,7 @@ import uk.org.ngo.squeezer.framework.BaseActivity;
 import uk.org.ngo.squeezer.framework.HasUiThread;
 import uk.org.ngo.squeezer.itemlist.AlbumListActivity;
 import uk.org.ngo.squeezer.itemlist.CurrentPlaylistActivity;
+import uk.org.ngo.squeezer.itemlist.IServiceItemListCallback;
 import uk.org.ngo.squeezer.itemlist.PlayerListActivity;
 import uk.org.ngo.squeezer.itemlist.SongListActivity;
 import uk.org.ngo.squeezer.model.Artist;
@@ -86,7 +90,8 @@ import uk.org.ngo.squeezer.service.IServiceMusicChangedCallback;
 import uk.org.ngo.squeezer.service.IServicePlayersCallback;
 import uk.org.ngo.squeezer.service.ISqueezeService;
 import uk.org.ngo.squeezer.service.SqueezeService;
-import uk.org.ngo.squeezer.util.ImageCache.ImageCacheParams;
+import uk.org.ngo.squeezer.util.AlbumArtwork;
+import uk.org.ngo.squeezer.util.ArtworkScheduler;
 import uk.org.ngo.squeezer.util.ImageFetcher;
 
 public class NowPlayingFragment extends Fragment implements
@@ -98,6 +103,15 @@ public class NowPlayingFragment extends Fragment implements
 
     @Nullable private ISqueezeService mService = null;
 
+    /**
+     * The player list and active player currently shown in the action bar. The service hands
+     * out immutable snapshots of the player list, so an unchanged reference means there is
+     * nothing to redraw.
+     */
+    @Nullable private List<Player> mDisplayedPlayers;
+
+    @Nullable private Player mDisplayedActivePlayer;
+
     private TextView albumText;
 
     private TextView artistText;
@@ -156,10 +170,8 @@ public class NowPlayingFragment extends Fragment implements
      */
     private ImageFetcher mImageFetcher;
 
-    /**
-     * ImageCache parameters for the album art.
-     */
-    private ImageCacheParams mImageCacheParams;
+    /** The last order for the artwork of the upcoming tracks, null if there is none. */
+    @Nullable private UpcomingArtworkCallback mUpcomingArtworkCallback;
 
     private final Handler uiThreadHandler = new UiThreadHandler(this);
 
@@ -309,12 +321,7 @@ public class NowPlayingFragment extends Fragment implements
             mImageFetcher = new ImageFetcher(mActivity, iconSize);
         }
 
-        // TODO: Clean this up.  I think a better approach is to create the cache
-        // in the activity that hosts the fragment, and make the cache available to
-        // the fragment (or, make the cache a singleton across the whole app).
         mImageFetcher.setLoadingImage(R.drawable.icon_pending_artwork);
-        mImageCacheParams = new ImageCacheParams(mActivity, "artwork");
-        mImageCacheParams.setMemCacheSizePercent(mActivity, 0.12f);
 
         albumArt = (ImageView) v.findViewById(R.id.album);
         trackText = (TextView) v.findViewById(R.id.trackname);
@@ -575,6 +582,12 @@ public class NowPlayingFragment extends Fragment implements
             return;
         }
 
+        if (players == mDisplayedPlayers && activePlayer == mDisplayedActivePlayer) {
+            return;
+        }
+        mDisplayedPlayers = players;
+        mDisplayedActivePlayer = activePlayer;
+
         // Only include players that are connected to the server.
         ArrayList<Player> connectedPlayers = new ArrayList<Player>();
         for (Player player : players) {
@@ -653,8 +666,6 @@ public class NowPlayingFragment extends Fragment implements
         super.onResume();
         Log.d(TAG, "onResume...");
 
-        mImageFetcher.addImageCache(mActivity.getSupportFragmentManager(), mImageCacheParams);
-
         // Start it and have it run forever (until it shuts itself down).
         // This is required so swapping out the activity (and unbinding the
         // service connection in onDestroy) doesn't cause the service to be
@@ -708,6 +719,7 @@ public class NowPlayingFragment extends Fragment implements
                 return;
 
             updateSongInfo(playerState.getCurrentSong());
+            prefetchUpcomingArtwork(playerState);
             updatePlayPauseIcon(playerState.getPlayStatus());
             updateTimeDisplayTo(playerState.getCurrentTimeSecond(),
                     playerState.getCurrentSongDuration());
@@ -787,7 +799,120 @@ public class NowPlayingFragment extends Fragment implements
             return;
         }
 
-        mImageFetcher.loadImage(song.getArtworkUrl(mService), albumArt);
+        mImageFetcher.loadImage(getArtwork(song), albumArt);
+    }
+
+    /**
+     * @return The data to load the song's artwork with, keyed by its album if the song is from
+     * the server's library.
+     */
+    private Object getArtwork(Song song) {
+        String artworkUrl = song.getArtworkUrl(mService);
+        return song.isRemote() ? artworkUrl : AlbumArtwork.of(artworkUrl, song.getAlbumId());
+    }
+
+    /**
+     * Orders the artwork of the {@link R.integer#ArtworkPrefetchTracks} tracks after the current
+     * one in the player's playlist, and prefetches it, so it's shown straight away when the
+     * track changes.
+     * <p/>
+     * Nothing is ordered if the tracks were already ordered for the same playlist. An earlier
+     * order that hasn't been answered yet is cancelled.
+     */
+    // Should only be called from the UI thread.
+    private void prefetchUpcomingArtwork(PlayerState playerState) {
+        if (mService == null || mImageFetcher == null) {
+            return;
+        }
+
+        UpcomingArtworkCallback callback = new UpcomingArtworkCallback(playerState.getPlayerId(),
+                playerState.getPlaylistVersion(), playerState.getCurrentPlaylistIndex() + 1);
+        if (callback.equals(mUpcomingArtworkCallback)) {
+            return;
+        }
+
+        cancelUpcomingArtwork();
+        mUpcomingArtworkCallback = callback;
+        mService.currentPlaylistArtwork(callback.mFirst,
+                getResources().getInteger(R.integer.ArtworkPrefetchTracks), callback);
+    }
+
+    // Should only be called from the UI thread.
+    private void cancelUpcomingArtwork() {
+        if (mUpcomingArtworkCallback != null) {
+            if (mService != null) {
+                mService.cancelItemListRequests(mUpcomingArtworkCallback);
+            }
+            mUpcomingArtworkCallback = null;
+        }
+    }
+
+    /**
+     * Prefetches the artwork for the tracks it receives, unless it has been replaced by a newer
+     * order. The track after the current one is prefetched first.
+     * <p/>
+     * Orders for the same tracks of the same playlist are equal.
+     */
+    private class UpcomingArtworkCallback implements IServiceItemListCallback<Song> {
+        private final String mPlayerId;
+
+        /** See {@link PlayerState#getPlaylistVersion()}. */
+        private final int mPlaylistVersion;
+
+        /** Playlist position of the track after the current one. */
+        private final int mFirst;
+
+        UpcomingArtworkCallback(String playerId, int playlistVersion, int first) {
+            mPlayerId = playerId;
+            mPlaylistVersion = playlistVersion;
+            mFirst = first;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof UpcomingArtworkCallback)) {
+                return false;
+            }
+            UpcomingArtworkCallback other = (UpcomingArtworkCallback) o;
+            return Objects.equal(mPlayerId, other.mPlayerId)
+                    && mPlaylistVersion == other.mPlaylistVersion && mFirst == other.mFirst;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(mPlayerId, mPlaylistVersion, mFirst);
+        }
+
+        @Override
+        public void onItemsReceived(int count, final int start, Map<String, String> parameters,
+                final List<Song> items, Class<Song> dataType) {
+            uiThreadHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mService == null || mImageFetcher == null || !isAdded()
+                            || mUpcomingArtworkCallback != UpcomingArtworkCallback.this) {
+                        return;
+                    }
+
+                    // The scheduler starts the newest job of a priority first, so go backwards.
+                    for (int i = items.size() - 1; i >= 0; i--) {
+                        Song song = items.get(i);
+                        if (song != null && song.hasArtwork()) {
+                            mImageFetcher.prefetch(getArtwork(song),
+                                    ArtworkScheduler.PRIORITY_NEXT_TRACK);
+                        }
+                    }
+                }
+            });
+        }
+
+        /**
+         * Each order is its own client, so it can be cancelled on its own.
+         */
+        @Override
+        public Object getClient() {
+            return this;
+        }
     }
 
     private boolean setSecondsElapsed(int seconds) {
@@ -849,7 +974,7 @@ public class NowPlayingFragment extends Fragment implements
         Log.d(TAG, "onPause...");
 
         clearConnectingDialog();
-        mImageFetcher.closeCache();
+        mImageFetcher.flushCache();
 
         if (new Preferences(mActivity).isAutoConnect()) {
             mActivity.unregisterReceiver(broadcastReceiver);
@@ -859,6 +984,11 @@ public class NowPlayingFragment extends Fragment implements
             mService.cancelSubscriptions(this);
             mRegisteredCallbacks = false;
         }
+        cancelUpcomingArtwork();
+
+        // Redraw the player list when we're resumed.
+        mDisplayedPlayers = null;
+        mDisplayedActivePlayer = null;
 
         super.onPause();
     }
@@ -1189,6 +1319,7 @@ public class NowPlayingFragment extends Fragment implements
             uiThreadHandler.post(new Runnable() {
                 public void run() {
                     updateSongInfo(playerState.getCurrentSong());
+                    prefetchUpcomingArtwork(playerState);
                 }
             });
         }
@@ -78,6 +78,12 @@ public final class Preferences {
     // Preferred UI theme.
     public static final String KEY_ON_THEME_SELECT_ACTION = "squeezer.theme";
 
+    // Not a stored preference, shows the performance metrics and protocol log.
+    public static final String KEY_DEBUG_METRICS = "squeezer.debug.metrics";
+
+    // Capture the conversation with the server to a file?
+    public static final String KEY_DEBUG_CAPTURE = "squeezer.debug.capture";
+
     private final Context context;
     private final SharedPreferences sharedPreferences;
 
@@ -16,10 +16,12 @@
 
 package uk.org.ngo.squeezer;
 
+import android.app.AlertDialog;
 import android.app.Dialog;
 import android.content.ActivityNotFoundException;
 import android.content.ComponentName;
 import android.content.Context;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.ServiceConnection;
 import android.content.SharedPreferences;
@@ -32,6 +34,7 @@ import android.preference.CheckBoxPreference;
 import android.preference.ListPreference;
 import android.preference.Preference;
 import android.preference.Preference.OnPreferenceChangeListener;
+import android.preference.Preference.OnPreferenceClickListener;
 import android.preference.PreferenceActivity;
 import android.util.Log;
 import android.view.View;
@@ -115,6 +118,59 @@ public class SettingsActivity extends PreferenceActivity implements
         CheckBoxPreference startSqueezePlayerPref = (CheckBoxPreference) findPreference(
                 Preferences.KEY_SQUEEZEPLAYER_ENABLED);
         startSqueezePlayerPref.setChecked(preferences.getBoolean(Preferences.KEY_SQUEEZEPLAYER_ENABLED, true));
+
+        findPreference(Preferences.KEY_DEBUG_METRICS).setOnPreferenceClickListener(
+                new OnPreferenceClickListener() {
+                    @Override
+                    public boolean onPreferenceClick(Preference preference) {
+                        showMetrics();
+                        return true;
+                    }
+                });
+    }
+
+    /**
+     * Show the service's performance metrics and protocol log, with an option to share the
+     * metrics (e.g., to attach them to a bug report). The protocol log is only shown, it's not
+     * shared with other apps.
+     */
+    private void showMetrics() {
+        if (service == null) {
+            Toast.makeText(this, R.string.settings_metrics_not_connected, Toast.LENGTH_SHORT)
+                    .show();
+            return;
+        }
+
+        StringBuilder metrics = new StringBuilder();
+        for (String line : service.getMetrics()) {
+            metrics.append(line).append('\n');
+        }
+        final String report = metrics.toString();
+
+        StringBuilder text = new StringBuilder(report);
+        text.append('\n').append(getString(R.string.settings_metrics_protocol_log)).append('\n');
+        for (String line : service.getProtocolLog()) {
+            text.append(line).append('\n');
+        }
+
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.settings_metrics_title)
+                .setMessage(text)
+                .setPositiveButton(R.string.settings_metrics_share,
+                        new DialogInterface.OnClickListener() {
+                            @Override
+                            public void onClick(DialogInterface dialog, int which) {
+                                Intent intent = new Intent(Intent.ACTION_SEND);
+                                intent.setType("text/plain");
+                                intent.putExtra(Intent.EXTRA_SUBJECT,
+                                        getString(R.string.settings_metrics_title));
+                                intent.putExtra(Intent.EXTRA_TEXT, report);
+                                startActivity(Intent.createChooser(intent,
+                                        getString(R.string.settings_metrics_share)));
+                            }
+                        })
+                .setNegativeButton(android.R.string.cancel, null)
+                .show();
     }
 
     private void fillScrobblePreferences(SharedPreferences preferences) {
@@ -1,9 +1,16 @@
 package uk.org.ngo.squeezer;
 
 
+import android.annotation.TargetApi;
 import android.app.Application;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 
+import uk.org.ngo.squeezer.util.AsyncTask;
+import uk.org.ngo.squeezer.util.BitmapPool;
+import uk.org.ngo.squeezer.util.ImageCache;
+import uk.org.ngo.squeezer.util.ImageFetcher;
+
 // Trick to make the app context useful available everywhere.
 // See http://stackoverflow.com/questions/987072/using-application-context-everywhere
 
@@ -11,12 +18,74 @@ public class Squeezer extends Application {
 
     private static Squeezer instance;
 
+    /** Share of the memory class used to cache artwork, for the whole application. */
+    private static final float ARTWORK_MEM_CACHE_PERCENT = 0.12f;
+
+    /**
+     * The artwork cache, shared by all the image fetchers. Its disk caches stay open for the life
+     * of the process.
+     */
+    private ImageCache mImageCache;
+
     public Squeezer() {
         instance = this;
     }
 
+    @Override
+    public void onCreate() {
+        super.onCreate();
+
+        ImageCache.ImageCacheParams cacheParams = new ImageCache.ImageCacheParams(this, "artwork");
+        cacheParams.setMemCacheSizePercent(this, ARTWORK_MEM_CACHE_PERCENT);
+        mImageCache = new ImageCache(cacheParams);
+
+        // Opening the disk caches includes disk access, fetches wait until they're open.
+        AsyncTask.DUAL_THREAD_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                mImageCache.initDiskCache();
+                ImageFetcher.initHttpDiskCache(Squeezer.this);
+            }
+        });
+    }
+
+    /**
+     * The artwork caches last as long as the process, which can outlive the activities when the
+     * service is running, so they are trimmed when the system asks for memory.
+     */
+    @TargetApi(14)
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            releaseArtworkMemory(0);
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            releaseArtworkMemory(0.5f);
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        releaseArtworkMemory(0);
+    }
+
+    /**
+     * Trim the artwork memory cache to a share of its size, and drop the pooled bitmaps,
+     * including the ones evicted by the trim.
+     */
+    private void releaseArtworkMemory(float fraction) {
+        mImageCache.trimMemoryCache(fraction);
+        BitmapPool.getInstance().clear();
+    }
+
     public static Context getContext() {
         return instance;
     }
+
+    public static ImageCache getImageCache() {
+        return instance.mImageCache;
+    }
 }
 
@@ -26,13 +26,12 @@ import android.widget.TextView;
 
 import com.google.common.primitives.Longs;
 
-import java.io.UnsupportedEncodingException;
-import java.net.URLDecoder;
-import java.net.URLEncoder;
 import java.util.Formatter;
 import java.util.Locale;
 import java.util.concurrent.atomic.AtomicReference;
 
+import uk.org.ngo.squeezer.protocol.Tokens;
+
 public class Util {
 
     private Util() {
@@ -59,26 +58,15 @@ public class Util {
         return false;
     }
 
+    /**
+     * @see Tokens#parseDecimalInt(String, int)
+     */
     public static int parseDecimalInt(String value, int defaultValue) {
-        if (value == null) {
-            return defaultValue;
-        }
-        int decimalPoint = value.indexOf('.');
-        if (decimalPoint != -1) {
-            value = value.substring(0, decimalPoint);
-        }
-        if (value.length() == 0) {
-            return defaultValue;
-        }
-        try {
-            return Integer.parseInt(value);
-        } catch (NumberFormatException e) {
-            return defaultValue;
-        }
+        return Tokens.parseDecimalInt(value, defaultValue);
     }
 
     public static int parseDecimalIntOrZero(String value) {
-        return parseDecimalInt(value, 0);
+        return Tokens.parseDecimalIntOrZero(value);
     }
 
     private static final StringBuilder sFormatBuilder = new StringBuilder();
@@ -108,19 +96,11 @@ public class Util {
     }
 
     public static String encode(String string) {
-        try {
-            return URLEncoder.encode(string, "UTF-8").replace("+", "%20");
-        } catch (UnsupportedEncodingException e) {
-            return "";
-        }
+        return Tokens.encode(string);
     }
 
     public static String decode(String string) {
-        try {
-            return URLDecoder.decode(string, "UTF-8");
-        } catch (UnsupportedEncodingException e) {
-            return "";
-        }
+        return Tokens.decode(string);
     }
 
     public static View getSpinnerItemView(Context context, View convertView, ViewGroup parent,
@@ -225,6 +225,13 @@ public abstract class BaseItemView<T extends Item> implements ItemView<T> {
         viewHolder.text1.setText(item.getName());
     }
 
+    /**
+     * Does nothing, items with artwork should override this.
+     */
+    @Override
+    public void prefetchArtwork(T item, ImageFetcher imageFetcher) {
+    }
+
     /**
      * Returns a view suitable for displaying the "Loading..." text.
      * <p/>
@@ -38,7 +38,9 @@ import java.util.Map;
 
 import uk.org.ngo.squeezer.R;
 import uk.org.ngo.squeezer.itemlist.IServiceItemListCallback;
+import uk.org.ngo.squeezer.itemlist.IServiceSectionsCallback;
 import uk.org.ngo.squeezer.service.ISqueezeService;
+import uk.org.ngo.squeezer.util.BitmapPool;
 import uk.org.ngo.squeezer.util.RetainFragment;
 
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -86,6 +88,11 @@ public abstract class BaseListActivity<T extends Item> extends ItemListActivity
      */
     private RetainFragment mRetainFragment;
 
+    /**
+     * Receives the sections of the current list, null if they haven't been ordered.
+     */
+    private SectionsCallback mSectionsCallback;
+
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -115,6 +122,7 @@ public abstract class BaseListActivity<T extends Item> extends ItemListActivity
                 final ImageView imageView = (ImageView) view.findViewById(R.id.icon);
                 if (imageView != null) {
                     imageView.setImageBitmap(null);
+                    BitmapPool.getInstance().setDisplayed(imageView, null);
                 }
             }
         });
@@ -254,6 +262,24 @@ public abstract class BaseListActivity<T extends Item> extends ItemListActivity
         loadingProgress.setVisibility(View.VISIBLE);
 
         getItemAdapter().clear();
+        mSectionsCallback = null;
+    }
+
+    /**
+     * Subclasses whose lists are sorted by name call this when they order the first page, and
+     * order the sections of the list with the returned callback.
+     * <p/>
+     * Sections that arrive after the list has been cleared, e.g. because the sort order changed,
+     * are ignored.
+     *
+     * @return A callback to receive the sections of the list, or null if they have already been
+     * ordered.
+     */
+    protected IServiceSectionsCallback newSectionsCallback() {
+        if (mSectionsCallback != null || getItemAdapter().getSectionIndex() != null) {
+            return null;
+        }
+        return mSectionsCallback = new SectionsCallback();
     }
 
     /**
@@ -276,6 +302,9 @@ public abstract class BaseListActivity<T extends Item> extends ItemListActivity
                 mListView.setVisibility(View.VISIBLE);
                 loadingProgress.setVisibility(View.GONE);
                 getItemAdapter().update(count, start, items);
+                getItemAdapter().prefetchArtwork(start, items, mListView.getFirstVisiblePosition(),
+                        mListView.getLastVisiblePosition());
+                maybeOrderNextPage(mListView);
             }
         });
     }
@@ -290,10 +319,33 @@ public abstract class BaseListActivity<T extends Item> extends ItemListActivity
         return this;
     }
 
+    /**
+     * Passes the sections of the list to the adapter, unless the list has been cleared since they
+     * were ordered.
+     */
+    private class SectionsCallback implements IServiceSectionsCallback {
+        @Override
+        public void onSectionsReceived(final SectionIndex sectionIndex) {
+            getUIThreadHandler().post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mSectionsCallback == SectionsCallback.this) {
+                        getItemAdapter().setSectionIndex(sectionIndex);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public Object getClient() {
+            return BaseListActivity.this;
+        }
+    }
+
     protected class ScrollListener extends ItemListActivity.ScrollListener {
 
         ScrollListener() {
-            super();
+            super(true);
         }
 
         /**
@@ -24,10 +24,17 @@ import android.view.View.OnCreateContextMenuListener;
 import android.view.ViewGroup;
 import android.widget.AdapterView.AdapterContextMenuInfo;
 import android.widget.BaseAdapter;
+import android.widget.SectionIndexer;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
 
 import uk.org.ngo.squeezer.R;
+import uk.org.ngo.squeezer.protocol.Metrics;
 import uk.org.ngo.squeezer.util.ImageFetcher;
 
 
@@ -46,10 +53,13 @@ import uk.org.ngo.squeezer.util.ImageFetcher;
  * @see ItemView
  */
 public class ItemAdapter<T extends Item> extends BaseAdapter implements
-        OnCreateContextMenuListener {
+        OnCreateContextMenuListener, SectionIndexer {
 
     private static final String TAG = ItemAdapter.class.getSimpleName();
 
+    /** Rows shown with the "loading" text because their item hadn't been received. */
+    private static final Metrics.Counter LOADING_ROWS_SHOWN = Metrics.counter("list.loading_rows_shown");
+
     /**
      * View logic for this adapter
      */
@@ -64,6 +74,13 @@ public class ItemAdapter<T extends Item> extends BaseAdapter implements
 
     private final SparseArray<T[]> pages = new SparseArray<T[]>();
 
+    /**
+     * Positions of each item that has been received, so items can be found without ordering
+     * the pages that haven't been received yet. An item can be in the list more than once, e.g.
+     * a song in the current playlist.
+     */
+    private final Map<T, SortedSet<Integer>> positions = new HashMap<T, SortedSet<Integer>>();
+
     /**
      * This is set if the list shall start with an empty item.
      */
@@ -79,11 +96,29 @@ public class ItemAdapter<T extends Item> extends BaseAdapter implements
      */
     private final int pageSize;
 
+    /**
+     * The most pages to keep in memory, from <code>R.integer.MaxItemsInMemory</code>. When there
+     * are more, the pages farthest from {@link #lastPosition} are evicted, and ordered again if
+     * they are needed.
+     */
+    private final int maxPages;
+
+    /**
+     * The position most recently asked for by the list, taken to be where the user is.
+     */
+    private int lastPosition;
+
     /**
      * ImageFetcher for thumbnails
      */
     private final ImageFetcher mImageFetcher;
 
+    /**
+     * Sections of the list for the fast scroller, null if the list has none, or they haven't been
+     * received yet.
+     */
+    private SectionIndex sectionIndex;
+
     public int getPageSize() {
         return pageSize;
     }
@@ -104,6 +139,9 @@ public class ItemAdapter<T extends Item> extends BaseAdapter implements
         mImageFetcher = imageFetcher;
         loadingText = itemView.getActivity().getString(R.string.loading_text);
         pageSize = itemView.getActivity().getResources().getInteger(R.integer.PageSize);
+        // Always keep enough pages to fill the screen and the pages either side of it.
+        maxPages = Math.max(3, itemView.getActivity().getResources()
+                .getInteger(R.integer.MaxItemsInMemory) / pageSize);
         pages.clear();
     }
 
@@ -132,6 +170,8 @@ public class ItemAdapter<T extends Item> extends BaseAdapter implements
     public void clear() {
         this.count = (mEmptyItem ? 1 : 0);
         pages.clear();
+        positions.clear();
+        sectionIndex = null;
     }
 
     @Override
@@ -149,8 +189,12 @@ public class ItemAdapter<T extends Item> extends BaseAdapter implements
             return mItemView.getAdapterView(convertView, parent, item, mImageFetcher);
         }
 
-        return mItemView.getAdapterView(convertView, parent,
-                (position == 0 && mEmptyItem ? "" : loadingText));
+        if (position == 0 && mEmptyItem) {
+            return mItemView.getAdapterView(convertView, parent, "");
+        }
+
+        LOADING_ROWS_SHOWN.increment();
+        return mItemView.getAdapterView(convertView, parent, loadingText);
     }
 
     public String getQuantityString(int size) {
@@ -223,18 +267,51 @@ public class ItemAdapter<T extends Item> extends BaseAdapter implements
     private void setItems(int start, List<T> items) {
         T[] page = getPage(start);
         int offset = start % pageSize;
+        int position = start;
         for (T item : items) {
             if (offset >= pageSize) {
                 start += offset;
                 page = getPage(start);
                 offset = 0;
             }
-            page[offset++] = item;
+            setItem(page, offset++, position++, item);
+        }
+    }
+
+    /**
+     * Store an item in a page, and keep {@link #positions} up to date.
+     */
+    private void setItem(T[] page, int offset, int position, T item) {
+        if (page[offset] != null) {
+            removePosition(page[offset], position);
+        }
+
+        page[offset] = item;
+        if (item != null) {
+            SortedSet<Integer> itemPositions = positions.get(item);
+            if (itemPositions == null) {
+                positions.put(item, itemPositions = new TreeSet<Integer>());
+            }
+            itemPositions.add(position);
+        }
+    }
+
+    /**
+     * Forget that an item is at a position, when it's replaced or dropped.
+     */
+    private void removePosition(T item, int position) {
+        SortedSet<Integer> itemPositions = positions.get(item);
+        if (itemPositions != null) {
+            itemPositions.remove(position);
+            if (itemPositions.isEmpty()) {
+                positions.remove(item);
+            }
         }
     }
 
     @Override
     public T getItem(int position) {
+        lastPosition = position;
         T item = getPage(position)[position % pageSize];
         if (item == null) {
             if (mEmptyItem) {
@@ -246,7 +323,16 @@ public class ItemAdapter<T extends Item> extends BaseAdapter implements
     }
 
     public void setItem(int position, T item) {
-        getPage(position)[position % pageSize] = item;
+        setItem(getPage(position), position % pageSize, position, item);
+    }
+
+    /**
+     * @return The item at the given position, or null if it hasn't been received. Unlike {@link
+     * #getItem(int)}, this never orders the page with the item.
+     */
+    public T peekItem(int position) {
+        T[] page = pages.get(pageNumber(position));
+        return (page != null ? page[position % pageSize] : null);
     }
 
     @Override
@@ -289,26 +375,244 @@ public class ItemAdapter<T extends Item> extends BaseAdapter implements
             onCountUpdated();
         }
         setItems(start, items);
+        evictPages();
+
+        notifyDataSetChanged();
+    }
+
+    /**
+     * Prefetch the artwork for items that aren't visible yet, so it's ready when they are
+     * scrolled to. Visible items load their artwork as they are bound.
+     *
+     * @param start The position of the first item, as passed to {@link #update(int, int, List)}.
+     * @param items The items to prefetch artwork for.
+     * @param firstVisible Position of the first visible row.
+     * @param lastVisible Position of the last visible row.
+     */
+    public void prefetchArtwork(int start, List<T> items, int firstVisible, int lastVisible) {
+        if (mImageFetcher == null) {
+            return;
+        }
+
+        int position = start + (mEmptyItem ? 1 : 0);
+        for (T item : items) {
+            if (item != null && (position < firstVisible || position > lastVisible)) {
+                mItemView.prefetchArtwork(item, mImageFetcher);
+            }
+            position++;
+        }
+    }
+
+    /**
+     * Evict the pages farthest from {@link #lastPosition} until no more than {@link #maxPages}
+     * are in memory.
+     */
+    private void evictPages() {
+        int currentPage = pageNumber(lastPosition);
+        while (pages.size() > maxPages) {
+            int farthestPage = pages.keyAt(0);
+            for (int i = 1; i < pages.size(); i++) {
+                int pageNumber = pages.keyAt(i);
+                if (Math.abs(pageNumber - currentPage) > Math.abs(farthestPage - currentPage)) {
+                    farthestPage = pageNumber;
+                }
+            }
+            evictPage(farthestPage);
+        }
+    }
+
+    /**
+     * Drop a page of items, and tell the activity the items have to be ordered again.
+     */
+    private void evictPage(int pageNumber) {
+        T[] page = pages.get(pageNumber);
+        int pageStart = pageNumber * pageSize;
+        for (int offset = 0; offset < page.length; offset++) {
+            if (page[offset] != null) {
+                removePosition(page[offset], pageStart + offset);
+            }
+        }
+        pages.remove(pageNumber);
+
+        // Positions in the activity don't include the empty item.
+        int emptyItemOffset = (mEmptyItem ? 1 : 0);
+        getActivity().forgetItems(Math.max(0, pageStart - emptyItemOffset),
+                pageStart + pageSize - 1 - emptyItemOffset);
+    }
+
+    /**
+     * Remove an item from the list, moving the items after it up, without ordering the list
+     * again.
+     *
+     * @param position Position of the item, not including the empty item.
+     */
+    public void removeItem(int position) {
+        int removed = position + (mEmptyItem ? 1 : 0);
+        if (removed >= count) {
+            invalidateItems(position);
+            return;
+        }
+
+        remapItems(PositionMapping.remove(removed, count));
+    }
+
+    /**
+     * Move an item to another position in the list, shifting the items in between, without
+     * ordering the list again.
+     *
+     * @param fromPosition Position of the item, not including the empty item.
+     * @param toPosition New position of the item, not including the empty item.
+     */
+    public void moveItem(int fromPosition, int toPosition) {
+        int offset = (mEmptyItem ? 1 : 0);
+        int from = fromPosition + offset;
+        int to = toPosition + offset;
+        if (from >= count || to >= count) {
+            invalidateItems(Math.min(fromPosition, toPosition));
+            return;
+        }
+
+        remapItems(PositionMapping.move(from, to, count));
+    }
+
+    /**
+     * Make room for items that were inserted into the list, moving the items after them down,
+     * without ordering the list again. Only the new items are ordered when they are shown.
+     *
+     * @param position Position of the first new item, not including the empty item. Positions
+     * after the end of the list mean that the items were added at the end.
+     * @param inserted Number of new items.
+     */
+    public void insertItems(int position, int inserted) {
+        int offset = (mEmptyItem ? 1 : 0);
+        remapItems(PositionMapping.insert(position + offset, inserted, count));
+    }
+
+    /**
+     * Drop the items from a position onwards, because they have changed in ways that aren't
+     * known, and order the page with the first of them again. The items before the position are
+     * kept.
+     *
+     * @param position Position of the first item that changed, not including the empty item.
+     * Positions after the end of the list mean that items were added at the end.
+     */
+    public void invalidateItems(int position) {
+        int offset = (mEmptyItem ? 1 : 0);
+        PositionMapping mapping = PositionMapping.invalidate(position + offset, count);
+        remapItems(mapping);
+
+        // The reply to this also tells us the new size of the list.
+        getActivity().maybeOrderPage(
+                pageNumber(Math.max(0, mapping.getFirstChanged() - offset)) * pageSize);
+    }
+
+    /**
+     * Move the received items to their positions after a change to the list, and tell the
+     * activity the pages from the first change onwards have to be ordered again where items are
+     * missing.
+     *
+     * @param mapping New position of each item.
+     */
+    private void remapItems(PositionMapping mapping) {
+        int newCount = mapping.getNewCount();
+        List<T> items = new ArrayList<T>();
+        List<Integer> newPositions = new ArrayList<Integer>();
+        for (int i = 0; i < pages.size(); i++) {
+            int pageStart = pages.keyAt(i) * pageSize;
+            T[] page = pages.valueAt(i);
+            for (int offset = 0; offset < page.length; offset++) {
+                if (page[offset] != null) {
+                    int newPosition = mapping.map(pageStart + offset);
+                    if (newPosition >= 0 && newPosition < newCount) {
+                        items.add(page[offset]);
+                        newPositions.add(newPosition);
+                    }
+                }
+            }
+        }
+
+        pages.clear();
+        positions.clear();
+        for (int i = 0; i < items.size(); i++) {
+            setItem(newPositions.get(i), items.get(i));
+        }
+
+        if (newCount != count) {
+            count = newCount;
+            onCountUpdated();
+        }
+
+        // Positions in the activity don't include the empty item.
+        getActivity().forgetItems(Math.max(0, mapping.getFirstChanged() - (mEmptyItem ? 1 : 0)),
+                Integer.MAX_VALUE);
 
         notifyDataSetChanged();
     }
 
+    /**
+     * Find an item among the items that have been received, without ordering any pages.
+     *
+     * @param item The item to find
+     *
+     * @return The position of the given item in this adapter, or -1 if it hasn't been received.
+     * If the item is in the list more than once, this is the lowest position it is held at.
+     */
+    public int getPosition(T item) {
+        SortedSet<Integer> itemPositions = (item != null ? positions.get(item) : null);
+        if (itemPositions == null) {
+            return -1;
+        }
+        int position = itemPositions.first();
+        return (position < getCount() ? position : -1);
+    }
+
     /**
      * @param item
      *
      * @return The position of the given item in this adapter or 0 if not found
+     * @see #getPosition(Item)
      */
     public int findItem(T item) {
-        for (int pos = 0; pos < getCount(); pos++) {
-            if (getItem(pos) == null) {
-                if (item == null) {
-                    return pos;
-                }
-            } else if (getItem(pos).equals(item)) {
-                return pos;
-            }
+        int position = getPosition(item);
+        return (position != -1 ? position : 0);
+    }
+
+    /**
+     * @return The sections of the list, or null if the list has none, or they haven't been
+     * received yet.
+     */
+    public SectionIndex getSectionIndex() {
+        return sectionIndex;
+    }
+
+    /**
+     * Set the sections of the list, so the fast scroller can jump straight to a section. Only
+     * the page at the start of the section is ordered.
+     *
+     * @param sectionIndex The sections, with positions that don't include the empty item.
+     */
+    public void setSectionIndex(SectionIndex sectionIndex) {
+        this.sectionIndex = sectionIndex;
+        notifyDataSetChanged();
+    }
+
+    @Override
+    public Object[] getSections() {
+        return (sectionIndex != null ? sectionIndex : SectionIndex.EMPTY).getSections();
+    }
+
+    @Override
+    public int getPositionForSection(int section) {
+        int position = (sectionIndex != null ? sectionIndex.getPositionForSection(section) : 0);
+        return position + (mEmptyItem ? 1 : 0);
+    }
+
+    @Override
+    public int getSectionForPosition(int position) {
+        if (sectionIndex == null) {
+            return 0;
         }
-        return 0;
+        return sectionIndex.getSectionForPosition(Math.max(0, position - (mEmptyItem ? 1 : 0)));
     }
 
     protected T[] arrayInstance(int size) {
@@ -20,6 +20,7 @@ package uk.org.ngo.squeezer.framework;
 import android.content.res.Resources;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.util.Log;
 import android.view.MotionEvent;
@@ -27,15 +28,17 @@ import android.view.View;
 import android.widget.AbsListView;
 import android.widget.AbsListView.OnScrollListener;
 
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Set;
 import java.util.Stack;
 
 import uk.org.ngo.squeezer.R;
 import uk.org.ngo.squeezer.menu.BaseMenuFragment;
 import uk.org.ngo.squeezer.menu.MenuFragment;
+import uk.org.ngo.squeezer.protocol.Metrics;
 import uk.org.ngo.squeezer.service.ISqueezeService;
-import uk.org.ngo.squeezer.util.ImageCache;
 import uk.org.ngo.squeezer.util.ImageFetcher;
 import uk.org.ngo.squeezer.util.RetainFragment;
 
@@ -61,11 +64,42 @@ public abstract class ItemListActivity extends BaseActivity {
 
     /**
      * The pages that have been requested from the server.
+     * <p/>
+     * Pages are removed when they are received, on the thread that delivers the items.
+     */
+    private final Set<Integer> mOrderedPages = Collections.synchronizedSet(new HashSet<Integer>());
+
+    /**
+     * The pages ordered by the prefetcher while the list is scrolling, that haven't been
+     * received yet. A subset of {@link #mOrderedPages}.
+     * <p/>
+     * Pages are removed when they are received, on the thread that delivers the items, so
+     * iterate while synchronized on the set.
+     */
+    private final Set<Integer> mPrefetchedPages
+            = Collections.synchronizedSet(new HashSet<Integer>());
+
+    /**
+     * The most pages the prefetcher may have ordered and not received at any time, so a fling
+     * through a long list doesn't flood the connection with orders the user never sees.
+     */
+    private static final int MAX_PREFETCHED_PAGES = 3;
+
+    /**
+     * How far ahead the prefetcher looks, in milliseconds of scrolling at the current velocity.
+     * Roughly the time it takes to order and receive a page.
      */
-    private final Set<Integer> mOrderedPages = new HashSet<Integer>();
+    private static final long PREFETCH_HORIZON_MS = 750;
+
+    private static final Metrics.Counter PAGES_PREFETCHED = Metrics.counter("list.pages_prefetched");
+
+    private static final Metrics.Counter PREFETCHES_CANCELLED = Metrics.counter("list.prefetches_cancelled");
 
     /**
-     * The pages that have been received from the server
+     * The pages that have been received from the server, and are still held by the adapter.
+     * <p/>
+     * Pages are added on the thread that delivers the items, and removed on the main thread when
+     * the adapter evicts them, so iterate while synchronized on the set.
      */
     private Set<Integer> mReceivedPages;
 
@@ -91,11 +125,6 @@ public abstract class ItemListActivity extends BaseActivity {
      */
     public static final String TAG_IMAGE_FETCHER = "imageFetcher";
 
-    /**
-     * ImageCache parameters for the album art.
-     */
-    private ImageCache.ImageCacheParams mImageCacheParams;
-
     /* Fragment to retain information across orientation changes. */
     private RetainFragment mRetainFragment;
 
@@ -112,18 +141,11 @@ public abstract class ItemListActivity extends BaseActivity {
         //noinspection unchecked
         mReceivedPages = (Set<Integer>) mRetainFragment.get(TAG_RECEIVED_PAGES);
         if (mReceivedPages == null) {
-            mReceivedPages = new HashSet<Integer>();
+            mReceivedPages = Collections.synchronizedSet(new HashSet<Integer>());
             mRetainFragment.put(TAG_RECEIVED_PAGES, mReceivedPages);
         }
     }
 
-    @Override
-    public void onResume() {
-        super.onResume();
-
-        getImageFetcher().addImageCache(getSupportFragmentManager(), mImageCacheParams);
-    }
-
     @Override
     protected void onServiceConnected(@NonNull ISqueezeService service) {
         super.onServiceConnected(service);
@@ -137,7 +159,7 @@ public abstract class ItemListActivity extends BaseActivity {
     @Override
     public void onPause() {
         if (mImageFetcher != null) {
-            mImageFetcher.closeCache();
+            mImageFetcher.flushCache();
         }
 
         // Any items coming in after callbacks have been unregistered are discarded.
@@ -164,17 +186,11 @@ public abstract class ItemListActivity extends BaseActivity {
                 resources.getDimensionPixelSize(R.dimen.album_art_icon_width));
     }
 
-    protected void createImageCacheParams() {
-        mImageCacheParams = new ImageCache.ImageCacheParams(this, "artwork");
-        mImageCacheParams.setMemCacheSizePercent(this, 0.12f);
-    }
-
     public ImageFetcher getImageFetcher() {
         if (mImageFetcher == null) {
             mImageFetcher = (ImageFetcher) mRetainFragment.get(TAG_IMAGE_FETCHER);
             if (mImageFetcher == null) {
                 mImageFetcher = createImageFetcher();
-                createImageCacheParams();
                 mRetainFragment.put(TAG_IMAGE_FETCHER, mImageFetcher);
             }
         }
@@ -226,6 +242,104 @@ public abstract class ItemListActivity extends BaseActivity {
         }
     }
 
+    /**
+     * Order the pages the user is about to scroll to.
+     * <p/>
+     * Called while the list is scrolling, when {@link #maybeOrderPage(int)} doesn't order
+     * anything. Orders the pages from the visible rows up to where the list will be in {@link
+     * #PREFETCH_HORIZON_MS} at the given velocity, nearest first, while fewer than {@link
+     * #MAX_PREFETCHED_PAGES} prefetched pages are outstanding.
+     * <p/>
+     * Prefetched pages that have been scrolled past are forgotten, so they don't count against
+     * the limit and are ordered again if the user scrolls back. The server still sends them, and
+     * they are stored as usual when they arrive.
+     *
+     * @param firstVisible Position of the first visible row.
+     * @param visibleCount Number of visible rows.
+     * @param totalCount Number of rows in the list.
+     * @param velocity Scroll velocity in rows per millisecond, negative when scrolling up.
+     */
+    public void prefetchPages(int firstVisible, int visibleCount, int totalCount, float velocity) {
+        ISqueezeService service = getService();
+        if (service == null || totalCount == 0) {
+            return;
+        }
+
+        int lastVisible = firstVisible + visibleCount - 1;
+
+        synchronized (mPrefetchedPages) {
+            for (Iterator<Integer> it = mPrefetchedPages.iterator(); it.hasNext(); ) {
+                int pagePosition = it.next();
+                boolean passed = (velocity >= 0) ? pagePosition + mPageSize <= firstVisible
+                        : pagePosition > lastVisible;
+                if (passed) {
+                    it.remove();
+                    mOrderedPages.remove(pagePosition);
+                    PREFETCHES_CANCELLED.increment();
+                }
+            }
+        }
+
+        int lookahead = Math.max(mPageSize, (int) (Math.abs(velocity) * PREFETCH_HORIZON_MS));
+        int from;
+        int to;
+        int step;
+        if (velocity >= 0) {
+            from = (firstVisible / mPageSize) * mPageSize;
+            to = Math.min(totalCount - 1, lastVisible + lookahead);
+            step = mPageSize;
+        } else {
+            from = (lastVisible / mPageSize) * mPageSize;
+            to = Math.max(0, firstVisible - lookahead);
+            step = -mPageSize;
+        }
+
+        for (int pagePosition = from; pagePosition >= 0
+                && (step > 0 ? pagePosition <= to : pagePosition + mPageSize > to);
+                pagePosition += step) {
+            if (mPrefetchedPages.size() >= MAX_PREFETCHED_PAGES) {
+                break;
+            }
+            if (mReceivedPages.contains(pagePosition) || mOrderedPages.contains(pagePosition)) {
+                continue;
+            }
+            mOrderedPages.add(pagePosition);
+            mPrefetchedPages.add(pagePosition);
+            PAGES_PREFETCHED.increment();
+            orderPage(service, pagePosition);
+        }
+    }
+
+    /**
+     * Order the page after the last visible row, so it (and its artwork) is ready before the
+     * user scrolls to it.
+     * <p/>
+     * Does nothing while the list is scrolling, {@link #prefetchPages(int, int, int, float)}
+     * looks ahead then. The page counts as prefetched, against {@link #MAX_PREFETCHED_PAGES}.
+     *
+     * @param listView The listview with visible rows.
+     */
+    public void maybeOrderNextPage(AbsListView listView) {
+        ISqueezeService service = getService();
+        if (service == null || mListScrolling || listView.getChildCount() == 0) {
+            return;
+        }
+
+        int lastVisible = listView.getFirstVisiblePosition() + listView.getChildCount() - 1;
+        int pagePosition = (lastVisible / mPageSize + 1) * mPageSize;
+        if (pagePosition >= listView.getCount()
+                || mPrefetchedPages.size() >= MAX_PREFETCHED_PAGES
+                || mReceivedPages.contains(pagePosition)
+                || mOrderedPages.contains(pagePosition)) {
+            return;
+        }
+
+        mOrderedPages.add(pagePosition);
+        mPrefetchedPages.add(pagePosition);
+        PAGES_PREFETCHED.increment();
+        orderPage(service, pagePosition);
+    }
+
     /**
      * Orders pages that correspond to visible rows in the listview.
      * <p/>
@@ -264,6 +378,26 @@ public abstract class ItemListActivity extends BaseActivity {
             int pageStart = (start + size == count) ? start : start + size - mPageSize;
             mReceivedPages.add(pageStart);
             mOrderedPages.remove(pageStart);
+            mPrefetchedPages.remove(pageStart);
+        }
+    }
+
+    /**
+     * Forget that the pages with the given items were received, because the adapter has
+     * dropped them to save memory, or moved them after a change to the list. They are ordered
+     * again when they are needed.
+     *
+     * @param first Position of the first item that was dropped.
+     * @param last Position of the last item that was dropped.
+     */
+    public void forgetItems(int first, int last) {
+        synchronized (mReceivedPages) {
+            for (Iterator<Integer> it = mReceivedPages.iterator(); it.hasNext(); ) {
+                int pagePosition = it.next();
+                if (pagePosition <= last && pagePosition + mPageSize > first) {
+                    it.remove();
+                }
+            }
         }
     }
 
@@ -272,9 +406,10 @@ public abstract class ItemListActivity extends BaseActivity {
      */
     public void clearAndReOrderItems() {
         mOrderedPages.clear();
+        mPrefetchedPages.clear();
         mReceivedPages.clear();
-        maybeOrderPage(0);
         clearItemAdapter();
+        maybeOrderPage(0);
     }
 
     /**
@@ -282,12 +417,16 @@ public abstract class ItemListActivity extends BaseActivity {
      */
     private void cancelOrders() {
         mOrderedPages.clear();
+        mPrefetchedPages.clear();
     }
 
     /**
      * Tracks scrolling activity.
      * <p/>
-     * When the list is idle, new pages of data are fetched from the server.
+     * When the list is idle, new pages of data are fetched from the server. If prefetching is
+     * enabled, the scroll velocity is estimated while the list is scrolling, and the pages the
+     * user is about to reach are ordered ahead of time, see {@link #prefetchPages(int, int, int,
+     * float)}.
      * <p/>
      * Use a TouchListener to work around an Android bug where SCROLL_STATE_IDLE messages are not
      * delivered after SCROLL_STATE_TOUCH_SCROLL messages.
@@ -301,11 +440,37 @@ public abstract class ItemListActivity extends BaseActivity {
         private int mPrevScrollState = OnScrollListener.SCROLL_STATE_IDLE;
 
         /**
-         * Sets up the TouchListener.
+         * Order pages ahead of the scroll. Only for lists where the row positions are the item
+         * positions, i.e. not for expandable lists.
+         */
+        private final boolean mPrefetch;
+
+        /** First visible row and time of the last onScroll() call that moved the list. */
+        private int mLastFirstVisible = -1;
+
+        private long mLastScrollTime;
+
+        /** Smoothed scroll velocity, in rows per millisecond. */
+        private float mVelocity;
+
+        /**
+         * Sets up the TouchListener, without prefetching.
          * <p/>
          * Subclasses must call this.
          */
         public ScrollListener() {
+            this(false);
+        }
+
+        /**
+         * Sets up the TouchListener.
+         * <p/>
+         * Subclasses must call this.
+         *
+         * @param prefetch Whether to order pages ahead of the scroll.
+         */
+        public ScrollListener(boolean prefetch) {
+            mPrefetch = prefetch;
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ECLAIR &&
                     Build.VERSION.SDK_INT <= Build.VERSION_CODES.FROYO) {
                 mTouchListener = new TouchListener(this);
@@ -328,7 +493,12 @@ public abstract class ItemListActivity extends BaseActivity {
             switch (scrollState) {
                 case OnScrollListener.SCROLL_STATE_IDLE:
                     mListScrolling = false;
+                    mLastFirstVisible = -1;
+                    mVelocity = 0;
                     maybeOrderVisiblePages(listView);
+                    if (mPrefetch) {
+                        maybeOrderNextPage(listView);
+                    }
                     break;
 
                 case OnScrollListener.SCROLL_STATE_FLING:
@@ -340,11 +510,32 @@ public abstract class ItemListActivity extends BaseActivity {
             mPrevScrollState = scrollState;
         }
 
-        // Do not use: is not called when the scroll completes, appears to be
-        // called multiple time during a scroll, including during flinging.
+        /**
+         * Estimates the scroll velocity, and prefetches pages while the list is scrolling.
+         * <p/>
+         * Not used to detect the end of a scroll: it isn't called when the scroll completes, and
+         * is called many times during a scroll, including during flinging.
+         */
         @Override
         public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
                 int totalItemCount) {
+            if (!mPrefetch || !mListScrolling) {
+                return;
+            }
+
+            long now = SystemClock.uptimeMillis();
+            if (mLastFirstVisible != -1 && firstVisibleItem != mLastFirstVisible) {
+                long elapsed = Math.max(1, now - mLastScrollTime);
+                float velocity = (float) (firstVisibleItem - mLastFirstVisible) / elapsed;
+                // Smooth out the jitter between frames, but follow changes of direction quickly.
+                mVelocity = (Math.signum(velocity) == Math.signum(mVelocity))
+                        ? (mVelocity + velocity) / 2 : velocity;
+            }
+            if (mLastFirstVisible == -1 || firstVisibleItem != mLastFirstVisible) {
+                mLastFirstVisible = firstVisibleItem;
+                mLastScrollTime = now;
+                prefetchPages(firstVisibleItem, visibleItemCount, totalItemCount, mVelocity);
+            }
         }
 
         /**
@@ -65,6 +65,15 @@ public interface ItemView<T extends Item> {
      */
     View getAdapterView(View convertView, ViewGroup parent, T item, ImageFetcher imageFetcher);
 
+    /**
+     * Starts loading the item's artwork into the caches, so it can be shown as soon as the item
+     * scrolls into view. See {@link ImageFetcher#prefetch(Object, int)}.
+     *
+     * @param item the item that will be displayed.
+     * @param imageFetcher the {@link ImageFetcher} that will be used to display the item.
+     */
+    void prefetchArtwork(T item, ImageFetcher imageFetcher);
+
     /**
      * Gets a {@link android.view.View} suitable for displaying the supplied (static) text. See
      * {@link ItemAdapter#getView(int, View, android.view.ViewGroup)}
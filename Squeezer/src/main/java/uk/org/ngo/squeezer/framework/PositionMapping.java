@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2014 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.framework;
+
+/**
+ * Maps the position of an item before a change to a list to its position after the change, so
+ * the items that have been received can be kept without ordering the list again.
+ * <p/>
+ * Positions are adapter positions, i.e. they include the empty item if the list has one.
+ */
+public abstract class PositionMapping {
+
+    private final int newCount;
+
+    private final int firstChanged;
+
+    private PositionMapping(int newCount, int firstChanged) {
+        this.newCount = newCount;
+        this.firstChanged = firstChanged;
+    }
+
+    /**
+     * @return The new position of the item, or -1 if it is no longer in the list.
+     */
+    public abstract int map(int oldPosition);
+
+    /**
+     * @return The number of items after the change.
+     */
+    public int getNewCount() {
+        return newCount;
+    }
+
+    /**
+     * @return Position of the first item that moved or was dropped.
+     */
+    public int getFirstChanged() {
+        return firstChanged;
+    }
+
+    /**
+     * An item was removed, and the items after it moved up.
+     *
+     * @param removed Position of the item, which must be in the list.
+     * @param count Number of items before the change.
+     */
+    public static PositionMapping remove(final int removed, int count) {
+        return new PositionMapping(count - 1, removed) {
+            @Override
+            public int map(int oldPosition) {
+                return (oldPosition < removed ? oldPosition
+                        : oldPosition == removed ? -1 : oldPosition - 1);
+            }
+        };
+    }
+
+    /**
+     * An item was moved, and the items in between shifted to make room for it.
+     *
+     * @param from Position of the item, which must be in the list.
+     * @param to New position of the item, which must be in the list.
+     * @param count Number of items.
+     */
+    public static PositionMapping move(final int from, final int to, int count) {
+        return new PositionMapping(count, Math.min(from, to)) {
+            @Override
+            public int map(int oldPosition) {
+                if (oldPosition == from) {
+                    return to;
+                }
+                if (from < to && oldPosition > from && oldPosition <= to) {
+                    return oldPosition - 1;
+                }
+                if (from > to && oldPosition >= to && oldPosition < from) {
+                    return oldPosition + 1;
+                }
+                return oldPosition;
+            }
+        };
+    }
+
+    /**
+     * Items were inserted, and the items from their position onwards moved down to make room
+     * for them. Only the new items are unknown.
+     *
+     * @param position Position of the first new item. Positions after the end of the list mean
+     * that the items were added at the end.
+     * @param inserted Number of new items.
+     * @param count Number of items before the change.
+     */
+    public static PositionMapping insert(int position, final int inserted, int count) {
+        final int first = Math.min(position, count);
+        return new PositionMapping(count + inserted, first) {
+            @Override
+            public int map(int oldPosition) {
+                return (oldPosition < first ? oldPosition : oldPosition + inserted);
+            }
+        };
+    }
+
+    /**
+     * The items from a position onwards changed in ways that aren't known, so they are dropped.
+     * The items before the position keep their positions.
+     *
+     * @param first Position of the first item that changed. Positions after the end of the list
+     * mean that items were added at the end, and nothing is dropped.
+     * @param count Number of items before the change.
+     */
+    public static PositionMapping invalidate(int first, int count) {
+        final int firstDropped = Math.min(first, count);
+        return new PositionMapping(count, firstDropped) {
+            @Override
+            public int map(int oldPosition) {
+                return (oldPosition < firstDropped ? oldPosition : -1);
+            }
+        };
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2014 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package uk.org.ngo.squeezer.framework;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The sections of a sorted list, e.g. the initial letters of the albums, and the position of
+ * the first item in each section.
+ * <p/>
+ * A section starts wherever the key of an item differs from the key of the item before it, so the
+ * sections follow the order of the list as the server sorted it.
+ */
+public class SectionIndex {
+
+    public static final SectionIndex EMPTY = new SectionIndex(new String[0], new int[0]);
+
+    /** Key of the items that don't start with a letter. */
+    private static final String OTHER = "#";
+
+    private final String[] sections;
+
+    private final int[] positions;
+
+    private SectionIndex(String[] sections, int[] positions) {
+        this.sections = sections;
+        this.positions = positions;
+    }
+
+    /**
+     * @return The section names, in list order.
+     */
+    public String[] getSections() {
+        return sections;
+    }
+
+    /**
+     * @return The number of sections.
+     */
+    public int size() {
+        return sections.length;
+    }
+
+    /**
+     * @param section Index of a section.
+     *
+     * @return The position of the first item in the section. Sections outside the index are
+     * clamped to the first or last section.
+     */
+    public int getPositionForSection(int section) {
+        if (positions.length == 0) {
+            return 0;
+        }
+        return positions[Math.max(0, Math.min(section, positions.length - 1))];
+    }
+
+    /**
+     * @param position Position of an item.
+     *
+     * @return The index of the section the item is in.
+     */
+    public int getSectionForPosition(int position) {
+        int section = Arrays.binarySearch(positions, position);
+        return (section >= 0 ? section : Math.max(0, -section - 2));
+    }
+
+    /**
+     * @return The key of an item called name: its initial letter in upper case, or "#" if it
+     * doesn't start with a letter.
+     */
+    public static String keyFor(String name) {
+        if (name == null || name.length() == 0 || !Character.isLetter(name.charAt(0))) {
+            return OTHER;
+        }
+        return name.substring(0, 1).toUpperCase(Locale.getDefault());
+    }
+
+    @Override
+    public String toString() {
+        return "SectionIndex{sections=" + Arrays.toString(sections) + "}";
+    }
+
+    /**
+     * Builds a section index from the keys of the items, in list order.
+     */
+    public static class Builder {
+        private final List<String> sections = new ArrayList<String>();
+
+        private final List<Integer> positions = new ArrayList<Integer>();
+
+        private String lastKey;
+
+        private int count;
+
+        /**
+         * Add the next item in the list.
+         *
+         * @param key The key of the item, see {@link #keyFor(String)}.
+         */
+        public void add(String key) {
+            if (!key.equals(lastKey)) {
+                sections.add(key);
+                positions.add(count);
+                lastKey = key;
+            }
+            count++;
+        }
+
+        /**
+         * @return The number of items added.
+         */
+        public int getCount() {
+            return count;
+        }
+
+        public SectionIndex build() {
+            int[] positionArray = new int[positions.size()];
+            for (int i = 0; i < positionArray.length; i++) {
+                positionArray[i] = positions.get(i);
+            }
+            return new SectionIndex(sections.toArray(new String[sections.size()]), positionArray);
+        }
+    }
+}
@@ -205,6 +205,15 @@ public class AlbumListActivity extends BaseListActivity<Album>
 
         service.albums(this, start, sortOrder.name().replace("__", ""), getSearchString(),
                 artist, getYear(), getGenre(), song);
+
+        // Only the albums sorted by name have alphabetic sections.
+        if (start == 0 && sortOrder == AlbumViewDialog.AlbumsSortOrder.album) {
+            IServiceSectionsCallback sectionsCallback = newSectionsCallback();
+            if (sectionsCallback != null) {
+                service.albumSections(sectionsCallback, sortOrder.name(), getSearchString(),
+                        artist, getYear(), getGenre(), song);
+            }
+        }
     }
 
     public AlbumViewDialog.AlbumsSortOrder getSortOrder() {
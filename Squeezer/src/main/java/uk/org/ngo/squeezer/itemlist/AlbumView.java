@@ -28,6 +28,8 @@ import uk.org.ngo.squeezer.framework.ItemListActivity;
 import uk.org.ngo.squeezer.itemlist.action.PlayableItemAction;
 import uk.org.ngo.squeezer.model.Album;
 import uk.org.ngo.squeezer.model.Artist;
+import uk.org.ngo.squeezer.util.AlbumArtwork;
+import uk.org.ngo.squeezer.util.ArtworkScheduler;
 import uk.org.ngo.squeezer.util.ImageFetcher;
 
 /**
@@ -90,7 +92,16 @@ public class AlbumView extends AlbumArtView<Album> {
         if (artworkUrl == null) {
             viewHolder.icon.setImageResource(R.drawable.icon_album_noart);
         } else {
-            imageFetcher.loadImage(artworkUrl, viewHolder.icon);
+            imageFetcher.loadImage(AlbumArtwork.of(artworkUrl, item.getId()), viewHolder.icon);
+        }
+    }
+
+    @Override
+    public void prefetchArtwork(Album item, ImageFetcher imageFetcher) {
+        String artworkUrl = getAlbumArtUrl(item.getArtwork_track_id());
+        if (artworkUrl != null) {
+            imageFetcher.prefetch(AlbumArtwork.of(artworkUrl, item.getId()),
+                    ArtworkScheduler.PRIORITY_PREFETCH);
         }
     }
 
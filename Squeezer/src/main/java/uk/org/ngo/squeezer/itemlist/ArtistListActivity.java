@@ -97,6 +97,13 @@ public class ArtistListActivity extends BaseListActivity<Artist> implements
     @Override
     protected void orderPage(@NonNull ISqueezeService service, int start) {
         service.artists(this, start, getSearchString(), album, genre);
+
+        if (start == 0) {
+            IServiceSectionsCallback sectionsCallback = newSectionsCallback();
+            if (sectionsCallback != null) {
+                service.artistSections(sectionsCallback, getSearchString(), album, genre);
+            }
+        }
     }
 
     @Override
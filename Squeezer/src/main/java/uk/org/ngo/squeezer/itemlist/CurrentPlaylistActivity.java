@@ -40,6 +40,7 @@ import uk.org.ngo.squeezer.itemlist.dialog.PlaylistItemMoveDialog;
 import uk.org.ngo.squeezer.itemlist.dialog.PlaylistSaveDialog;
 import uk.org.ngo.squeezer.model.Player;
 import uk.org.ngo.squeezer.model.PlayerState;
+import uk.org.ngo.squeezer.model.PlaylistDelta;
 import uk.org.ngo.squeezer.model.Song;
 import uk.org.ngo.squeezer.service.IServiceMusicChangedCallback;
 import uk.org.ngo.squeezer.service.IServicePlayersCallback;
@@ -63,6 +64,12 @@ public class CurrentPlaylistActivity extends BaseListActivity<Song> {
 
     private int currentPlaylistIndex;
 
+    /**
+     * The version of the playlist the list shows, or -1 before the list has been ordered, see
+     * {@link PlayerState#getPlaylistVersion()}.
+     */
+    private int playlistVersion = -1;
+
     /**
      * A list adapter that highlights the view that's currently playing.
      */
@@ -152,6 +159,8 @@ public class CurrentPlaylistActivity extends BaseListActivity<Song> {
                     return true;
                 }
 
+                // Changes to the playlist are shown when the server reports them, see
+                // currentPlaylistCallback.
                 switch (menuItem.getItemId()) {
                     case R.id.play_now:
                         service.playlistIndex(index);
@@ -159,17 +168,14 @@ public class CurrentPlaylistActivity extends BaseListActivity<Song> {
 
                     case R.id.remove_from_playlist:
                         service.playlistRemove(index);
-                        clearAndReOrderItems();
                         return true;
 
                     case R.id.playlist_move_up:
                         service.playlistMove(index, index - 1);
-                        clearAndReOrderItems();
                         return true;
 
                     case R.id.playlist_move_down:
                         service.playlistMove(index, index + 1);
-                        clearAndReOrderItems();
                         return true;
 
                     case R.id.playlist_move:
@@ -244,31 +250,32 @@ public class CurrentPlaylistActivity extends BaseListActivity<Song> {
     protected void registerCallback(@NonNull ISqueezeService service) {
         super.registerCallback(service);
         player = service.getActivePlayer();
+        syncPlaylistVersion(service.getPlayerState());
         service.registerCurrentPlaylistCallback(currentPlaylistCallback);
         service.registerMusicChangedCallback(musicChangedCallback);
         service.registerPlayersCallback(playersCallback);
     }
 
+    /**
+     * Catch up with the version of the playlist, ordering the playlist again if it changed
+     * while the callbacks weren't registered.
+     */
+    private void syncPlaylistVersion(@Nullable PlayerState playerState) {
+        int version = (playerState != null ? playerState.getPlaylistVersion() : 0);
+        if (playlistVersion != -1 && playlistVersion != version) {
+            clearAndReOrderItems();
+        }
+        playlistVersion = version;
+    }
+
     private final IServiceCurrentPlaylistCallback currentPlaylistCallback
             = new IServiceCurrentPlaylistCallback() {
         @Override
-        public void onAddTracks(PlayerState playerState) {
-            getUIThreadHandler().post(new Runnable() {
-                @Override
-                public void run() {
-                    clearAndReOrderItems();
-                    getItemAdapter().notifyDataSetChanged();
-                }
-            });
-        }
-
-        public void onDelete(PlayerState playerState, int index) {
+        public void onPlaylistChanged(PlayerState playerState, final PlaylistDelta delta) {
             getUIThreadHandler().post(new Runnable() {
                 @Override
                 public void run() {
-                    // TODO: Investigate feasibility of deleting single items from the adapter.
-                    clearAndReOrderItems();
-                    getItemAdapter().notifyDataSetChanged();
+                    applyPlaylistDelta(delta);
                 }
             });
         }
@@ -279,6 +286,40 @@ public class CurrentPlaylistActivity extends BaseListActivity<Song> {
         }
     };
 
+    /**
+     * Apply a change to the playlist to the songs that have been received, so only the songs
+     * whose positions aren't known are ordered again. If a change has been missed the whole
+     * playlist is ordered again.
+     */
+    private void applyPlaylistDelta(PlaylistDelta delta) {
+        boolean missedChange = (delta.getVersion() != playlistVersion + 1);
+        playlistVersion = delta.getVersion();
+        if (missedChange || delta.getPosition() == 0
+                && delta.getType() == PlaylistDelta.Type.INVALIDATE) {
+            clearAndReOrderItems();
+            return;
+        }
+
+        ItemAdapter<Song> adapter = getItemAdapter();
+        switch (delta.getType()) {
+            case REMOVE:
+                adapter.removeItem(delta.getPosition());
+                break;
+
+            case MOVE:
+                adapter.moveItem(delta.getPosition(), delta.getToPosition());
+                break;
+
+            case INSERT:
+                adapter.insertItems(delta.getPosition(), delta.getCount());
+                break;
+
+            case INVALIDATE:
+                adapter.invalidateItems(delta.getPosition());
+                break;
+        }
+    }
+
     private final IServiceMusicChangedCallback musicChangedCallback
             = new IServiceMusicChangedCallback() {
         @Override
@@ -307,6 +348,7 @@ public class CurrentPlaylistActivity extends BaseListActivity<Song> {
                     @Override
                     public void run() {
                         player = activePlayer;
+                        playlistVersion = activePlayer.getPlayerState().getPlaylistVersion();
                         clearAndReOrderItems();
                     }
                 });
@@ -327,23 +369,42 @@ public class CurrentPlaylistActivity extends BaseListActivity<Song> {
             return;
         }
 
-        currentPlaylistIndex = service.getPlayerState().getCurrentPlaylistIndex();
+        PlayerState playerState = service.getPlayerState();
+        currentPlaylistIndex = playerState.getCurrentPlaylistIndex();
         // Initially position the list at the currently playing song.
         // Do it again once it has loaded because the newly displayed items
         // may push the current song outside the displayed area.
         if (start == 0 || (start <= currentPlaylistIndex && currentPlaylistIndex < start + items
                 .size())) {
-            selectCurrentSong(currentPlaylistIndex, start);
+            selectCurrentSong(playerState.getCurrentSong(), start);
         }
     }
 
-    private void selectCurrentSong(final int currentPlaylistIndex, final int start) {
+    /**
+     * Scroll the list to the current song.
+     * <p/>
+     * The list is normally positioned at the current playlist index. If a different song has
+     * been received at that position, e.g. because the playlist changed after the index was
+     * reported, the list is positioned where the current song was received instead. Songs that
+     * haven't been received are never ordered to find the current song.
+     */
+    private void selectCurrentSong(final Song currentSong, final int start) {
         Log.i(getTag(), "set selection(" + start + "): " + currentPlaylistIndex);
         getListView().post(new Runnable() {
             @Override
             public void run() {
+                int position = currentPlaylistIndex;
+                ItemAdapter<Song> adapter = getItemAdapter();
+                Song song = adapter.peekItem(position);
+                if (song != null && !song.equals(currentSong)) {
+                    int receivedPosition = adapter.getPosition(currentSong);
+                    if (receivedPosition != -1) {
+                        position = receivedPosition;
+                    }
+                }
+
                 // TODO: this doesn't work if the current playlist is displayed in a grid
-                ((ListView) getListView()).setSelectionFromTop(currentPlaylistIndex, 0);
+                ((ListView) getListView()).setSelectionFromTop(position, 0);
             }
         });
     }
@@ -17,9 +17,9 @@
 package uk.org.ngo.squeezer.itemlist;
 
 import uk.org.ngo.squeezer.model.PlayerState;
+import uk.org.ngo.squeezer.model.PlaylistDelta;
 import uk.org.ngo.squeezer.service.ServiceCallback;
 
 public interface IServiceCurrentPlaylistCallback extends ServiceCallback {
-    void onAddTracks(PlayerState playerState);
-    void onDelete(PlayerState playerState, int index);
+    void onPlaylistChanged(PlayerState playerState, PlaylistDelta delta);
 }
\ No newline at end of file
@@ -55,6 +55,7 @@ import uk.org.ngo.squeezer.model.Genre;
 import uk.org.ngo.squeezer.model.Song;
 import uk.org.ngo.squeezer.model.Year;
 import uk.org.ngo.squeezer.service.ISqueezeService;
+import uk.org.ngo.squeezer.util.AlbumArtwork;
 import uk.org.ngo.squeezer.util.ImageFetcher;
 
 public class SongListActivity extends BaseListActivity<Song>
@@ -214,7 +215,7 @@ public class SongListActivity extends BaseListActivity<Song>
             if (artworkUrl == null) {
                 artwork.setImageResource(R.drawable.icon_album_noart);
             } else {
-                getImageFetcher().loadImage(artworkUrl, artwork);
+                getImageFetcher().loadImage(AlbumArtwork.of(artworkUrl, album.getId()), artwork);
             }
         }
     }
@@ -277,6 +278,15 @@ public class SongListActivity extends BaseListActivity<Song>
     protected void orderPage(@NonNull ISqueezeService service, int start) {
         service.songs(this, start, sortOrder.name(), searchString, album, artist, year, genre);
 
+        // Only the songs sorted by title have alphabetic sections.
+        if (start == 0 && sortOrder == SongViewDialog.SongsSortOrder.title) {
+            IServiceSectionsCallback sectionsCallback = newSectionsCallback();
+            if (sectionsCallback != null) {
+                service.songSections(sectionsCallback, sortOrder.name(), searchString, album,
+                        artist, year, genre);
+            }
+        }
+
         boolean canPlay = (getCurrentPlaylistItem() != null);
         if (playButton != null) {
             playButton.setVisible(canPlay);
@@ -24,6 +24,8 @@ import java.util.EnumSet;
 import uk.org.ngo.squeezer.R;
 import uk.org.ngo.squeezer.framework.ItemListActivity;
 import uk.org.ngo.squeezer.model.Song;
+import uk.org.ngo.squeezer.util.AlbumArtwork;
+import uk.org.ngo.squeezer.util.ArtworkScheduler;
 import uk.org.ngo.squeezer.util.ImageFetcher;
 
 /**
@@ -51,7 +53,17 @@ public class SongViewWithArt extends SongView {
             viewHolder.icon.setImageResource(
                     item.isRemote() ? R.drawable.icon_iradio_noart : R.drawable.icon_album_noart);
         } else {
-            imageFetcher.loadImage(artworkUrl, viewHolder.icon);
+            imageFetcher.loadImage(AlbumArtwork.of(artworkUrl, item.getAlbumId()),
+                    viewHolder.icon);
+        }
+    }
+
+    @Override
+    public void prefetchArtwork(Song item, ImageFetcher imageFetcher) {
+        String artworkUrl = getAlbumArtUrl(item.getArtwork_track_id());
+        if (artworkUrl != null) {
+            imageFetcher.prefetch(AlbumArtwork.of(artworkUrl, item.getAlbumId()),
+                    ArtworkScheduler.PRIORITY_PREFETCH);
         }
     }
 
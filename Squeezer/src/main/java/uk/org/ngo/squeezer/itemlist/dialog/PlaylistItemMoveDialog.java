@@ -43,11 +43,12 @@ public class PlaylistItemMoveDialog extends BaseEditTextDialog {
             }
 
             if (playlist == null) {
+                // The current playlist is updated when the server reports the move.
                 service.playlistMove(fromIndex - 1, targetIndex - 1);
             } else {
                 service.playlistsMove(playlist, fromIndex - 1, targetIndex - 1);
+                activity.clearAndReOrderItems();
             }
-            activity.clearAndReOrderItems();
             return true;
         }
         return false;
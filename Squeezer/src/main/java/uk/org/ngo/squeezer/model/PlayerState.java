@@ -84,6 +84,8 @@ public class PlayerState implements Parcelable {
         currentSong = source.readParcelable(null);
         currentPlaylist = source.readString();
         currentPlaylistIndex = source.readInt();
+        playlistVersion = source.readInt();
+        playlistTracks = source.readInt();
         currentTimeSecond = source.readInt();
         currentSongDuration = source.readInt();
         currentVolume = source.readInt();
@@ -104,6 +106,8 @@ public class PlayerState implements Parcelable {
         dest.writeParcelable(currentSong, 0);
         dest.writeString(currentPlaylist);
         dest.writeInt(currentPlaylistIndex);
+        dest.writeInt(playlistVersion);
+        dest.writeInt(playlistTracks);
         dest.writeInt(currentTimeSecond);
         dest.writeInt(currentSongDuration);
         dest.writeInt(currentVolume);
@@ -136,6 +140,18 @@ public class PlayerState implements Parcelable {
 
     private int currentPlaylistIndex;
 
+    /**
+     * Incremented for each change to the current playlist, see {@link PlaylistDelta}. Only changed
+     * on the service's inbound thread, and read on the UI thread.
+     */
+    private volatile int playlistVersion;
+
+    /**
+     * Number of songs in the current playlist, kept up to date by status replies and playlist
+     * notifications, -1 if it isn't known.
+     */
+    private int playlistTracks = -1;
+
     private int currentTimeSecond;
 
     private int currentSongDuration;
@@ -284,6 +300,34 @@ public class PlayerState implements Parcelable {
         return true;
     }
 
+    public int getPlaylistVersion() {
+        return playlistVersion;
+    }
+
+    /**
+     * @return Number of songs in the current playlist, -1 if it isn't known.
+     */
+    public int getPlaylistTracks() {
+        return playlistTracks;
+    }
+
+    public boolean setPlaylistTracks(int value) {
+        if (value == playlistTracks)
+            return false;
+
+        playlistTracks = value;
+        return true;
+    }
+
+    /**
+     * Record a change to the current playlist.
+     *
+     * @return The new version of the playlist.
+     */
+    public int incrementPlaylistVersion() {
+        return ++playlistVersion;
+    }
+
     public int getCurrentTimeSecond() {
         return currentTimeSecond;
     }
@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2014 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package uk.org.ngo.squeezer.model;
+
+/**
+ * A change to the current playlist of a player, in terms of the positions of the songs, so a
+ * list of the songs can be updated without ordering it again.
+ * <p/>
+ * Each change has the version the playlist has after it, see
+ * {@link PlayerState#getPlaylistVersion()}. A client that sees a version other than the one after
+ * its own has missed a change, and must order the playlist again.
+ */
+public class PlaylistDelta {
+
+    public enum Type {
+        /** The song at {@link #getPosition()} was removed. */
+        REMOVE,
+
+        /** The song at {@link #getPosition()} was moved to {@link #getToPosition()}. */
+        MOVE,
+
+        /**
+         * {@link #getCount()} songs were inserted at {@link #getPosition()}, and the songs from
+         * there onwards moved down. Only the new songs must be ordered.
+         */
+        INSERT,
+
+        /**
+         * The songs from {@link #getPosition()} onwards have changed in ways that aren't known,
+         * e.g. because the playlist was shuffled, and must be ordered again.
+         */
+        INVALIDATE
+    }
+
+    /** Position for changes after the end of the playlist, e.g. songs being added. */
+    public static final int END = Integer.MAX_VALUE;
+
+    private final Type type;
+
+    private final int position;
+
+    private final int toPosition;
+
+    private final int count;
+
+    private final int version;
+
+    private PlaylistDelta(Type type, int position, int toPosition, int count, int version) {
+        this.type = type;
+        this.position = position;
+        this.toPosition = toPosition;
+        this.count = count;
+        this.version = version;
+    }
+
+    public static PlaylistDelta remove(int position, int version) {
+        return new PlaylistDelta(Type.REMOVE, position, position, 1, version);
+    }
+
+    public static PlaylistDelta move(int fromPosition, int toPosition, int version) {
+        return new PlaylistDelta(Type.MOVE, fromPosition, toPosition, 1, version);
+    }
+
+    /**
+     * @param position Where the first new song is.
+     * @param count The number of songs that were inserted.
+     */
+    public static PlaylistDelta insert(int position, int count, int version) {
+        return new PlaylistDelta(Type.INSERT, position, position, count, version);
+    }
+
+    /**
+     * @param position The first song that changed, 0 if the whole playlist changed, or
+     * {@link #END} if songs were added at the end.
+     */
+    public static PlaylistDelta invalidate(int position, int version) {
+        return new PlaylistDelta(Type.INVALIDATE, position, position, 0, version);
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public int getPosition() {
+        return position;
+    }
+
+    public int getToPosition() {
+        return toPosition;
+    }
+
+    /**
+     * @return The number of songs that were inserted or removed.
+     */
+    public int getCount() {
+        return count;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    @Override
+    public String toString() {
+        return "PlaylistDelta{" + type + ", position=" + position + ", toPosition=" + toPosition
+                + ", count=" + count + ", version=" + version + "}";
+    }
+}
@@ -29,10 +29,7 @@ import java.net.InetSocketAddress;
 import java.net.PasswordAuthentication;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
-import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
@@ -41,6 +38,7 @@ import uk.org.ngo.squeezer.R;
 import uk.org.ngo.squeezer.Squeezer;
 import uk.org.ngo.squeezer.model.Player;
 import uk.org.ngo.squeezer.model.PlayerState;
+import uk.org.ngo.squeezer.protocol.Metrics;
 
 class ConnectionState {
 
@@ -75,8 +73,8 @@ class ConnectionState {
 
     private final AtomicReference<Player> activePlayer = new AtomicReference<Player>();
 
-    /** Map Player IDs to the {@link uk.org.ngo.squeezer.model.Player} with that ID. */
-    private final Map<String, Player> mPlayers = new HashMap<String, Player>();
+    /** The players the server knows about. */
+    private final PlayerRegistry mPlayers = new PlayerRegistry();
 
     // Where we connected (or are connecting) to:
     private final AtomicReference<String> currentHost = new AtomicReference<String>();
@@ -91,6 +89,12 @@ class ConnectionState {
 
     private final AtomicReference<String[]> mediaDirs = new AtomicReference<String[]>();
 
+    /** The server's version, as reported by "version ?". */
+    private final AtomicReference<String> serverVersion = new AtomicReference<String>();
+
+    /** The server's language, as reported by "pref language ?". */
+    private final AtomicReference<String> serverLanguage = new AtomicReference<String>();
+
     private WifiManager.WifiLock wifiLock;
 
     void setWifiLock(WifiManager.WifiLock wifiLock) {
@@ -148,7 +152,12 @@ class ConnectionState {
 
         httpPort.set(null);
         activePlayer.set(null);
+        // The server forgets the players' subscriptions when the connection closes, so start
+        // afresh with the players it reports when we reconnect.
+        mPlayers.clear();
         mediaDirs.set(null);
+        serverVersion.set(null);
+        serverLanguage.set(null);
     }
 
     private void setConnectionState(final SqueezeService service, final boolean currentState,
@@ -158,7 +167,7 @@ class ConnectionState {
             isConnectInProgress.set(false);
         }
 
-        service.executor.execute(new Runnable() {
+        service.scheduler.execute(ServiceScheduler.Lane.CONTROL, new Runnable() {
             @Override
             public void run() {
                 for (IServiceConnectionCallback callback : service.mConnectionCallbacks) {
@@ -185,28 +194,42 @@ class ConnectionState {
     }
 
     @Nullable public PlayerState getPlayerState(String playerId) {
-        if (!mPlayers.containsKey(playerId))
+        Player player = mPlayers.get(playerId);
+        if (player == null)
             return null;
 
-        return mPlayers.get(playerId).getPlayerState();
+        return player.getPlayerState();
     }
 
+    /**
+     * @return An immutable snapshot of the players. It is safe to iterate over from any thread.
+     */
     List<Player> getPlayers() {
-        return new ArrayList<Player>(mPlayers.values());  // XXX: Immutable list? Return the map?
+        return mPlayers.getSnapshot().players;
     }
 
-    void clearPlayers() {
-        mPlayers.clear();
+    /**
+     * @return The version of the player list, which changes whenever a player is added or
+     *     removed, or {@link #markPlayersChanged()} is called.
+     */
+    int getPlayersVersion() {
+        return mPlayers.getSnapshot().version;
     }
 
     public void addPlayer(Player player) {
-        mPlayers.put(player.getId(), player);
+        mPlayers.put(player);
     }
 
-    void addPlayers(List<Player> players) {
-        for (Player player : players) {
-            mPlayers.put(player.getId(), player);
-        }
+    @Nullable
+    Player removePlayer(String playerId) {
+        return mPlayers.remove(playerId);
+    }
+
+    /**
+     * Record that a player's name or connection status has changed.
+     */
+    void markPlayersChanged() {
+        mPlayers.touch();
     }
 
     @Nullable
@@ -232,6 +255,22 @@ class ConnectionState {
         mediaDirs.set(dirs.split(";"));
     }
 
+    String getServerVersion() {
+        return serverVersion.get();
+    }
+
+    void setServerVersion(String version) {
+        serverVersion.set(version);
+    }
+
+    String getServerLanguage() {
+        return serverLanguage.get();
+    }
+
+    void setServerLanguage(String language) {
+        serverLanguage.set(language);
+    }
+
     void setCanFavorites(boolean value) {
         mCanFavorites.set(value);
     }
@@ -286,6 +325,11 @@ class ConnectionState {
         listeningThread.start();
     }
 
+    private static final Metrics.Counter LINES_RECEIVED = Metrics.counter("cli.lines_received");
+
+    /** Approximate, counts characters (and the line terminator) rather than bytes. */
+    private static final Metrics.Counter BYTES_RECEIVED = Metrics.counter("cli.bytes_received");
+
     private class ListeningThread extends Thread {
 
         private final SqueezeService service;
@@ -332,13 +376,9 @@ class ConnectionState {
                     }
                     return;
                 }
-                final String inputLine = line;
-                service.executor.execute(new Runnable() {
-                    @Override
-                    public void run() {
-                        service.onLineReceived(inputLine);
-                    }
-                });
+                LINES_RECEIVED.increment();
+                BYTES_RECEIVED.add(line.length() + 1);
+                service.scheduleLineReceived(line);
             }
         }
     }
@@ -367,7 +407,7 @@ class ConnectionState {
         this.password.set(password);
 
         // Start the off-thread connect.
-        service.executor.execute(new Runnable() {
+        service.scheduler.execute(ServiceScheduler.Lane.CONTROL, new Runnable() {
             @Override
             public void run() {
                 service.disconnect();
@@ -25,6 +25,7 @@ import uk.org.ngo.squeezer.framework.FilterItem;
 import uk.org.ngo.squeezer.framework.PlaylistItem;
 import uk.org.ngo.squeezer.itemlist.IServiceCurrentPlaylistCallback;
 import uk.org.ngo.squeezer.itemlist.IServiceItemListCallback;
+import uk.org.ngo.squeezer.itemlist.IServiceSectionsCallback;
 import uk.org.ngo.squeezer.itemlist.IServicePlaylistMaintenanceCallback;
 import uk.org.ngo.squeezer.model.Album;
 import uk.org.ngo.squeezer.model.Artist;
@@ -80,9 +81,15 @@ public interface ISqueezeService {
     @Nullable
     Player getActivePlayer();
 
-    // Returns all the players we know about.
+    // Returns an immutable snapshot of all the players we know about.
     List<Player> getPlayers();
 
+    // Returns the most recent lines sent to and received from the server, oldest first.
+    List<String> getProtocolLog();
+
+    // Returns a snapshot of the performance metrics, one per line.
+    List<String> getMetrics();
+
     // XXX: Delete, now that PlayerState is tracked in the player?
     PlayerState getActivePlayerState();
     PlayerState getPlayerState(String playerId);
@@ -171,8 +178,16 @@ public interface ISqueezeService {
      */
     void albums(IServiceItemListCallback<Album> callback, int start, String sortOrder, String searchString, FilterItem... filters);
 
+    /**
+     * Starts an asynchronous fetch of the sections of the album list with the same parameters,
+     * e.g. their initial letters. The supplied callback will be called when all the albums have
+     * been received.
+     */
+    void albumSections(IServiceSectionsCallback callback, String sortOrder, String searchString, FilterItem... filters);
+
     // Artist list
     void artists(IServiceItemListCallback<Artist> callback, int start, String searchString, FilterItem... filters);
+    void artistSections(IServiceSectionsCallback callback, String searchString, FilterItem... filters);
 
     // Year list
     void years(int start, IServiceItemListCallback<Year> callback);
@@ -185,7 +200,14 @@ public interface ISqueezeService {
 
     // Song list
     void songs(IServiceItemListCallback<Song> callback, int start, String sortOrder, String searchString, FilterItem... filters);
+    void songSections(IServiceSectionsCallback callback, String sortOrder, String searchString, FilterItem... filters);
     void currentPlaylist(int start, IServiceItemListCallback<Song> callback);
+
+    /**
+     * Order just enough about <code>count</code> songs of the current playlist from start to
+     * load their artwork.
+     */
+    void currentPlaylistArtwork(int start, int count, IServiceItemListCallback<Song> callback);
     void playlistSongs(int start, Playlist playlist, IServiceItemListCallback<Song> callback);
 
     // Playlists
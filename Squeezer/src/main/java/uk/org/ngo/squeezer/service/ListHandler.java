@@ -17,17 +17,17 @@
 package uk.org.ngo.squeezer.service;
 
 import java.util.List;
-import java.util.Map;
 
 import uk.org.ngo.squeezer.framework.Item;
+import uk.org.ngo.squeezer.protocol.RecordSink;
 
 /**
- * Implement this and give it to {@link CliClient#parseSqueezerList(CliClient.ExtendedQueryFormatCmd, List)} for each
+ * Implement this and give it to {@link uk.org.ngo.squeezer.protocol.ListParser} for each
  * extended query format command you wish to support. </p>
  *
  * @author Kurt Aaholst
  */
-interface ListHandler<T extends Item> {
+interface ListHandler<T extends Item> extends RecordSink {
     /**
      * @return The type of item this handler can handle
      */
@@ -37,16 +37,4 @@ interface ListHandler<T extends Item> {
      * @return The list of items received so far
      */
     public List<T> getItems();
-
-    /**
-     * Prepare for parsing an extended query format response
-     */
-    void clear();
-
-    /**
-     * Called for each item received in the current reply. Just store this internally.
-     *
-     * @param record Item data from Squeezebox Server
-     */
-    void add(Map<String, String> record);
 }
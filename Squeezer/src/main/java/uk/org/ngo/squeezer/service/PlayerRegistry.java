@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2014 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.service;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import uk.org.ngo.squeezer.model.Player;
+
+/**
+ * Copy-on-write registry of the players known to the service.
+ * <p/>
+ * Every change publishes a new immutable {@link Snapshot} with a higher version number. Readers
+ * on any thread can take the current snapshot and iterate over it without locks or copies, and
+ * can compare versions to learn whether anything changed since they last looked.
+ */
+class PlayerRegistry {
+
+    /**
+     * An immutable view of the registry at one point in time.
+     */
+    static final class Snapshot {
+        /** Incremented on every change to the registry. */
+        final int version;
+
+        /**
+         * The players, in the order they were added.
+         * <p/>
+         * Every change, including {@link #touch()}, publishes a new non-empty list instance, so an
+         * unchanged reference to a non-empty list means nothing shown has changed. All empty
+         * lists are the same instance. The {@link Player} objects are shared between snapshots
+         * and changed in place, so an old snapshot sees their current properties.
+         */
+        final ImmutableList<Player> players;
+
+        /** The players keyed by player ID. */
+        final ImmutableMap<String, Player> playersById;
+
+        private Snapshot(int version, ImmutableMap<String, Player> playersById) {
+            this.version = version;
+            this.playersById = playersById;
+            this.players = ImmutableList.copyOf(playersById.values().iterator());
+        }
+    }
+
+    private volatile Snapshot snapshot = new Snapshot(0, ImmutableMap.<String, Player>of());
+
+    @NonNull
+    Snapshot getSnapshot() {
+        return snapshot;
+    }
+
+    @Nullable
+    Player get(String playerId) {
+        return snapshot.playersById.get(playerId);
+    }
+
+    /**
+     * Add a player, replacing any player with the same ID.
+     */
+    synchronized void put(@NonNull Player player) {
+        Map<String, Player> players = new LinkedHashMap<String, Player>(snapshot.playersById);
+        players.put(player.getId(), player);
+        publish(players);
+    }
+
+    /**
+     * Remove the player with the given ID.
+     *
+     * @return The removed player, or null if there was no such player.
+     */
+    @Nullable
+    synchronized Player remove(String playerId) {
+        if (!snapshot.playersById.containsKey(playerId)) {
+            return null;
+        }
+
+        Map<String, Player> players = new LinkedHashMap<String, Player>(snapshot.playersById);
+        Player player = players.remove(playerId);
+        publish(players);
+        return player;
+    }
+
+    /**
+     * Remove all the players.
+     */
+    synchronized void clear() {
+        if (!snapshot.playersById.isEmpty()) {
+            publish(ImmutableMap.<String, Player>of());
+        }
+    }
+
+    /**
+     * Publish a new version without changing the set of players. Call this after changing the
+     * properties of a player that are shown in player lists (such as its name, or whether it is
+     * connected).
+     */
+    synchronized void touch() {
+        snapshot = new Snapshot(snapshot.version + 1, snapshot.playersById);
+    }
+
+    private void publish(Map<String, Player> players) {
+        snapshot = new Snapshot(snapshot.version + 1, ImmutableMap.copyOf(players));
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright (c) 2014 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.service;
+
+import com.crashlytics.android.Crashlytics;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+
+import uk.org.ngo.squeezer.BuildConfig;
+
+/**
+ * Keeps the last {@link #CAPACITY} raw lines sent to and received from the server in a fixed
+ * size ring buffer.
+ * <p/>
+ * Recording a line only stores a reference to it, so this is cheap enough to leave on in
+ * production builds. The lines are formatted only when the log is exported with
+ * {@link #getLines()}, or attached to a crash report by the handler installed with
+ * {@link #attachToCrashReports()}.
+ * <p/>
+ * Lines can also be captured to a file with {@link #startCapture(File)}, to be replayed later.
+ * The file is only written by the capture executor, so recording a line never waits for it.
+ * The capture file starts with a comment line (starting with <code>#</code>), then has one line
+ * for each line sent or received, of the form
+ * <pre>
+ * &lt;milliseconds since the capture started&gt;&lt;TAB&gt;SEND|RECV&lt;TAB&gt;&lt;line&gt;
+ * </pre>
+ * <p/>
+ * The arguments of <code>login</code> commands are never recorded, see {@link #redact(String)}.
+ */
+public class ProtocolLog {
+
+    /**
+     * Whether to trace the protocol to logcat. This is a compile time constant, so the tracing
+     * code (and the string building it does) is removed from release builds.
+     */
+    static final boolean TRACE = BuildConfig.DEBUG;
+
+    /** Number of lines to keep. */
+    static final int CAPACITY = 200;
+
+    /** What a <code>login</code> command is recorded as. */
+    static final String LOGIN_REDACTED = "login ******";
+
+    private final String[] lines = new String[CAPACITY];
+
+    private final long[] timestamps = new long[CAPACITY];
+
+    private final boolean[] sent = new boolean[CAPACITY];
+
+    /** Total number of lines recorded. The next line is stored at count % CAPACITY. */
+    private long count;
+
+    private boolean attachedToCrashReports;
+
+    /** Runs the writes to the capture file, one at a time, in the order they were submitted. */
+    private final Executor captureExecutor;
+
+    /**
+     * Where lines are captured to, null if they are not being captured. Only changed and written
+     * to by {@link #captureExecutor}.
+     */
+    private volatile Writer captureWriter;
+
+    /** When the current capture started, from {@link System#nanoTime()}. */
+    private volatile long captureStartNanos;
+
+    /**
+     * @param captureExecutor Writes captured lines to the capture file. Must run tasks one at a
+     *     time, in the order they were submitted.
+     */
+    ProtocolLog(Executor captureExecutor) {
+        this.captureExecutor = captureExecutor;
+    }
+
+    /**
+     * Record a line received from the server.
+     */
+    void received(String line) {
+        record(line, false);
+    }
+
+    /**
+     * Record a line sent to the server.
+     */
+    void sent(String line) {
+        record(line, true);
+    }
+
+    /**
+     * Remove the user name and password from any <code>login</code> command in the line.
+     *
+     * @param line A line sent or received, or several commands sent together, separated by
+     *     newlines.
+     *
+     * @return The line, with each <code>login</code> command replaced by {@link #LOGIN_REDACTED}.
+     */
+    public static String redact(String line) {
+        if (!line.startsWith("login ") && !line.contains("\nlogin ")) {
+            return line;
+        }
+
+        StringBuilder redacted = new StringBuilder(line.length());
+        boolean first = true;
+        for (String command : line.split("\n", -1)) {
+            if (!first) {
+                redacted.append('\n');
+            }
+            first = false;
+            redacted.append(command.startsWith("login ") ? LOGIN_REDACTED : command);
+        }
+        return redacted.toString();
+    }
+
+    private synchronized void record(String line, boolean isSent) {
+        line = redact(line);
+        int index = (int) (count % CAPACITY);
+        lines[index] = line;
+        timestamps[index] = System.currentTimeMillis();
+        sent[index] = isSent;
+        count++;
+
+        // Submitted while holding the lock, so lines are captured in the order they were recorded.
+        if (captureWriter != null) {
+            final String capturedLine = (System.nanoTime() - captureStartNanos) / 1000000
+                    + (isSent ? "\tSEND\t" : "\tRECV\t") + line + '\n';
+            captureExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    writeCapture(capturedLine);
+                }
+            });
+        }
+    }
+
+    /**
+     * Write a line to the capture file, if lines are still being captured. Runs in {@link
+     * #captureExecutor}.
+     */
+    private void writeCapture(String capturedLine) {
+        Writer writer = captureWriter;
+        if (writer == null) {
+            return;
+        }
+        try {
+            writer.write(capturedLine);
+        } catch (IOException e) {
+            // Stop capturing rather than fail on every line.
+            closeCapture();
+        }
+    }
+
+    /**
+     * Start capturing lines to the given file, replacing its contents. Stops any capture in
+     * progress. Must be called in the capture executor.
+     */
+    void startCapture(File file) throws IOException {
+        stopCapture();
+        Writer writer = new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(file), "UTF-8"), 64 * 1024);
+        writer.write("# Squeezer CLI capture, started "
+                + new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS Z", Locale.US).format(new Date())
+                + "\n");
+        captureStartNanos = System.nanoTime();
+        captureWriter = writer;
+    }
+
+    /**
+     * Stop capturing lines, and flush the lines captured so far to the file. Must be called in
+     * the capture executor.
+     */
+    void stopCapture() {
+        if (captureWriter != null) {
+            closeCapture();
+        }
+    }
+
+    boolean isCapturing() {
+        return captureWriter != null;
+    }
+
+    private void closeCapture() {
+        try {
+            captureWriter.close();
+        } catch (IOException e) {
+            // Nothing more can be done with the file.
+        }
+        captureWriter = null;
+    }
+
+    /**
+     * @return The recorded lines, oldest first, each prefixed with the time it was recorded and
+     *     whether it was sent or received.
+     */
+    public List<String> getLines() {
+        String[] linesCopy;
+        long[] timestampsCopy;
+        boolean[] sentCopy;
+        long countCopy;
+        synchronized (this) {
+            linesCopy = lines.clone();
+            timestampsCopy = timestamps.clone();
+            sentCopy = sent.clone();
+            countCopy = count;
+        }
+
+        SimpleDateFormat timeFormat = new SimpleDateFormat("HH:mm:ss.SSS", Locale.US);
+        int size = (int) Math.min(countCopy, CAPACITY);
+        List<String> result = new ArrayList<String>(size);
+        for (long i = countCopy - size; i < countCopy; i++) {
+            int index = (int) (i % CAPACITY);
+            result.add(timeFormat.format(new Date(timestampsCopy[index]))
+                    + (sentCopy[index] ? " SEND: " : " RECV: ") + linesCopy[index]);
+        }
+        return result;
+    }
+
+    /**
+     * Install an uncaught exception handler that adds the recorded lines to the crash report
+     * before passing the exception on to the previous handler.
+     */
+    synchronized void attachToCrashReports() {
+        if (attachedToCrashReports) {
+            return;
+        }
+        attachedToCrashReports = true;
+
+        final Thread.UncaughtExceptionHandler previousHandler
+                = Thread.getDefaultUncaughtExceptionHandler();
+        Thread.setDefaultUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+            @Override
+            public void uncaughtException(Thread thread, Throwable ex) {
+                try {
+                    for (String line : getLines()) {
+                        Crashlytics.log(line);
+                    }
+                } catch (Throwable ignored) {
+                    // Crashlytics may not have been started (e.g., in debug builds).
+                }
+                if (previousHandler != null) {
+                    previousHandler.uncaughtException(thread, ex);
+                }
+            }
+        });
+    }
+}
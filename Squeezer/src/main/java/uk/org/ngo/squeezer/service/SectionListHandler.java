@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2014 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package uk.org.ngo.squeezer.service;
+
+import java.util.Map;
+
+import uk.org.ngo.squeezer.framework.SectionIndex;
+import uk.org.ngo.squeezer.protocol.RecordSink;
+
+/**
+ * Keeps only the section key of each item in a list, to build a {@link SectionIndex} without
+ * building the items.
+ * <p/>
+ * The key is the <code>textkey</code> of the item if the server sends one, as that follows the
+ * server's sort order (e.g. ignoring articles), otherwise the initial letter of the item's name.
+ * <p/>
+ * Keys accumulate over all the pages of the list, so one handler is needed for each request.
+ */
+class SectionListHandler implements RecordSink {
+
+    /** The tag with the name of the items. */
+    private final String nameTag;
+
+    private final SectionIndex.Builder builder = new SectionIndex.Builder();
+
+    SectionListHandler(String nameTag) {
+        this.nameTag = nameTag;
+    }
+
+    /**
+     * Does nothing, the sections are built from every page of the list.
+     */
+    @Override
+    public void clear() {
+    }
+
+    @Override
+    public void add(Map<String, String> record) {
+        String textKey = record.get("textkey");
+        builder.add(textKey != null && textKey.length() > 0
+                ? textKey : SectionIndex.keyFor(record.get(nameTag)));
+    }
+
+    /**
+     * @return The number of items received so far.
+     */
+    int getCount() {
+        return builder.getCount();
+    }
+
+    SectionIndex getSectionIndex() {
+        return builder.build();
+    }
+}
@@ -41,4 +41,34 @@ public enum ServerString {
     public void setLocalizedString(String localizedString) {
         this.localizedString = localizedString;
     }
+
+    /**
+     * @return True if the localized string for this token has been fetched from the server (or
+     *     restored from the cache).
+     */
+    public boolean isLocalized() {
+        return localizedString != null;
+    }
+
+    /**
+     * @return True if every token has a localized string.
+     */
+    public static boolean allLocalized() {
+        for (ServerString serverString : values()) {
+            if (!serverString.isLocalized()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Forget the localized strings, e.g. before fetching them from another server, so strings
+     * from the previous server aren't mixed in.
+     */
+    public static void clearLocalized() {
+        for (ServerString serverString : values()) {
+            serverString.setLocalizedString(null);
+        }
+    }
 }
@@ -0,0 +1,239 @@
+/*
+ * Copyright (c) 2014 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.service;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the service's off-main-thread work in separate lanes, so that slow work in one lane (such
+ * as parsing a large page of songs) doesn't delay work in another (such as sending a pause
+ * command).
+ * <p/>
+ * Each lane is served by a single thread, so work submitted to a lane is run in the order it was
+ * submitted. All inbound lines go to {@link Lane#INBOUND}, so replies and notifications are
+ * handled in the order the server sent them, including the changes to the player list that they
+ * report. The player list is also cleared on disconnect, on the thread that disconnects, which is
+ * safe because the registry is copy-on-write.
+ * <p/>
+ * The lanes' threads keep running until {@link #shutdown()}.
+ */
+class ServiceScheduler {
+
+    enum Lane {
+        /** Commands sent on behalf of the user, connecting, and connection callbacks. */
+        CONTROL(Process.THREAD_PRIORITY_DEFAULT),
+
+        /**
+         * Parsing and dispatch of all server notifications and command replies, in the order
+         * they were received, and the changes to the player list they report.
+         */
+        INBOUND(Process.THREAD_PRIORITY_DEFAULT),
+
+        /** Periodic and other work that may take a while, off the inbound lane. */
+        BULK(Process.THREAD_PRIORITY_BACKGROUND),
+
+        /** Reads and writes of preferences and other local storage. */
+        DISK(Process.THREAD_PRIORITY_BACKGROUND);
+
+        private final int threadPriority;
+
+        Lane(int threadPriority) {
+            this.threadPriority = threadPriority;
+        }
+    }
+
+    /**
+     * Queue metrics for a lane.
+     */
+    static class LaneStats {
+        /** Number of tasks submitted. */
+        final AtomicLong submitted = new AtomicLong();
+
+        /** Number of tasks that have run to completion. */
+        final AtomicLong completed = new AtomicLong();
+
+        /** Largest number of tasks seen waiting in the queue. */
+        final AtomicLong maxQueueSize = new AtomicLong();
+
+        /** Total time tasks spent waiting in the queue, in milliseconds. */
+        final AtomicLong totalWaitMillis = new AtomicLong();
+
+        /** Longest time a task spent waiting in the queue, in milliseconds. */
+        final AtomicLong maxWaitMillis = new AtomicLong();
+
+        /** Total time spent running tasks, in milliseconds. */
+        final AtomicLong totalRunMillis = new AtomicLong();
+
+        private static void updateMax(AtomicLong max, long value) {
+            long current;
+            while (value > (current = max.get())) {
+                if (max.compareAndSet(current, value)) {
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            long completedCount = completed.get();
+            return "submitted=" + submitted.get()
+                    + ", completed=" + completedCount
+                    + ", maxQueueSize=" + maxQueueSize.get()
+                    + ", avgWaitMs=" + (completedCount > 0 ? totalWaitMillis.get() / completedCount : 0)
+                    + ", maxWaitMs=" + maxWaitMillis.get()
+                    + ", avgRunMs=" + (completedCount > 0 ? totalRunMillis.get() / completedCount : 0);
+        }
+    }
+
+    private final Map<Lane, ScheduledThreadPoolExecutor> executors
+            = new EnumMap<Lane, ScheduledThreadPoolExecutor>(Lane.class);
+
+    private final Map<Lane, LaneStats> stats = new EnumMap<Lane, LaneStats>(Lane.class);
+
+    ServiceScheduler() {
+        for (final Lane lane : Lane.values()) {
+            executors.put(lane, new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    return new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(lane.threadPriority);
+                            r.run();
+                        }
+                    }, "SqueezeService-" + lane.name().toLowerCase());
+                }
+            }));
+            stats.put(lane, new LaneStats());
+        }
+    }
+
+    /**
+     * Run a task in the given lane, after any tasks previously submitted to that lane.
+     */
+    void execute(Lane lane, Runnable task) {
+        ScheduledThreadPoolExecutor executor = executors.get(lane);
+        LaneStats laneStats = stats.get(lane);
+        try {
+            executor.execute(new MeasuredTask(laneStats, task));
+        } catch (RejectedExecutionException e) {
+            // The scheduler has been shut down, e.g. a line arrived as the service was destroyed.
+            return;
+        }
+        laneStats.submitted.incrementAndGet();
+        LaneStats.updateMax(laneStats.maxQueueSize, executor.getQueue().size());
+    }
+
+    /**
+     * Stop all the lanes once the tasks already submitted to them have run. Periodic tasks are
+     * cancelled, and tasks submitted later are dropped.
+     */
+    void shutdown() {
+        for (ScheduledThreadPoolExecutor executor : executors.values()) {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * @return An executor that runs tasks in the given lane, see {@link #execute(Lane, Runnable)}.
+     */
+    Executor executor(final Lane lane) {
+        return new Executor() {
+            @Override
+            public void execute(Runnable task) {
+                ServiceScheduler.this.execute(lane, task);
+            }
+        };
+    }
+
+    /**
+     * Run a task periodically in the given lane.
+     *
+     * @return The scheduled task, null if the scheduler has been shut down.
+     * @see ScheduledThreadPoolExecutor#scheduleWithFixedDelay(Runnable, long, long, TimeUnit)
+     */
+    @Nullable
+    ScheduledFuture<?> scheduleWithFixedDelay(Lane lane, final Runnable task, long initialDelay,
+            long delay, TimeUnit unit) {
+        final LaneStats laneStats = stats.get(lane);
+        try {
+            return executors.get(lane).scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    laneStats.submitted.incrementAndGet();
+                    new MeasuredTask(laneStats, task).run();
+                }
+            }, initialDelay, delay, unit);
+        } catch (RejectedExecutionException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return Queue metrics for the given lane.
+     */
+    LaneStats getStats(Lane lane) {
+        return stats.get(lane);
+    }
+
+    /**
+     * @return The number of tasks currently waiting in the given lane.
+     */
+    int getQueueSize(Lane lane) {
+        return executors.get(lane).getQueue().size();
+    }
+
+    /**
+     * Wraps a task to record how long it waited in the queue and how long it ran.
+     */
+    private static class MeasuredTask implements Runnable {
+        private final LaneStats laneStats;
+        private final Runnable task;
+        private final long submitTime = SystemClock.uptimeMillis();
+
+        MeasuredTask(LaneStats laneStats, Runnable task) {
+            this.laneStats = laneStats;
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            long startTime = SystemClock.uptimeMillis();
+            long waitMillis = startTime - submitTime;
+            laneStats.totalWaitMillis.addAndGet(waitMillis);
+            LaneStats.updateMax(laneStats.maxWaitMillis, waitMillis);
+            try {
+                task.run();
+            } finally {
+                laneStats.totalRunMillis.addAndGet(SystemClock.uptimeMillis() - startTime);
+                laneStats.completed.incrementAndGet();
+            }
+        }
+    }
+}
@@ -36,20 +36,25 @@ import android.support.annotation.Nullable;
 import android.util.Base64;
 import android.util.Log;
 
+import com.google.common.base.Joiner;
 import com.google.common.base.Splitter;
 import com.google.common.base.Strings;
 
-import com.crashlytics.android.Crashlytics;
-
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 import uk.org.ngo.squeezer.NowPlayingActivity;
 import uk.org.ngo.squeezer.Preferences;
@@ -59,6 +64,7 @@ import uk.org.ngo.squeezer.framework.FilterItem;
 import uk.org.ngo.squeezer.framework.PlaylistItem;
 import uk.org.ngo.squeezer.itemlist.IServiceCurrentPlaylistCallback;
 import uk.org.ngo.squeezer.itemlist.IServiceItemListCallback;
+import uk.org.ngo.squeezer.itemlist.IServiceSectionsCallback;
 import uk.org.ngo.squeezer.itemlist.IServicePlaylistMaintenanceCallback;
 import uk.org.ngo.squeezer.itemlist.dialog.AlbumViewDialog;
 import uk.org.ngo.squeezer.itemlist.dialog.SongViewDialog;
@@ -68,6 +74,7 @@ import uk.org.ngo.squeezer.model.Genre;
 import uk.org.ngo.squeezer.model.MusicFolderItem;
 import uk.org.ngo.squeezer.model.Player;
 import uk.org.ngo.squeezer.model.PlayerState;
+import uk.org.ngo.squeezer.model.PlaylistDelta;
 import uk.org.ngo.squeezer.model.PlayerState.PlayStatus;
 import uk.org.ngo.squeezer.model.PlayerState.ShuffleStatus;
 import uk.org.ngo.squeezer.model.Playlist;
@@ -75,7 +82,13 @@ import uk.org.ngo.squeezer.model.Plugin;
 import uk.org.ngo.squeezer.model.PluginItem;
 import uk.org.ngo.squeezer.model.Song;
 import uk.org.ngo.squeezer.model.Year;
+import uk.org.ngo.squeezer.protocol.CommandDispatcher;
+import uk.org.ngo.squeezer.protocol.HandlerList;
+import uk.org.ngo.squeezer.protocol.ListCommand;
+import uk.org.ngo.squeezer.protocol.Metrics;
+import uk.org.ngo.squeezer.protocol.Tokens;
 import uk.org.ngo.squeezer.util.Scrobble;
+import uk.org.ngo.squeezer.util.UIUtils;
 
 
 public class SqueezeService extends Service implements ServiceCallbackList.ServicePublisher {
@@ -86,6 +99,12 @@ public class SqueezeService extends Service implements ServiceCallbackList.Servi
 
     private static final String ALBUMTAGS = "alyj";
 
+    /** Name of the preferences file that caches the localized {@link ServerString}s. */
+    private static final String SERVER_STRINGS_NAME = "ServerStrings";
+
+    /** Server version and language the cached {@link ServerString}s belong to. */
+    private static final String KEY_SERVER_STRINGS_CACHE_KEY = "squeezer.serverstrings.key";
+
     /**
      * Information that will be requested about songs.
      * <p/>
@@ -106,7 +125,22 @@ public class SqueezeService extends Service implements ServiceCallbackList.Servi
     // This should probably be a field in Song.
     private static final String SONGTAGS = "aCdejJKlstxyu";
 
-    final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
+    /**
+     * The parts of {@link #SONGTAGS} that are needed to load a song's artwork.
+     */
+    private static final String ARTWORKTAGS = "ejJKx";
+
+    /**
+     * How often the player list is fully reconciled with the server, in addition to the
+     * incremental updates from <code>client</code> notifications. In seconds, as
+     * TimeUnit.MINUTES needs API 9.
+     */
+    private static final long PLAYERS_RECONCILE_INTERVAL_SECONDS = 10 * 60;
+
+    final ServiceScheduler scheduler = new ServiceScheduler();
+
+    /** Pending periodic reconcile of the player list, null if not scheduled. */
+    private volatile ScheduledFuture<?> playersReconcileFuture;
 
     Thread mainThread;
 
@@ -158,6 +192,12 @@ public class SqueezeService extends Service implements ServiceCallbackList.Servi
 
     final CliClient cli = new CliClient(this);
 
+    /**
+     * The most recent lines sent to and received from the server. Captures are written in the
+     * {@link ServiceScheduler.Lane#DISK} lane.
+     */
+    final ProtocolLog protocolLog = new ProtocolLog(scheduler.executor(ServiceScheduler.Lane.DISK));
+
     /**
      * Is scrobbling enabled?
      */
@@ -189,6 +229,7 @@ public class SqueezeService extends Service implements ServiceCallbackList.Servi
 
         getPreferences();
 
+        protocolLog.attachToCrashReports();
         cli.initialize();
     }
 
@@ -198,6 +239,56 @@ public class SqueezeService extends Service implements ServiceCallbackList.Servi
         mFadeInSecs = preferences.getInt(Preferences.KEY_FADE_IN_SECS, 0);
         mUpdateOngoingNotification = preferences
                 .getBoolean(Preferences.KEY_NOTIFY_OF_CONNECTION, false);
+        updateProtocolCapture(preferences.getBoolean(Preferences.KEY_DEBUG_CAPTURE, false));
+    }
+
+    /**
+     * Start or stop capturing the protocol to a file in the "captures" directory of the app's
+     * external files directory, where it can be fetched with <code>adb pull</code> and replayed.
+     * Each capture goes to a new file, named after the time it started.
+     */
+    private void updateProtocolCapture(final boolean enabled) {
+        scheduler.execute(ServiceScheduler.Lane.DISK, new Runnable() {
+            @Override
+            public void run() {
+                if (enabled == protocolLog.isCapturing()) {
+                    return;
+                }
+
+                if (!enabled) {
+                    protocolLog.stopCapture();
+                    return;
+                }
+
+                File filesDir = getExternalFilesDirCompat();
+                File dir = new File(filesDir != null ? filesDir : getFilesDir(), "captures");
+                dir.mkdirs();
+                File file = new File(dir, "cli-"
+                        + new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date())
+                        + ".txt");
+                try {
+                    protocolLog.startCapture(file);
+                    Log.i(TAG, "Capturing the protocol to " + file);
+                } catch (IOException e) {
+                    Log.e(TAG, "Unable to capture the protocol to " + file, e);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return The app's external files directory, null if external storage is not available.
+     */
+    @TargetApi(8)
+    @Nullable
+    private File getExternalFilesDirCompat() {
+        if (UIUtils.hasFroyo()) {
+            return getExternalFilesDir(null);
+        }
+
+        // Before Froyo we need to construct the external files dir ourselves
+        return new File(Environment.getExternalStorageDirectory().getPath()
+                + "/Android/data/" + getPackageName() + "/files/");
     }
 
     @Override
@@ -209,6 +300,13 @@ public class SqueezeService extends Service implements ServiceCallbackList.Servi
     public void onDestroy() {
         super.onDestroy();
         disconnect();
+        scheduler.execute(ServiceScheduler.Lane.DISK, new Runnable() {
+            @Override
+            public void run() {
+                protocolLog.stopCapture();
+            }
+        });
+        scheduler.shutdown();
     }
 
     void disconnect() {
@@ -218,6 +316,12 @@ public class SqueezeService extends Service implements ServiceCallbackList.Servi
     void disconnect(boolean isServerDisconnect) {
         connectionState.disconnect(this, isServerDisconnect && !mHandshakeComplete);
         mHandshakeComplete = false;
+        cancelPlayersReconcile();
+        if (ProtocolLog.TRACE) {
+            for (ServiceScheduler.Lane lane : ServiceScheduler.Lane.values()) {
+                Log.v(TAG, "Lane " + lane + ": " + scheduler.getStats(lane));
+            }
+        }
         clearOngoingNotification();
     }
 
@@ -230,8 +334,8 @@ public class SqueezeService extends Service implements ServiceCallbackList.Servi
     private Map<String, CmdHandler> initializeGlobalHandlers() {
         Map<String, CmdHandler> handlers = new HashMap<String, CmdHandler>();
 
-        for (final CliClient.ExtendedQueryFormatCmd cmd : cli.extQueryFormatCmds) {
-            if (cmd.handlerList == CliClient.HandlerList.GLOBAL) {
+        for (final ListCommand cmd : cli.extQueryFormatCmds) {
+            if (cmd.handlerList == HandlerList.GLOBAL) {
                 handlers.put(cmd.cmd, new CmdHandler() {
                     @Override
                     public void handle(List<String> tokens) {
@@ -296,6 +400,9 @@ public class SqueezeService extends Service implements ServiceCallbackList.Servi
                 if ("mediadirs".equals(tokens.get(1)) && tokens.size() >= 3) {
                     connectionState.setMediaDirs(Util.decode(tokens.get(2)));
                 }
+                if ("language".equals(tokens.get(1)) && tokens.size() >= 3) {
+                    connectionState.setServerLanguage(Util.decode(tokens.get(2)));
+                }
             }
         });
         handlers.put("can", new CmdHandler() {
@@ -319,24 +426,38 @@ public class SqueezeService extends Service implements ServiceCallbackList.Servi
             }
         });
         handlers.put("getstring", new CmdHandler() {
+            /**
+             * The reply to a batched request has the form
+             * <code>getstring TOKEN1,TOKEN2 TOKEN1:string1 TOKEN2:string2</code>, so every token
+             * with a value is a translation.
+             */
             @Override
             public void handle(List<String> tokens) {
-                int maxOrdinal = 0;
                 Map<String, String> tokenMap = parseTokens(tokens);
                 for (Entry<String, String> entry : tokenMap.entrySet()) {
-                    if (entry.getValue() != null) {
-                        ServerString serverString = ServerString.valueOf(entry.getKey());
-                        serverString.setLocalizedString(entry.getValue());
-                        if (serverString.ordinal() > maxOrdinal) {
-                            maxOrdinal = serverString.ordinal();
+                    if (!Strings.isNullOrEmpty(entry.getValue())) {
+                        try {
+                            ServerString.valueOf(entry.getKey()).setLocalizedString(entry.getValue());
+                        } catch (IllegalArgumentException e) {
+                            Log.w(TAG, "Unexpected server string: " + entry.getKey());
                         }
                     }
                 }
 
-                // Fetch the next strings until the list is completely translated
-                if (maxOrdinal < ServerString.values().length - 1) {
-                    cli.sendCommandImmediately(
-                            "getstring " + ServerString.values()[maxOrdinal + 1].name());
+                // The strings and the cache key are copied now, as the strings are cleared if
+                // another server is connected to before they are saved.
+                final String cacheKey = getServerStringsCacheKey();
+                if (cacheKey != null && ServerString.allLocalized()) {
+                    final Map<String, String> strings = new HashMap<String, String>();
+                    for (ServerString serverString : ServerString.values()) {
+                        strings.put(serverString.name(), serverString.getLocalizedString());
+                    }
+                    scheduler.execute(ServiceScheduler.Lane.DISK, new Runnable() {
+                        @Override
+                        public void run() {
+                            saveServerStrings(cacheKey, strings);
+                        }
+                    });
                 }
             }
         });
@@ -350,8 +471,10 @@ public class SqueezeService extends Service implements ServiceCallbackList.Servi
             @Override
             public void handle(List<String> tokens) {
                 Log.i(TAG, "Version received: " + tokens);
+                connectionState.setServerVersion(Util.decode(tokens.get(1)));
                 mHandshakeComplete = true;
                 strings();
+                schedulePlayersReconcile();
 
                 for (IServiceHandshakeCallback callback : mHandshakeCallbacks) {
                     callback.onHandshakeCompleted();
@@ -365,8 +488,8 @@ public class SqueezeService extends Service implements ServiceCallbackList.Servi
     private Map<String, CmdHandler> initializePrefixedHandlers() {
         Map<String, CmdHandler> handlers = new HashMap<String, CmdHandler>();
 
-        for (final CliClient.ExtendedQueryFormatCmd cmd : cli.extQueryFormatCmds) {
-            if (cmd.handlerList == CliClient.HandlerList.PREFIXED) {
+        for (final ListCommand cmd : cli.extQueryFormatCmds) {
+            if (cmd.handlerList == HandlerList.PREFIXED) {
                 handlers.put(cmd.cmd, new CmdHandler() {
                     @Override
                     public void handle(List<String> tokens) {
@@ -382,8 +505,8 @@ public class SqueezeService extends Service implements ServiceCallbackList.Servi
     private Map<String, CmdHandler> initializePlayerSpecificHandlers() {
         Map<String, CmdHandler> handlers = new HashMap<String, CmdHandler>();
 
-        for (final CliClient.ExtendedQueryFormatCmd cmd : cli.extQueryFormatCmds) {
-            if (cmd.handlerList == CliClient.HandlerList.PLAYER_SPECIFIC) {
+        for (final ListCommand cmd : cli.extQueryFormatCmds) {
+            if (cmd.handlerList == HandlerList.PLAYER_SPECIFIC) {
                 handlers.put(cmd.cmd, new CmdHandler() {
                     @Override
                     public void handle(List<String> tokens) {
@@ -409,7 +532,9 @@ public class SqueezeService extends Service implements ServiceCallbackList.Servi
         handlers.put("pause", new CmdHandler() {
             @Override
             public void handle(List<String> tokens) {
-                Log.v(TAG, "pause registered: " + tokens);
+                if (ProtocolLog.TRACE) {
+                    Log.v(TAG, "pause registered: " + tokens);
+                }
                 parsePause(tokens.size() >= 3 ? tokens.get(2) : null);
             }
         });
@@ -427,12 +552,52 @@ public class SqueezeService extends Service implements ServiceCallbackList.Servi
         Map<String, CmdHandler> handlers = new HashMap<String, CmdHandler>();
 
         handlers.put("client", new CmdHandler() {
+            /**
+             * Apply the change to the player list incrementally, touching only the status
+             * subscription of the affected player. The notification doesn't describe a new
+             * player, so a player we don't know about triggers a reconcile with the server's
+             * player list instead.
+             */
             @Override
             public void handle(List<String> tokens) {
                 Log.i(TAG, "client received: " + tokens);
-                // Something has happened to the player list, we just fetch the full list again
-                // This is simpler and handles any missed client events
-                fetchPlayers();
+                if (tokens.size() < 3) {
+                    return;
+                }
+
+                String playerId = Util.decode(tokens.get(0));
+                String event = tokens.get(2);
+                Player player = connectionState.getPlayer(playerId);
+
+                if (player == null) {
+                    if (!"forget".equals(event)) {
+                        fetchPlayers();
+                    }
+                    return;
+                }
+
+                if ("disconnect".equals(event)) {
+                    player.setConnected(false);
+                    connectionState.markPlayersChanged();
+                } else if ("new".equals(event) || "reconnect".equals(event)) {
+                    player.setConnected(true);
+                    connectionState.markPlayersChanged();
+                    // Re-establish the subscription, the server may have dropped it.
+                    player.getPlayerState().setSubscriptionType(
+                            PlayerState.PlayerSubscriptionType.none);
+                    updatePlayerSubscription(player, getPlayerSubscriptionType(player));
+                } else if ("forget".equals(event)) {
+                    connectionState.removePlayer(playerId);
+                    if (player.equals(connectionState.getActivePlayer())) {
+                        // Note: changeActivePlayer() calls any registered IServicePlayersCallbacks.
+                        changeActivePlayer(getInitialPlayer());
+                        return;
+                    }
+                } else {
+                    return;
+                }
+
+                notifyPlayersChanged();
             }
         });
         handlers.put("status", new CmdHandler() {
@@ -468,6 +633,11 @@ public class SqueezeService extends Service implements ServiceCallbackList.Servi
                     boolean changedSyncSlaves = playerState.setSyncSlaves(Splitter.on(",").omitEmptyStrings().splitToList(Strings.nullToEmpty(tokenMap.get("sync_slaves"))));
                     boolean changedSubscription = playerState.setSubscriptionType(tokenMap.get("subscribe"));
 
+                    // The old size of the playlist tells how many songs an insert added.
+                    int playlistTracks = Util.parseDecimalInt(tokenMap.get("playlist_tracks"), -1);
+                    resolvePendingInsert(player, playlistTracks);
+                    playerState.setPlaylistTracks(playlistTracks);
+
                     player.setPlayerState(playerState);
 
                     // Kept as its own method because other methods call it, unlike the explicit
@@ -543,7 +713,9 @@ public class SqueezeService extends Service implements ServiceCallbackList.Servi
         handlers.put("prefset", new CmdHandler() {
             @Override
             public void handle(List<String> tokens) {
-                Log.v(TAG, "Prefset received: " + tokens);
+                if (ProtocolLog.TRACE) {
+                    Log.v(TAG, "Prefset received: " + tokens);
+                }
                 if (tokens.size() > 4 && tokens.get(2).equals("server") && tokens.get(3)
                         .equals("volume")) {
                     String playerId = Util.decode(tokens.get(0));
@@ -559,8 +731,8 @@ public class SqueezeService extends Service implements ServiceCallbackList.Servi
     private Map<String, CmdHandler> initializePrefixedPlayerSpecificHandlers() {
         Map<String, CmdHandler> handlers = new HashMap<String, CmdHandler>();
 
-        for (final CliClient.ExtendedQueryFormatCmd cmd : cli.extQueryFormatCmds) {
-            if (cmd.handlerList == CliClient.HandlerList.PREFIXED_PLAYER_SPECIFIC) {
+        for (final ListCommand cmd : cli.extQueryFormatCmds) {
+            if (cmd.handlerList == HandlerList.PREFIXED_PLAYER_SPECIFIC) {
                 handlers.put(cmd.cmd, new CmdHandler() {
                     @Override
                     public void handle(List<String> tokens) {
@@ -573,53 +745,72 @@ public class SqueezeService extends Service implements ServiceCallbackList.Servi
         return handlers;
     }
 
-    private final Map<String, CmdHandler> globalHandlers = initializeGlobalHandlers();
-
-    private final Map<String, CmdHandler> prefixedHandlers = initializePrefixedHandlers();
-
-    private final Map<String, CmdHandler> playerSpecificHandlers
-            = initializePlayerSpecificHandlers();
-
-    private final Map<String, CmdHandler> globalPlayerSpecificHandlers
-            = initializeGlobalPlayerSpecificHandlers();
+    private final CommandDispatcher<CmdHandler> dispatcher = initializeDispatcher();
+
+    private CommandDispatcher<CmdHandler> initializeDispatcher() {
+        CommandDispatcher<CmdHandler> dispatcher = new CommandDispatcher<CmdHandler>();
+        dispatcher.putAll(HandlerList.GLOBAL, initializeGlobalHandlers());
+        dispatcher.putAll(HandlerList.PREFIXED, initializePrefixedHandlers());
+        dispatcher.putAll(HandlerList.PLAYER_SPECIFIC, initializePlayerSpecificHandlers());
+        dispatcher.putAll(HandlerList.GLOBAL_PLAYER_SPECIFIC,
+                initializeGlobalPlayerSpecificHandlers());
+        dispatcher.putAll(HandlerList.PREFIXED_PLAYER_SPECIFIC,
+                initializePrefixedPlayerSpecificHandlers());
+        return dispatcher;
+    }
 
-    private final Map<String, CmdHandler> prefixedPlayerSpecificHandlers
-            = initializePrefixedPlayerSpecificHandlers();
+    /**
+     * Schedule a line received from the server for processing.
+     * <p/>
+     * All lines are processed in the {@link ServiceScheduler.Lane#INBOUND} lane, in the order
+     * they were received. Replies and notifications depend on each other's order, e.g. the
+     * <code>playlist</code> notifications that follow a page of the current playlist apply to
+     * that page, so they can't be split between lanes.
+     */
+    void scheduleLineReceived(final String serverLine) {
+        scheduler.execute(ServiceScheduler.Lane.INBOUND, new Runnable() {
+            @Override
+            public void run() {
+                onLineReceived(serverLine);
+            }
+        });
+    }
 
     void onLineReceived(String serverLine) {
-        Log.v(TAG, "RECV: " + serverLine);
-        Crashlytics.setString("lastReceivedLine", serverLine);
+        protocolLog.received(serverLine);
+        if (ProtocolLog.TRACE) {
+            Log.v(TAG, "RECV: " + ProtocolLog.redact(serverLine));
+        }
 
-        List<String> tokens = Arrays.asList(serverLine.split(" "));
+        List<String> tokens = Tokens.split(serverLine);
         if (tokens.size() < 2) {
             return;
         }
 
-        CmdHandler handler;
-        if ((handler = globalHandlers.get(tokens.get(0))) != null) {
-            handler.handle(tokens);
-            return;
-        }
-        if ((handler = prefixedHandlers.get(tokens.get(1))) != null) {
-            handler.handle(tokens);
-            return;
-        }
-        if ((handler = globalPlayerSpecificHandlers.get(tokens.get(1))) != null) {
-            handler.handle(tokens);
-            return;
+        CommandDispatcher.Entry<CmdHandler> entry = dispatcher.find(tokens, getActivePlayerId());
+        if (entry != null) {
+            handle(entry.handler, entry.command, tokens);
         }
+    }
 
-        // Player-specific commands for our active player.
-        if (Util.decode(tokens.get(0)).equals(getActivePlayerId())) {
-            if ((handler = playerSpecificHandlers.get(tokens.get(1))) != null) {
-                handler.handle(tokens);
-                return;
-            }
-            if (tokens.size() > 2
-                    && (handler = prefixedPlayerSpecificHandlers.get(tokens.get(2))) != null) {
-                handler.handle(tokens);
-            }
+    /** Parse time histograms, keyed by command. */
+    private final Map<String, Metrics.Histogram> parseTimeHistograms
+            = new ConcurrentHashMap<String, Metrics.Histogram>();
+
+    /**
+     * Run the handler for a command, recording the time it takes in the command's
+     * <code>cli.parse_us.&lt;command></code> histogram.
+     */
+    private void handle(CmdHandler handler, String command, List<String> tokens) {
+        long startNanos = System.nanoTime();
+        handler.handle(tokens);
+
+        Metrics.Histogram histogram = parseTimeHistograms.get(command);
+        if (histogram == null) {
+            histogram = Metrics.histogram("cli.parse_us." + command);
+            parseTimeHistograms.put(command, histogram);
         }
+        histogram.record(Metrics.elapsedMicros(startNanos));
     }
 
     private String getActivePlayerId() {
@@ -637,7 +828,9 @@ public class SqueezeService extends Service implements ServiceCallbackList.Servi
     }
 
     private void parsePlaylistNotification(List<String> tokens) {
-        Log.v(TAG, "Playlist notification received: " + tokens);
+        if (ProtocolLog.TRACE) {
+            Log.v(TAG, "Playlist notification received: " + tokens);
+        }
         String notification = tokens.get(2);
         if ("newsong".equals(notification)) {
             // When we don't subscribe to the current players status, we rely
@@ -650,13 +843,144 @@ public class SqueezeService extends Service implements ServiceCallbackList.Servi
             updatePlayStatus(PlayerState.PlayStatus.stop);
         } else if ("pause".equals(notification)) {
             parsePause(tokens.size() >= 4 ? tokens.get(3) : null);
-        } else if ("addtracks".equals(notification)) {
-            for (IServiceCurrentPlaylistCallback callback : mCurrentPlaylistCallbacks) {
-                callback.onAddTracks(connectionState.getActivePlayer().getPlayerState());
+        } else {
+            Player player = connectionState.getPlayer(Util.decode(tokens.get(0)));
+            if (player == null) {
+                return;
             }
-        } else if ("delete".equals(notification)) {
+
+            PlaylistDelta delta = parsePlaylistDelta(player, notification, tokens);
+            if (delta != null) {
+                notifyPlaylistChanged(player, delta);
+            }
+        }
+    }
+
+    /**
+     * Where songs were inserted into the playlist of each player, keyed by player ID, while the
+     * status that says how many were inserted is awaited. Only used in the
+     * {@link ServiceScheduler.Lane#INBOUND} lane.
+     */
+    private final Map<String, Integer> mPendingPlaylistInserts = new HashMap<String, Integer>();
+
+    /**
+     * Translate a playlist notification into the change to the positions of the songs in the
+     * playlist, and record the change in the version of the player's playlist.
+     * <p/>
+     * Notifications don't say how many songs were added, so inserts are held back until the
+     * next status gives the new size of the playlist, see {@link #resolvePendingInsert(Player,
+     * int)}. Notifications that don't say where the songs went, e.g. when the playlist is
+     * loaded or shuffled, invalidate the songs from where the change starts.
+     *
+     * @return The change, or null if the notification doesn't change the playlist, or the
+     * change is held back.
+     */
+    private PlaylistDelta parsePlaylistDelta(Player player, String notification,
+            List<String> tokens) {
+        PlayerState playerState = player.getPlayerState();
+        int position = (tokens.size() >= 4 ? Util.parseDecimalInt(tokens.get(3), -1) : -1);
+
+        if (!isPlaylistChange(notification)) {
+            return null;
+        }
+
+        // A further change means the next status can't tell how many songs were inserted.
+        resolvePendingInsert(player, -1);
+
+        if ("addtracks".equals(notification) || "add".equals(notification)) {
+            return holdBackInsert(player, PlaylistDelta.END);
+        }
+
+        // Inserted songs go after the current song.
+        if ("inserttracks".equals(notification) || "insert".equals(notification)) {
+            return holdBackInsert(player, playerState.getCurrentPlaylistIndex() + 1);
+        }
+
+        int tracks = playerState.getPlaylistTracks();
+        if ("delete".equals(notification) || "zap".equals(notification)) {
+            if (position >= 0) {
+                playerState.setPlaylistTracks(tracks > 0 ? tracks - 1 : -1);
+                return PlaylistDelta.remove(position, playerState.incrementPlaylistVersion());
+            }
+            playerState.setPlaylistTracks(-1);
+            return PlaylistDelta.invalidate(0, playerState.incrementPlaylistVersion());
+        }
+
+        if ("move".equals(notification)) {
+            int toPosition = (tokens.size() >= 5 ? Util.parseDecimalInt(tokens.get(4), -1) : -1);
+            if (position >= 0 && toPosition >= 0) {
+                return PlaylistDelta.move(position, toPosition,
+                        playerState.incrementPlaylistVersion());
+            }
+            return PlaylistDelta.invalidate(0, playerState.incrementPlaylistVersion());
+        }
+
+        // The playlist was replaced, shuffled, or lost songs whose positions aren't known.
+        playerState.setPlaylistTracks("clear".equals(notification) ? 0 : -1);
+        return PlaylistDelta.invalidate(0, playerState.incrementPlaylistVersion());
+    }
+
+    private static boolean isPlaylistChange(String notification) {
+        return "delete".equals(notification) || "zap".equals(notification)
+                || "move".equals(notification)
+                || "addtracks".equals(notification) || "add".equals(notification)
+                || "inserttracks".equals(notification) || "insert".equals(notification)
+                || "clear".equals(notification) || "load_done".equals(notification)
+                || "loadtracks".equals(notification) || "playtracks".equals(notification)
+                || "shuffle".equals(notification) || "deletetracks".equals(notification)
+                || "deleteitem".equals(notification);
+    }
+
+    /**
+     * Remember that songs were inserted into the playlist of a player, and order the status
+     * that says how many.
+     *
+     * @param position Position of the first new song, {@link PlaylistDelta#END} if they were
+     * added at the end.
+     *
+     * @return null, as the change is sent to the clients when the status arrives.
+     */
+    private PlaylistDelta holdBackInsert(Player player, int position) {
+        mPendingPlaylistInserts.put(player.getId(), position);
+        cli.sendPlayerCommand(player, "status - 1 tags:" + SONGTAGS);
+        return null;
+    }
+
+    /**
+     * Send the clients the songs that were inserted into the playlist of a player, if any are
+     * held back, now that the new size of the playlist is known. The songs after the insert keep
+     * their positions, shifted down by the number of new songs.
+     *
+     * @param playlistTracks Number of songs in the playlist after the insert, -1 if it isn't
+     * known, in which case the songs from the insert onwards are invalidated.
+     */
+    private void resolvePendingInsert(Player player, int playlistTracks) {
+        Integer position = mPendingPlaylistInserts.remove(player.getId());
+        if (position == null) {
+            return;
+        }
+
+        PlayerState playerState = player.getPlayerState();
+        int oldTracks = playerState.getPlaylistTracks();
+        PlaylistDelta delta;
+        if (oldTracks >= 0 && playlistTracks > oldTracks) {
+            delta = PlaylistDelta.insert(Math.min(position, oldTracks), playlistTracks - oldTracks,
+                    playerState.incrementPlaylistVersion());
+        } else {
+            delta = PlaylistDelta.invalidate(position, playerState.incrementPlaylistVersion());
+        }
+        playerState.setPlaylistTracks(playlistTracks);
+        notifyPlaylistChanged(player, delta);
+    }
+
+    /**
+     * Tell the clients about a change to the playlist of the active player. Changes to the
+     * playlists of other players only update their versions.
+     */
+    private void notifyPlaylistChanged(Player player, PlaylistDelta delta) {
+        if (player.equals(connectionState.getActivePlayer())) {
             for (IServiceCurrentPlaylistCallback callback : mCurrentPlaylistCallbacks) {
-                callback.onDelete(connectionState.getActivePlayer().getPlayerState(), Integer.parseInt(tokens.get(3)));
+                callback.onPlaylistChanged(player.getPlayerState(), delta);
             }
         }
     }
@@ -800,7 +1124,7 @@ public class SqueezeService extends Service implements ServiceCallbackList.Servi
         // NOTE: this involves a write and can block (sqlite lookup via binder call), so
         // should be done off-thread, so we can process service requests & send our callback
         // as quickly as possible.
-        executor.execute(new Runnable() {
+        scheduler.execute(ServiceScheduler.Lane.DISK, new Runnable() {
             @Override
             public void run() {
                 final SharedPreferences preferences = getSharedPreferences(Preferences.NAME,
@@ -819,9 +1143,18 @@ public class SqueezeService extends Service implements ServiceCallbackList.Servi
             }
         });
 
+        notifyPlayersChanged();
+    }
+
+    /**
+     * Calls the {@link IServicePlayersCallback#onPlayersChanged(List, Player)} method of any
+     * callbacks registered using {@link SqueezeServiceBinder#registerPlayersCallback(IServicePlayersCallback)}.
+     */
+    private void notifyPlayersChanged() {
         List<Player> players = connectionState.getPlayers();
+        Player activePlayer = connectionState.getActivePlayer();
         for (IServicePlayersCallback callback : mPlayersCallbacks) {
-            callback.onPlayersChanged(players, newActivePlayer);
+            callback.onPlayersChanged(players, activePlayer);
         }
     }
 
@@ -1012,6 +1345,7 @@ public class SqueezeService extends Service implements ServiceCallbackList.Servi
                 "pref httpport ?", // learn the HTTP port (needed for images)
                 "pref jivealbumsort ?", // learn the preferred album sort order
                 "pref mediadirs ?", // learn the base path(s) of the server music library
+                "pref language ?", // learn the language of the server strings
 
                 // Fetch the version number. This must be the last thing
                 // fetched, as seeing the result triggers the
@@ -1021,51 +1355,25 @@ public class SqueezeService extends Service implements ServiceCallbackList.Servi
     }
 
     /**
-     * Start an asynchronous fetch of all players from the server.
+     * Start an asynchronous fetch of all players from the server, and reconcile the list of
+     * players with the result.
+     *
+     * @see #reconcilePlayers(Map)
      */
     private void fetchPlayers() {
-        // Unsubscribe to any existing player states, and clear the list of
-        for (Player player : connectionState.getPlayers()) {
-            updatePlayerSubscription(player, PlayerState.PlayerSubscriptionType.none);
-        }
-
-        connectionState.clearPlayers();
-
-        // Initiate an async player fetch
         cli.requestItems("players", -1, new IServiceItemListCallback<Player>() {
+            private final Map<String, Player> serverPlayers = new HashMap<String, Player>();
+
             @Override
             public void onItemsReceived(int count, int start, Map<String, String> parameters, List<Player> items, Class<Player> dataType) {
-                connectionState.addPlayers(items);
-
-                // If all players have been received then determine the new active player.
-                if (start + items.size() >= count) {
-                    Player initialPlayer = getInitialPlayer();
-                    if (initialPlayer != null) {
-                        // Note: changeActivePlayer() calls any registered IServicePlayersCallbacks.
-                        changeActivePlayer(initialPlayer);
-                    }
+                for (Player player : items) {
+                    serverPlayers.put(player.getId(), player);
                 }
-            }
 
-            /**
-             * @return The player that should be chosen as the active player. This is either the
-             *     last active player (if known), the first player the server knows about if
-             *     there are connected players, or null if there are no connected players.
-             */
-            @Nullable
-            private Player getInitialPlayer() {
-                final SharedPreferences preferences = getSharedPreferences(Preferences.NAME, Context.MODE_PRIVATE);
-                final String lastConnectedPlayer = preferences.getString(Preferences.KEY_LASTPLAYER,
-                        null);
-                Log.i(TAG, "lastConnectedPlayer was: " + lastConnectedPlayer);
-
-                List<Player> players = connectionState.getPlayers();
-                for (Player player : players) {
-                    if (player.getId().equals(lastConnectedPlayer)) {
-                        return player;
-                    }
+                // Reconcile once all players have been received.
+                if (start + items.size() >= count) {
+                    reconcilePlayers(serverPlayers);
                 }
-                return players.size() > 0 ? players.get(0) : null;
             }
 
             @Override
@@ -1075,9 +1383,181 @@ public class SqueezeService extends Service implements ServiceCallbackList.Servi
         });
     }
 
-    /* Start an asynchronous fetch of the squeezeservers localized strings */
+    /**
+     * Bring the list of players in line with the full list from the server.
+     * <p/>
+     * Players we already know keep their state and status subscription. Only new players are
+     * subscribed to, and players the server no longer knows about are dropped. If the active
+     * player is gone (or there wasn't one) a new active player is chosen.
+     *
+     * @param serverPlayers The server's players, keyed by player ID.
+     */
+    private void reconcilePlayers(Map<String, Player> serverPlayers) {
+        int playersVersion = connectionState.getPlayersVersion();
+
+        for (Player player : connectionState.getPlayers()) {
+            if (!serverPlayers.containsKey(player.getId())) {
+                connectionState.removePlayer(player.getId());
+            }
+        }
+
+        List<Player> newPlayers = new ArrayList<Player>();
+        for (Player serverPlayer : serverPlayers.values()) {
+            Player player = connectionState.getPlayer(serverPlayer.getId());
+            if (player == null) {
+                connectionState.addPlayer(serverPlayer);
+                newPlayers.add(serverPlayer);
+            } else if (player.getConnected() != serverPlayer.getConnected()
+                    || !Strings.nullToEmpty(player.getName()).equals(serverPlayer.getName())) {
+                player.setConnected(serverPlayer.getConnected());
+                player.setName(serverPlayer.getName());
+                connectionState.markPlayersChanged();
+            }
+        }
+
+        Player activePlayer = connectionState.getActivePlayer();
+        if (activePlayer == null || connectionState.getPlayer(activePlayer.getId()) == null) {
+            Player initialPlayer = getInitialPlayer();
+            if (initialPlayer != activePlayer) {
+                // Note: changeActivePlayer() updates all subscriptions, and calls any registered
+                // IServicePlayersCallbacks.
+                changeActivePlayer(initialPlayer);
+                return;
+            }
+        }
+
+        for (Player player : newPlayers) {
+            updatePlayerSubscription(player, getPlayerSubscriptionType(player));
+        }
+
+        if (connectionState.getPlayersVersion() != playersVersion) {
+            notifyPlayersChanged();
+        }
+    }
+
+    /**
+     * @return The player that should be chosen as the active player. This is either the
+     *     last active player (if known), the first player the server knows about if
+     *     there are connected players, or null if there are no connected players.
+     */
+    @Nullable
+    private Player getInitialPlayer() {
+        final SharedPreferences preferences = getSharedPreferences(Preferences.NAME, Context.MODE_PRIVATE);
+        final String lastConnectedPlayer = preferences.getString(Preferences.KEY_LASTPLAYER,
+                null);
+        Log.i(TAG, "lastConnectedPlayer was: " + lastConnectedPlayer);
+
+        List<Player> players = connectionState.getPlayers();
+        for (Player player : players) {
+            if (player.getId().equals(lastConnectedPlayer)) {
+                return player;
+            }
+        }
+        return players.size() > 0 ? players.get(0) : null;
+    }
+
+    /**
+     * Periodically reconcile the player list with the server, as a safety net for any missed
+     * <code>client</code> notifications.
+     */
+    private void schedulePlayersReconcile() {
+        cancelPlayersReconcile();
+        playersReconcileFuture = scheduler.scheduleWithFixedDelay(ServiceScheduler.Lane.BULK, new Runnable() {
+            @Override
+            public void run() {
+                fetchPlayers();
+            }
+        }, PLAYERS_RECONCILE_INTERVAL_SECONDS, PLAYERS_RECONCILE_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private void cancelPlayersReconcile() {
+        ScheduledFuture<?> future = playersReconcileFuture;
+        if (future != null) {
+            future.cancel(false);
+            playersReconcileFuture = null;
+        }
+    }
+
+    /**
+     * Start an asynchronous fetch of the squeezeservers localized strings.
+     * <p/>
+     * The strings are requested in a single batched <code>getstring</code> command, unless they
+     * are already cached for this server version and language, in which case no request is made.
+     * <p/>
+     * Strings from a previous server, or a partly restored cache, are cleared before the request,
+     * so a reply that leaves some strings out can't be completed with them and cached.
+     */
     private void strings() {
-        cli.sendCommandImmediately("getstring " + ServerString.values()[0].name());
+        if (loadServerStrings()) {
+            Log.v(TAG, "Server strings restored from cache");
+            return;
+        }
+        ServerString.clearLocalized();
+        cli.sendCommandImmediately("getstring " + Joiner.on(',').join(ServerString.values()));
+    }
+
+    /**
+     * @return The key that identifies the cached server strings, the server version and
+     *     language. Null if either of them is unknown.
+     */
+    @Nullable
+    private String getServerStringsCacheKey() {
+        String version = connectionState.getServerVersion();
+        String language = connectionState.getServerLanguage();
+        if (version == null || language == null) {
+            return null;
+        }
+        return version + "/" + language;
+    }
+
+    /**
+     * Restore the localized server strings from the cache.
+     *
+     * @return True if every string was restored, false otherwise, in which case some strings
+     *     may have been restored.
+     */
+    private boolean loadServerStrings() {
+        String cacheKey = getServerStringsCacheKey();
+        if (cacheKey == null) {
+            return false;
+        }
+
+        final SharedPreferences preferences = getSharedPreferences(SERVER_STRINGS_NAME,
+                MODE_PRIVATE);
+        if (!cacheKey.equals(preferences.getString(KEY_SERVER_STRINGS_CACHE_KEY, null))) {
+            return false;
+        }
+
+        for (ServerString serverString : ServerString.values()) {
+            String value = preferences.getString(serverString.name(), null);
+            if (value == null) {
+                return false;
+            }
+            serverString.setLocalizedString(value);
+        }
+        return true;
+    }
+
+    /**
+     * Save the localized server strings.
+     *
+     * @param cacheKey The server version and language the strings belong to.
+     * @param strings The localized strings, keyed by the names of their tokens.
+     */
+    private void saveServerStrings(String cacheKey, Map<String, String> strings) {
+        final SharedPreferences preferences = getSharedPreferences(SERVER_STRINGS_NAME,
+                MODE_PRIVATE);
+        if (cacheKey.equals(preferences.getString(KEY_SERVER_STRINGS_CACHE_KEY, null))) {
+            return;
+        }
+
+        SharedPreferences.Editor editor = preferences.edit();
+        editor.clear();
+        editor.putString(KEY_SERVER_STRINGS_CACHE_KEY, cacheKey);
+        for (Entry<String, String> entry : strings.entrySet()) {
+            editor.putString(entry.getKey(), entry.getValue());
+        }
+        editor.commit();
     }
 
     /** A download request will be passed to the download manager for each song called back to this */
@@ -1553,9 +2033,14 @@ public class SqueezeService extends Service implements ServiceCallbackList.Servi
             return connectionState.getActivePlayerState().isPlaying();
         }
 
+        /**
+         * The active player is changed in the {@link ServiceScheduler.Lane#INBOUND} lane, where
+         * the player list is updated from the server's replies and notifications, so the changes
+         * are applied in order.
+         */
         @Override
         public void setActivePlayer(final Player player) {
-            executor.execute(new Runnable() {
+            scheduler.execute(ServiceScheduler.Lane.INBOUND, new Runnable() {
                 @Override
                 public void run() {
                     changeActivePlayer(player);
@@ -1579,6 +2064,21 @@ public class SqueezeService extends Service implements ServiceCallbackList.Servi
             return connectionState.getActivePlayerState();
         }
 
+        @Override
+        public List<String> getProtocolLog() {
+            return protocolLog.getLines();
+        }
+
+        @Override
+        public List<String> getMetrics() {
+            List<String> metrics = Metrics.snapshot();
+            for (ServiceScheduler.Lane lane : ServiceScheduler.Lane.values()) {
+                metrics.add("scheduler." + lane.name().toLowerCase() + ": "
+                        + scheduler.getStats(lane) + ", queued=" + scheduler.getQueueSize(lane));
+            }
+            return metrics;
+        }
+
         @Override
         public String getCurrentPlaylist() {
             return connectionState.getActivePlayerState().getCurrentPlaylist();
@@ -1695,6 +2195,24 @@ public class SqueezeService extends Service implements ServiceCallbackList.Servi
             cli.requestItems("albums", start, parameters, callback);
         }
 
+        /* Start an async fetch of the sections of the SqueezeboxServer's albums */
+        @Override
+        public void albumSections(IServiceSectionsCallback callback, String sortOrder, String searchString, FilterItem... filters) {
+            if (!isConnected()) {
+                return;
+            }
+            List<String> parameters = new ArrayList<String>();
+            parameters.add("tags:s");
+            parameters.add("sort:" + sortOrder);
+            if (searchString != null && searchString.length() > 0) {
+                parameters.add("search:" + searchString);
+            }
+            for (FilterItem filter : filters)
+                if (filter != null)
+                    parameters.add(filter.getFilterParameter());
+            cli.requestSections("albums", parameters, "album", callback);
+        }
+
 
         /* Start an async fetch of the SqueezeboxServer's artists */
         @Override
@@ -1712,6 +2230,23 @@ public class SqueezeService extends Service implements ServiceCallbackList.Servi
             cli.requestItems("artists", start, parameters, callback);
         }
 
+        /* Start an async fetch of the sections of the SqueezeboxServer's artists */
+        @Override
+        public void artistSections(IServiceSectionsCallback callback, String searchString, FilterItem... filters) {
+            if (!isConnected()) {
+                return;
+            }
+            List<String> parameters = new ArrayList<String>();
+            parameters.add("tags:s");
+            if (searchString != null && searchString.length() > 0) {
+                parameters.add("search:" + searchString);
+            }
+            for (FilterItem filter : filters)
+                if (filter != null)
+                    parameters.add(filter.getFilterParameter());
+            cli.requestSections("artists", parameters, "artist", callback);
+        }
+
         /* Start an async fetch of the SqueezeboxServer's years */
         @Override
         public void years(int start, IServiceItemListCallback<Year> callback) {
@@ -1781,6 +2316,24 @@ public class SqueezeService extends Service implements ServiceCallbackList.Servi
             cli.requestItems("songs", start, parameters, callback);
         }
 
+        /* Start an async fetch of the sections of the SqueezeboxServer's songs */
+        @Override
+        public void songSections(IServiceSectionsCallback callback, String sortOrder, String searchString, FilterItem... filters) {
+            if (!isConnected()) {
+                return;
+            }
+            List<String> parameters = new ArrayList<String>();
+            parameters.add("tags:s");
+            parameters.add("sort:" + sortOrder);
+            if (searchString != null && searchString.length() > 0) {
+                parameters.add("search:" + searchString);
+            }
+            for (FilterItem filter : filters)
+                if (filter != null)
+                    parameters.add(filter.getFilterParameter());
+            cli.requestSections("songs", parameters, "title", callback);
+        }
+
         /* Start an async fetch of the SqueezeboxServer's current playlist */
         @Override
         public void currentPlaylist(int start, IServiceItemListCallback<Song> callback) {
@@ -1790,6 +2343,16 @@ public class SqueezeService extends Service implements ServiceCallbackList.Servi
             cli.requestPlayerItems("status", start, Arrays.asList("tags:" + SONGTAGS), callback);
         }
 
+        @Override
+        public void currentPlaylistArtwork(int start, int count,
+                IServiceItemListCallback<Song> callback) {
+            if (!isConnected()) {
+                return;
+            }
+            cli.requestPlayerItems("status", start, count, Arrays.asList("tags:" + ARTWORKTAGS),
+                    callback);
+        }
+
         /* Start an async fetch of the songs of the supplied playlist */
         @Override
         public void playlistSongs(int start, Playlist playlist, IServiceItemListCallback<Song> callback) {
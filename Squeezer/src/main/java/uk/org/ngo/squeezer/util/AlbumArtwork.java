@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2014 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package uk.org.ngo.squeezer.util;
+
+import android.net.Uri;
+
+import com.google.common.base.Strings;
+
+import javax.annotation.Nullable;
+
+/**
+ * The artwork of an album, to load with an {@link ImageFetcher}.
+ * <p/>
+ * The server gives the tracks of an album their own artwork URLs, but they all show the album's
+ * cover. Artwork is cached, and loads are shared, by the key of the data passed to {@link
+ * ImageWorker#loadImage(Object, android.widget.ImageView)}, so loading it as an AlbumArtwork
+ * keeps one copy of the cover per album, whichever track it was loaded for.
+ */
+public final class AlbumArtwork {
+    /** The URL to download the artwork from. */
+    public final String url;
+
+    /** Identifies the album, and the server it's on. */
+    private final String mKey;
+
+    private AlbumArtwork(String url, String albumId) {
+        this.url = url;
+        mKey = "album:" + albumId + "@" + Uri.parse(url).getAuthority();
+    }
+
+    /**
+     * @param url The artwork URL of a track or of the album, may be null.
+     * @param albumId The album's ID, may be null or empty if it isn't known.
+     *
+     * @return The data to load the album's artwork with. The URL if the album isn't known, null if
+     * the URL is null.
+     */
+    @Nullable
+    public static Object of(@Nullable String url, @Nullable String albumId) {
+        if (url == null || Strings.isNullOrEmpty(albumId)) {
+            return url;
+        }
+        return new AlbumArtwork(url, albumId);
+    }
+
+    /**
+     * @return The URL to download the artwork from, whether the data is an AlbumArtwork or a URL.
+     */
+    public static String getUrl(Object data) {
+        return (data instanceof AlbumArtwork) ? ((AlbumArtwork) data).url : String.valueOf(data);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return (o instanceof AlbumArtwork) && mKey.equals(((AlbumArtwork) o).mKey);
+    }
+
+    @Override
+    public int hashCode() {
+        return mKey.hashCode();
+    }
+
+    /**
+     * @return The key the artwork is cached under.
+     */
+    @Override
+    public String toString() {
+        return mKey;
+    }
+}
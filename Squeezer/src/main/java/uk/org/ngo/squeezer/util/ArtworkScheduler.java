@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) 2014 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package uk.org.ngo.squeezer.util;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import uk.org.ngo.squeezer.protocol.Metrics;
+
+/**
+ * Runs artwork loading tasks on a fixed number of threads, highest priority first, and most
+ * recently scheduled first within a priority. After a fling the rows that are on screen now are
+ * loaded before the ones that scrolled past.
+ * <p/>
+ * Tasks below {@link #PRIORITY_VISIBLE} run on a thread of their own, so prefetches, which may be
+ * throttled, never hold up the threads that load visible artwork. A prefetch that is raised to
+ * {@link #PRIORITY_VISIBLE} before it starts moves to the visible threads.
+ * <p/>
+ * Just before a task starts it's asked whether it's still wanted, e.g. whether the image view it
+ * was for hasn't been recycled for another row meanwhile, and it's discarded if it isn't.
+ */
+public class ArtworkScheduler {
+
+    /** Artwork for the track after the one that is playing. */
+    public static final int PRIORITY_NEXT_TRACK = 0;
+
+    /** Artwork that is likely to be shown soon. */
+    public static final int PRIORITY_PREFETCH = 1;
+
+    /** Artwork for rows that are on screen. */
+    public static final int PRIORITY_VISIBLE = 2;
+
+    /**
+     * A task that can be discarded if it's no longer wanted when it's due to start.
+     */
+    public interface Job {
+        /**
+         * Called on the thread that would run the job, just before running it.
+         *
+         * @return Whether the job should still be run.
+         */
+        boolean isWanted();
+
+        /**
+         * Called instead of running the job, if it's no longer wanted.
+         */
+        void discard();
+    }
+
+    private static final Metrics.Histogram QUEUE_WAIT_TIME
+            = Metrics.histogram("artwork.queue_wait_us");
+
+    /** Tasks that weren't started, as no image view wanted them any more. */
+    private static final Metrics.Counter TASKS_DISCARDED
+            = Metrics.counter("artwork.tasks_discarded");
+
+    /** Runs tasks for visible artwork. */
+    private final ThreadPoolExecutor mExecutor;
+
+    /** Runs tasks for artwork that isn't visible yet, one at a time. */
+    private final ThreadPoolExecutor mPrefetchExecutor;
+
+    /** Increases with every task that is scheduled, to order tasks within a priority. */
+    private final AtomicLong mSequence = new AtomicLong();
+
+    /**
+     * @param threads The number of threads for visible artwork. Prefetches have one more.
+     */
+    public ArtworkScheduler(int threads) {
+        mExecutor = newExecutor(threads, "Artwork #");
+        mPrefetchExecutor = newExecutor(1, "Artwork prefetch #");
+    }
+
+    private static ThreadPoolExecutor newExecutor(int threads, final String name) {
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger(1);
+
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, name + mCount.getAndIncrement());
+            }
+        });
+    }
+
+    private ThreadPoolExecutor executorFor(int priority) {
+        return priority < PRIORITY_VISIBLE ? mPrefetchExecutor : mExecutor;
+    }
+
+    /**
+     * Get an executor to start a job with, e.g. with {@link AsyncTask#executeOnExecutor(Executor,
+     * Object[])}.
+     *
+     * @param job The job that will be executed.
+     * @param priority The job's priority, one of the <code>PRIORITY_</code> constants.
+     *
+     * @return An executor that schedules the runnable it's given at the priority, for the job.
+     * Use it once.
+     */
+    public ScheduledExecutor forJob(Job job, int priority) {
+        return new ScheduledExecutor(job, priority);
+    }
+
+    /**
+     * Executes one job's runnable, and can raise the job's priority while it's waiting to start.
+     */
+    public class ScheduledExecutor implements Executor {
+        private final Job mJob;
+
+        private final int mInitialPriority;
+
+        private ScheduledRunnable mScheduled;
+
+        private ScheduledExecutor(Job job, int priority) {
+            mJob = job;
+            mInitialPriority = priority;
+        }
+
+        @Override
+        public void execute(Runnable runnable) {
+            if (mScheduled != null) {
+                throw new IllegalStateException("Already executed a job");
+            }
+            mScheduled = new ScheduledRunnable(runnable, mJob, mInitialPriority,
+                    mSequence.incrementAndGet());
+            executorFor(mInitialPriority).execute(mScheduled);
+        }
+
+        /**
+         * Move the job to the front of the queue for the priority, raising it to the priority if
+         * it's lower, if it hasn't started yet. Asking for a lower priority than the job already
+         * has is ignored, so e.g. a prefetch can't move a job ahead of newer visible jobs.
+         */
+        public void reschedule(int priority) {
+            if (mScheduled == null || priority < mScheduled.priority) {
+                return;
+            }
+            if (executorFor(mScheduled.priority).getQueue().remove(mScheduled)) {
+                mScheduled.priority = priority;
+                mScheduled.sequence = mSequence.incrementAndGet();
+                executorFor(priority).execute(mScheduled);
+            }
+        }
+    }
+
+    private static class ScheduledRunnable implements Runnable, Comparable<ScheduledRunnable> {
+        private final Runnable runnable;
+
+        private final Job job;
+
+        private final long scheduledNanos = System.nanoTime();
+
+        /** Only changed while the runnable is out of the queue. */
+        private int priority;
+
+        private long sequence;
+
+        ScheduledRunnable(Runnable runnable, Job job, int priority, long sequence) {
+            this.runnable = runnable;
+            this.job = job;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public void run() {
+            QUEUE_WAIT_TIME.record(Metrics.elapsedMicros(scheduledNanos));
+            if (!job.isWanted()) {
+                TASKS_DISCARDED.increment();
+                job.discard();
+                return;
+            }
+            runnable.run();
+        }
+
+        /**
+         * Higher priorities first, then the most recently scheduled first.
+         */
+        @Override
+        public int compareTo(ScheduledRunnable other) {
+            if (priority != other.priority) {
+                return priority > other.priority ? -1 : 1;
+            }
+            if (sequence != other.sequence) {
+                return sequence > other.sequence ? -1 : 1;
+            }
+            return 0;
+        }
+    }
+}
@@ -44,10 +44,11 @@ import java.util.concurrent.atomic.AtomicInteger;
  * so that threading behavior on all OS versions is the same and we can tweak behavior by using
  * executeOnExecutor() if needed.
  * <p/>
- * There are 3 changes in this copy of AsyncTask: -pre-HC a single thread executor is used for
+ * There are 4 changes in this copy of AsyncTask: -pre-HC a single thread executor is used for
  * serial operation (Executors.newSingleThreadExecutor) and is the default -the default
  * THREAD_POOL_EXECUTOR was changed to use DiscardOldestPolicy -a new fixed thread pool called
- * DUAL_THREAD_EXECUTOR was added *************************************
+ * DUAL_THREAD_EXECUTOR was added -newFixedThreadExecutor() creates fixed thread pools of other
+ * sizes *************************************
  * <p/>
  * <p>AsyncTask enables proper and easy use of the UI thread. This class allows to perform
  * background operations and publish results on the UI thread without having to manipulate threads
@@ -183,6 +184,13 @@ public abstract class AsyncTask<Params, Progress, Result> {
     public static final Executor DUAL_THREAD_EXECUTOR =
             Executors.newFixedThreadPool(2, sThreadFactory);
 
+    /**
+     * @return A new {@link Executor} that executes up to <code>threads</code> tasks in parallel.
+     */
+    public static Executor newFixedThreadExecutor(int threads) {
+        return Executors.newFixedThreadPool(threads, sThreadFactory);
+    }
+
     private static final int MESSAGE_POST_RESULT = 0x1;
 
     private static final int MESSAGE_POST_PROGRESS = 0x2;
@@ -0,0 +1,285 @@
+/*
+ * Copyright (c) 2014 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.util;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.widget.ImageView;
+
+import java.lang.ref.WeakReference;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+
+import uk.org.ngo.squeezer.protocol.Metrics;
+
+/**
+ * A pool of bitmaps that have been evicted from the memory cache, so decodes can reuse their
+ * memory through {@link BitmapFactory.Options#inBitmap} instead of allocating new bitmaps.
+ * <p/>
+ * The bitmaps are bucketed by the size of their allocation. Before KitKat a bitmap can only be
+ * reused to decode an image with the same dimensions that isn't sampled down, from KitKat any
+ * bitmap with a large enough allocation can be reused. Bitmaps can't be reused at all before
+ * Honeycomb, so nothing is pooled there.
+ * <p/>
+ * A bitmap that is evicted from the memory cache may still be shown. Image views that are set by
+ * an {@link ImageWorker} are tracked with {@link #setDisplayed(ImageView, Bitmap)}, and a bitmap
+ * isn't reused while one of them is showing it.
+ */
+public class BitmapPool {
+
+    private static final int DEFAULT_MAX_SIZE = 1024 * 1024 * 2; // 2MB
+
+    /** Don't use a bitmap that is more than this many times larger than the decoded image. */
+    private static final int MAX_SIZE_MULTIPLE = 4;
+
+    private static final Metrics.Counter POOL_HITS = Metrics.counter("image.bitmap_pool_hit");
+
+    private static final Metrics.Counter POOL_MISSES = Metrics.counter("image.bitmap_pool_miss");
+
+    private static final Metrics.Counter BYTES_REUSED
+            = Metrics.counter("image.bitmap_pool_bytes_reused");
+
+    private static final BitmapPool sInstance = new BitmapPool(DEFAULT_MAX_SIZE);
+
+    private final int mMaxSize;
+
+    private int mSize;
+
+    /** Pooled bitmaps, keyed by their allocation size. */
+    private final SortedMap<Integer, List<Bitmap>> mBuckets = new TreeMap<Integer, List<Bitmap>>();
+
+    /** Pooled bitmaps, least recently added first, so the pool can be trimmed. */
+    private final LinkedList<Bitmap> mAdded = new LinkedList<Bitmap>();
+
+    /**
+     * The bitmap each image view was last set to, if it's showing a cached bitmap. The bitmaps
+     * are weakly referenced, so an image view that is kept around, e.g. a recycled row, doesn't
+     * keep a bitmap alive that nothing else refers to.
+     */
+    private final Map<ImageView, WeakReference<Bitmap>> mDisplayed
+            = new WeakHashMap<ImageView, WeakReference<Bitmap>>();
+
+    /** Bitmaps that are still being read in the background, with the number of readers. */
+    private final Map<Bitmap, Integer> mHeld = new IdentityHashMap<Bitmap, Integer>();
+
+    /**
+     * @return The pool shared by all image workers.
+     */
+    public static BitmapPool getInstance() {
+        return sInstance;
+    }
+
+    BitmapPool(int maxSize) {
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * Add a bitmap that is no longer in the memory cache to the pool. Bitmaps that can't be reused
+     * are ignored.
+     */
+    public synchronized void put(Bitmap bitmap) {
+        if (!UIUtils.hasHoneycomb() || !bitmap.isMutable() || bitmap.isRecycled()) {
+            return;
+        }
+
+        int size = getAllocationSize(bitmap);
+        if (size > mMaxSize) {
+            return;
+        }
+
+        List<Bitmap> bucket = mBuckets.get(size);
+        if (bucket == null) {
+            bucket = new LinkedList<Bitmap>();
+            mBuckets.put(size, bucket);
+        }
+        bucket.add(bitmap);
+        mAdded.add(bitmap);
+        mSize += size;
+
+        while (mSize > mMaxSize) {
+            remove(mAdded.getFirst());
+        }
+    }
+
+    /**
+     * Set {@link BitmapFactory.Options#inBitmap} to a pooled bitmap that the image described by
+     * the options can be decoded into, if there is one, and make the decoded bitmap mutable so it
+     * can be pooled in turn.
+     *
+     * @param options Options that the image bounds and the sample size have been set in.
+     */
+    @TargetApi(11)
+    public void addInBitmapOptions(BitmapFactory.Options options) {
+        if (!UIUtils.hasHoneycomb()) {
+            return;
+        }
+
+        options.inMutable = true;
+        Bitmap inBitmap = get(options);
+        if (inBitmap != null) {
+            options.inBitmap = inBitmap;
+            POOL_HITS.increment();
+            BYTES_REUSED.add(getAllocationSize(inBitmap));
+        } else {
+            POOL_MISSES.increment();
+        }
+    }
+
+    /**
+     * Record the bitmap an image view has been set to, or null if it has been set to something
+     * that isn't a cached bitmap. Must be called on the main thread.
+     */
+    public synchronized void setDisplayed(ImageView imageView, Bitmap bitmap) {
+        if (bitmap != null) {
+            mDisplayed.put(imageView, new WeakReference<Bitmap>(bitmap));
+        } else {
+            mDisplayed.remove(imageView);
+        }
+    }
+
+    /**
+     * Stop the bitmap from being reused until {@link #release(Bitmap)} is called, e.g. while it's
+     * written to disk.
+     */
+    public synchronized void hold(Bitmap bitmap) {
+        Integer count = mHeld.get(bitmap);
+        mHeld.put(bitmap, count == null ? 1 : count + 1);
+    }
+
+    /**
+     * Allow a bitmap that was held with {@link #hold(Bitmap)} to be reused again.
+     */
+    public synchronized void release(Bitmap bitmap) {
+        Integer count = mHeld.get(bitmap);
+        if (count == null || count <= 1) {
+            mHeld.remove(bitmap);
+        } else {
+            mHeld.put(bitmap, count - 1);
+        }
+    }
+
+    /**
+     * Remove all the bitmaps from the pool.
+     */
+    public synchronized void clear() {
+        mBuckets.clear();
+        mAdded.clear();
+        mSize = 0;
+    }
+
+    /**
+     * Remove and return a pooled bitmap that the image described by the options can be decoded
+     * into.
+     */
+    private synchronized Bitmap get(BitmapFactory.Options options) {
+        if (UIUtils.hasKitKat()) {
+            int size = getDecodedSize(options);
+            SortedMap<Integer, List<Bitmap>> fits = mBuckets.subMap(size,
+                    size * MAX_SIZE_MULTIPLE + 1);
+            for (List<Bitmap> bucket : fits.values()) {
+                Bitmap bitmap = findReusable(bucket, options, true);
+                if (bitmap != null) {
+                    return bitmap;
+                }
+            }
+        } else if (options.inSampleSize == 1) {
+            List<Bitmap> bucket = mBuckets.get(getDecodedSize(options));
+            if (bucket != null) {
+                return findReusable(bucket, options, false);
+            }
+        }
+        return null;
+    }
+
+    private Bitmap findReusable(List<Bitmap> bucket, BitmapFactory.Options options,
+            boolean anySize) {
+        for (Iterator<Bitmap> it = bucket.iterator(); it.hasNext(); ) {
+            Bitmap bitmap = it.next();
+            if (!anySize && (bitmap.getWidth() != options.outWidth
+                    || bitmap.getHeight() != options.outHeight
+                    || bitmap.getConfig() != options.inPreferredConfig)) {
+                continue;
+            }
+            if (mHeld.containsKey(bitmap) || isDisplayed(bitmap)) {
+                continue;
+            }
+            remove(bitmap);
+            return bitmap;
+        }
+        return null;
+    }
+
+    private boolean isDisplayed(Bitmap bitmap) {
+        for (WeakReference<Bitmap> displayed : mDisplayed.values()) {
+            if (displayed.get() == bitmap) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void remove(Bitmap bitmap) {
+        int size = getAllocationSize(bitmap);
+        List<Bitmap> bucket = mBuckets.get(size);
+        bucket.remove(bitmap);
+        if (bucket.isEmpty()) {
+            mBuckets.remove(size);
+        }
+        mAdded.remove(bitmap);
+        mSize -= size;
+    }
+
+    /**
+     * @return The largest number of bytes the image described by the options can decode to. The
+     * decoders may round the sample size down to a power of two, so that is what is assumed.
+     */
+    private static int getDecodedSize(BitmapFactory.Options options) {
+        int sampleSize = Integer.highestOneBit(Math.max(1, options.inSampleSize));
+        int width = (options.outWidth + sampleSize - 1) / sampleSize;
+        int height = (options.outHeight + sampleSize - 1) / sampleSize;
+        return width * height * getBytesPerPixel(options.inPreferredConfig);
+    }
+
+    private static int getBytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.ALPHA_8) {
+            return 1;
+        }
+        if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444) {
+            return 2;
+        }
+        return 4;
+    }
+
+    /**
+     * @return The number of bytes allocated for the bitmap, which can be more than it uses if it
+     * has been reused to decode a smaller image.
+     */
+    @TargetApi(19)
+    public static int getAllocationSize(Bitmap bitmap) {
+        if (UIUtils.hasKitKat()) {
+            return bitmap.getAllocationByteCount();
+        }
+        return ImageCache.getBitmapSize(bitmap);
+    }
+}
@@ -16,6 +16,7 @@
 
 package uk.org.ngo.squeezer.util;
 
+import com.google.common.base.Charsets;
 import com.google.common.hash.HashFunction;
 import com.google.common.hash.Hashing;
 
@@ -27,19 +28,22 @@ import android.graphics.Bitmap.CompressFormat;
 import android.graphics.BitmapFactory;
 import android.os.Environment;
 import android.os.StatFs;
-import android.support.v4.app.FragmentManager;
 import android.support.v4.util.LruCache;
 import android.util.Log;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.concurrent.Executor;
 
 import uk.org.ngo.squeezer.BuildConfig;
+import uk.org.ngo.squeezer.protocol.Metrics;
 
 /**
- * This class holds our bitmap caches (memory and disk).
+ * This class holds our bitmap caches (memory and disk). The application has one, shared by all
+ * the image workers, see {@link uk.org.ngo.squeezer.Squeezer#getImageCache()}.
  */
 public class ImageCache {
 
@@ -58,6 +62,17 @@ public class ImageCache {
 
     private static final int DISK_CACHE_INDEX = 0;
 
+    /**
+     * Version of the disk cache's layout. Each image is stored once, in an entry keyed by a hash
+     * of its content, and the entries for the images' keys hold the key of that entry, see {@link
+     * #addBitmapToDiskCache(String, Bitmap)}. Images with transparency are stored as PNG from
+     * version 3, earlier versions stored them as JPEG, without it.
+     */
+    private static final int DISK_CACHE_VERSION = 3;
+
+    /** Prefix of the keys of the disk cache entries that hold the compressed images. */
+    private static final String CONTENT_KEY_PREFIX = "content-";
+
     // Constants to easily toggle various caches
     private static final boolean DEFAULT_MEM_CACHE_ENABLED = true;
 
@@ -67,7 +82,11 @@ public class ImageCache {
 
     private static final boolean DEFAULT_INIT_DISK_CACHE_ON_CREATE = false;
 
-    private DiskLruCache mDiskLruCache;
+    /**
+     * The disk cache. {@link DiskLruCache} serialises changes to its journal itself, so it's only
+     * replaced while holding {@link #mDiskCacheLock}, and is otherwise used without it.
+     */
+    private volatile DiskLruCache mDiskLruCache;
 
     private LruCache<String, Bitmap> mMemoryCache;
 
@@ -75,10 +94,39 @@ public class ImageCache {
 
     private final Object mDiskCacheLock = new Object();
 
-    private boolean mDiskCacheStarting = true;
+    private volatile boolean mDiskCacheStarting = true;
 
     private static final HashFunction mHashFunction = Hashing.md5();
 
+    private static final Metrics.Counter MEMORY_CACHE_HITS = Metrics.counter("image.memory_cache_hit");
+
+    private static final Metrics.Counter MEMORY_CACHE_MISSES = Metrics.counter("image.memory_cache_miss");
+
+    private static final Metrics.Counter DISK_CACHE_HITS = Metrics.counter("image.disk_cache_hit");
+
+    private static final Metrics.Counter DISK_CACHE_MISSES = Metrics.counter("image.disk_cache_miss");
+
+    /** Images written to the disk cache that it already held under another key. */
+    private static final Metrics.Counter DISK_CACHE_DUPLICATES
+            = Metrics.counter("image.disk_cache_duplicates_merged");
+
+    private static final Metrics.Histogram DISK_CACHE_WRITE_TIME
+            = Metrics.histogram("image.disk_cache_write_us");
+
+    /** Time spent waiting for {@link #mDiskCacheLock} and for the disk cache to initialize. */
+    private static final Metrics.Histogram DISK_CACHE_LOCK_WAIT_TIME
+            = Metrics.histogram("image.disk_cache_lock_wait_us");
+
+    /** Time spent in the disk cache's journal operations, which are serialised. */
+    private static final Metrics.Histogram DISK_CACHE_JOURNAL_TIME
+            = Metrics.histogram("image.disk_cache_journal_us");
+
+    /**
+     * Writes bitmaps to the disk cache in the background, one at a time, so the threads that
+     * process them aren't held up.
+     */
+    private static final Executor sDiskWriteExecutor = AsyncTask.newFixedThreadExecutor(1);
+
     /**
      * Creating a new ImageCache object using the specified parameters.
      *
@@ -98,33 +146,6 @@ public class ImageCache {
         init(new ImageCacheParams(context, uniqueName));
     }
 
-    /**
-     * Find and return an existing ImageCache stored in a {@link RetainFragment}, if not found a new
-     * one is created using the supplied params and saved to a {@link RetainFragment}.
-     *
-     * @param fragmentManager The fragment manager to use when dealing with the retained fragment.
-     * @param cacheParams The cache parameters to use if creating the ImageCache
-     *
-     * @return An existing retained ImageCache object or a new one if one did not exist
-     */
-    public static ImageCache findOrCreateCache(
-            FragmentManager fragmentManager, ImageCacheParams cacheParams) {
-
-        // Search for, or create an instance of the non-UI RetainFragment
-        final RetainFragment mRetainFragment = RetainFragment.getInstance(TAG, fragmentManager);
-
-        // See if we already have an ImageCache stored in RetainFragment
-        ImageCache imageCache = (ImageCache) mRetainFragment.get(TAG);
-
-        // No existing ImageCache, create one and store it in RetainFragment
-        if (imageCache == null) {
-            imageCache = new ImageCache(cacheParams);
-            mRetainFragment.put(TAG, imageCache);
-        }
-
-        return imageCache;
-    }
-
     /**
      * Initialize the cache, providing all parameters.
      *
@@ -141,7 +162,18 @@ public class ImageCache {
             mMemoryCache = new LruCache<String, Bitmap>(mCacheParams.memCacheSize) {
                 @Override
                 protected int sizeOf(String key, Bitmap bitmap) {
-                    return (bitmap.getRowBytes() * bitmap.getHeight());
+                    return BitmapPool.getAllocationSize(bitmap);
+                }
+
+                /**
+                 * Evicted bitmaps are pooled, so their memory can be reused by later decodes.
+                 */
+                @Override
+                protected void entryRemoved(boolean evicted, String key, Bitmap oldValue,
+                        Bitmap newValue) {
+                    if (evicted) {
+                        BitmapPool.getInstance().put(oldValue);
+                    }
                 }
             };
         }
@@ -172,7 +204,8 @@ public class ImageCache {
                     if (getUsableSpace(diskCacheDir) > mCacheParams.diskCacheSize) {
                         try {
                             mDiskLruCache = DiskLruCache.open(
-                                    diskCacheDir, 1, 1, mCacheParams.diskCacheSize);
+                                    diskCacheDir, DISK_CACHE_VERSION, 1,
+                                    mCacheParams.diskCacheSize);
                             if (BuildConfig.DEBUG) {
                                 Log.d(TAG, "Disk cache initialized");
                             }
@@ -220,8 +253,40 @@ public class ImageCache {
         }
     }
 
+    /**
+     * Adds a bitmap to the disk cache in the background. The bitmap isn't reused by the {@link
+     * BitmapPool} until it has been written.
+     *
+     * @param data Unique identifier for the bitmap to store
+     * @param bitmap The bitmap to store
+     */
+    public void addBitmapToDiskCacheAsync(final String data, final Bitmap bitmap) {
+        if (data == null || bitmap == null || !mCacheParams.diskCacheEnabled) {
+            return;
+        }
+
+        final BitmapPool pool = BitmapPool.getInstance();
+        pool.hold(bitmap);
+        sDiskWriteExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    long startNanos = System.nanoTime();
+                    addBitmapToDiskCache(data, bitmap);
+                    DISK_CACHE_WRITE_TIME.record(Metrics.elapsedMicros(startNanos));
+                } finally {
+                    pool.release(bitmap);
+                }
+            }
+        });
+    }
+
     /**
      * Adds a bitmap to the disk cache.
+     * <p/>
+     * Different keys often have the same image, e.g. the tracks of an album that isn't known to
+     * share a cover, so the compressed image is stored under a hash of its content, once. The
+     * entry for the key only holds the content entry's key.
      *
      * @param data Unique identifier for the bitmap to store
      * @param bitmap The bitmap to store
@@ -231,36 +296,109 @@ public class ImageCache {
             return;
         }
 
-        synchronized (mDiskCacheLock) {
-            // Add to disk cache
-            if (mDiskLruCache != null) {
-                final String key = hashKeyForDisk(data);
-                OutputStream out = null;
+        final DiskLruCache diskLruCache = getDiskLruCache();
+        if (diskLruCache == null) {
+            return;
+        }
+
+        // The bitmap is compressed without holding any lock, only the journal operations are
+        // serialised by the disk cache. Thumbnails are small enough to compress into memory
+        // first, so they can be hashed.
+        final String key = hashKeyForDisk(data);
+        try {
+            String contentKey = readContentKey(diskLruCache, key);
+            if (contentKey != null && hasEntry(diskLruCache, contentKey)) {
+                return;
+            }
+
+            // JPEG has no alpha channel, transparent images (e.g. plugin icons) would come back
+            // with black backgrounds. The decoder recognises either format.
+            CompressFormat format = (bitmap.hasAlpha() ? CompressFormat.PNG
+                    : mCacheParams.compressFormat);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            bitmap.compress(format, mCacheParams.compressQuality, out);
+            byte[] content = out.toByteArray();
+
+            contentKey = CONTENT_KEY_PREFIX + mHashFunction.hashBytes(content).toString();
+            if (hasEntry(diskLruCache, contentKey)) {
+                DISK_CACHE_DUPLICATES.increment();
+            } else {
+                writeEntry(diskLruCache, contentKey, content);
+            }
+            writeEntry(diskLruCache, key, contentKey.getBytes(Charsets.US_ASCII));
+        } catch (final IOException e) {
+            Log.e(TAG, "addBitmapToCache - " + e);
+        } catch (Exception e) {
+            Log.e(TAG, "addBitmapToCache - " + e);
+        }
+    }
+
+    /**
+     * @return The key of the entry that holds the image stored under the key, null if nothing is
+     * stored under the key.
+     */
+    private static String readContentKey(DiskLruCache diskLruCache, String key)
+            throws IOException {
+        long startNanos = System.nanoTime();
+        DiskLruCache.Snapshot snapshot = diskLruCache.get(key);
+        DISK_CACHE_JOURNAL_TIME.record(Metrics.elapsedMicros(startNanos));
+        if (snapshot == null) {
+            return null;
+        }
+        try {
+            return snapshot.getString(DISK_CACHE_INDEX);
+        } finally {
+            snapshot.close();
+        }
+    }
+
+    private static boolean hasEntry(DiskLruCache diskLruCache, String key) throws IOException {
+        long startNanos = System.nanoTime();
+        DiskLruCache.Snapshot snapshot = diskLruCache.get(key);
+        DISK_CACHE_JOURNAL_TIME.record(Metrics.elapsedMicros(startNanos));
+        if (snapshot == null) {
+            return false;
+        }
+        snapshot.close();
+        return true;
+    }
+
+    /**
+     * Stores the value under the key, unless another thread is storing one already.
+     */
+    private static void writeEntry(DiskLruCache diskLruCache, String key, byte[] value)
+            throws IOException {
+        long startNanos = System.nanoTime();
+        DiskLruCache.Editor editor = diskLruCache.edit(key);
+        DISK_CACHE_JOURNAL_TIME.record(Metrics.elapsedMicros(startNanos));
+
+        // The editor is null if the entry is being written by another thread.
+        if (editor == null) {
+            return;
+        }
+
+        OutputStream out = null;
+        try {
+            out = editor.newOutputStream(DISK_CACHE_INDEX);
+            out.write(value);
+            out.close();
+            out = null;
+
+            startNanos = System.nanoTime();
+            editor.commit();
+            editor = null;
+            DISK_CACHE_JOURNAL_TIME.record(Metrics.elapsedMicros(startNanos));
+        } finally {
+            try {
+                if (out != null) {
+                    out.close();
+                }
+            } catch (IOException e) {
+            }
+            if (editor != null) {
                 try {
-                    DiskLruCache.Snapshot snapshot = mDiskLruCache.get(key);
-                    if (snapshot == null) {
-                        final DiskLruCache.Editor editor = mDiskLruCache.edit(key);
-                        if (editor != null) {
-                            out = editor.newOutputStream(DISK_CACHE_INDEX);
-                            bitmap.compress(
-                                    mCacheParams.compressFormat, mCacheParams.compressQuality, out);
-                            editor.commit();
-                            out.close();
-                        }
-                    } else {
-                        snapshot.getInputStream(DISK_CACHE_INDEX).close();
-                    }
-                } catch (final IOException e) {
-                    Log.e(TAG, "addBitmapToCache - " + e);
+                    editor.abort();
                 } catch (Exception e) {
-                    Log.e(TAG, "addBitmapToCache - " + e);
-                } finally {
-                    try {
-                        if (out != null) {
-                            out.close();
-                        }
-                    } catch (IOException e) {
-                    }
                 }
             }
         }
@@ -278,6 +416,7 @@ public class ImageCache {
 
         if (mMemoryCache != null) {
             bitmap = mMemoryCache.get(data);
+            (bitmap != null ? MEMORY_CACHE_HITS : MEMORY_CACHE_MISSES).increment();
 
             /*
             Log.v(TAG, String.format(
@@ -294,6 +433,27 @@ public class ImageCache {
         return bitmap;
     }
 
+    /**
+     * Get from memory cache, and hold the bitmap in the {@link BitmapPool} so it isn't reused
+     * if it's evicted before the caller has shown it. The lookup is made under the pool's lock,
+     * so the bitmap can't be evicted and taken from the pool in between.
+     *
+     * @param data Unique identifier for which item to get
+     *
+     * @return The bitmap if found in cache, null otherwise. The caller must call {@link
+     * BitmapPool#release(Bitmap)} for it.
+     */
+    public Bitmap getBitmapFromMemCacheAndHold(String data) {
+        BitmapPool pool = BitmapPool.getInstance();
+        synchronized (pool) {
+            Bitmap bitmap = getBitmapFromMemCache(data);
+            if (bitmap != null) {
+                pool.hold(bitmap);
+            }
+            return bitmap;
+        }
+    }
+
     /**
      * Get from disk cache.
      *
@@ -302,7 +462,61 @@ public class ImageCache {
      * @return The bitmap if found in cache, null otherwise
      */
     public Bitmap getBitmapFromDiskCache(String data) {
-        final String key = hashKeyForDisk(data);
+        final DiskLruCache diskLruCache = getDiskLruCache();
+        if (diskLruCache != null) {
+            final String key = hashKeyForDisk(data);
+            InputStream inputStream = null;
+            try {
+                final String contentKey = readContentKey(diskLruCache, key);
+                DiskLruCache.Snapshot snapshot = null;
+                if (contentKey != null) {
+                    long startNanos = System.nanoTime();
+                    snapshot = diskLruCache.get(contentKey);
+                    DISK_CACHE_JOURNAL_TIME.record(Metrics.elapsedMicros(startNanos));
+                }
+                if (snapshot != null) {
+                    if (BuildConfig.DEBUG) {
+                        Log.d(TAG, "Disk cache hit");
+                    }
+                    // Decoded without holding any lock, the snapshot's stream stays readable
+                    // even if the entry is replaced or removed meanwhile.
+                    inputStream = snapshot.getInputStream(DISK_CACHE_INDEX);
+                    if (inputStream != null) {
+                        DISK_CACHE_HITS.increment();
+                        return BitmapFactory.decodeStream(inputStream, null,
+                                getPoolableOptions());
+                    }
+                }
+            } catch (final IOException e) {
+                Log.e(TAG, "getBitmapFromDiskCache - " + e);
+            } catch (IllegalStateException e) {
+                // The cache was closed while we were using it.
+                Log.e(TAG, "getBitmapFromDiskCache - " + e);
+            } finally {
+                try {
+                    if (inputStream != null) {
+                        inputStream.close();
+                    }
+                } catch (IOException e) {
+                }
+            }
+        }
+        DISK_CACHE_MISSES.increment();
+        return null;
+    }
+
+    /**
+     * Get the disk cache, waiting for it to be initialized first if needed. Once it has been
+     * initialized, no lock is taken.
+     *
+     * @return The disk cache, null if there isn't one.
+     */
+    private DiskLruCache getDiskLruCache() {
+        if (!mDiskCacheStarting) {
+            return mDiskLruCache;
+        }
+
+        long startNanos = System.nanoTime();
         synchronized (mDiskCacheLock) {
             while (mDiskCacheStarting) {
                 try {
@@ -310,31 +524,34 @@ public class ImageCache {
                 } catch (InterruptedException e) {
                 }
             }
-            if (mDiskLruCache != null) {
-                InputStream inputStream = null;
-                try {
-                    final DiskLruCache.Snapshot snapshot = mDiskLruCache.get(key);
-                    if (snapshot != null) {
-                        if (BuildConfig.DEBUG) {
-                            Log.d(TAG, "Disk cache hit");
-                        }
-                        inputStream = snapshot.getInputStream(DISK_CACHE_INDEX);
-                        if (inputStream != null) {
-                            return BitmapFactory.decodeStream(inputStream);
-                        }
-                    }
-                } catch (final IOException e) {
-                    Log.e(TAG, "getBitmapFromDiskCache - " + e);
-                } finally {
-                    try {
-                        if (inputStream != null) {
-                            inputStream.close();
-                        }
-                    } catch (IOException e) {
-                    }
-                }
-            }
-            return null;
+            DISK_CACHE_LOCK_WAIT_TIME.record(Metrics.elapsedMicros(startNanos));
+            return mDiskLruCache;
+        }
+    }
+
+    /**
+     * @return Options that decode to a mutable bitmap, so it can be reused through the {@link
+     * BitmapPool} once it's evicted from the memory cache.
+     */
+    @TargetApi(11)
+    private static BitmapFactory.Options getPoolableOptions() {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        if (UIUtils.hasHoneycomb()) {
+            options.inMutable = true;
+        }
+        return options;
+    }
+
+    /**
+     * Evicts bitmaps from the memory cache, least recently used first, until it uses no more than
+     * a share of its maximum size, e.g. because the system is low on memory. The evicted bitmaps
+     * are pooled as usual.
+     *
+     * @param fraction Share of the maximum size to keep, 0 to evict everything.
+     */
+    public void trimMemoryCache(float fraction) {
+        if (mMemoryCache != null) {
+            mMemoryCache.trimToSize((int) (mMemoryCache.maxSize() * fraction));
         }
     }
 
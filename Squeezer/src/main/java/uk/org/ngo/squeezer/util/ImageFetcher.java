@@ -16,24 +16,37 @@
 
 package uk.org.ngo.squeezer.util;
 
+import android.annotation.TargetApi;
 import android.content.Context;
 import android.graphics.Bitmap;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
 import android.os.Build;
 import android.util.Log;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.Striped;
+
 import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.Lock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import javax.annotation.Nullable;
 
 import uk.org.ngo.squeezer.BuildConfig;
+import uk.org.ngo.squeezer.R;
+import uk.org.ngo.squeezer.protocol.Metrics;
 
 /**
  * A subclass of {@link ImageWorker} that fetches images from a URL.
@@ -48,22 +61,78 @@ public class ImageFetcher extends ImageResizer {
 
     private static final int IO_BUFFER_SIZE = 8 * 1024;
 
-    private DiskLruCache mHttpDiskCache;
-
-    private File mHttpCacheDir;
+    /**
+     * The cache of downloaded images, shared by all fetchers and open for the life of the process.
+     * Opened by {@link #initHttpDiskCache(Context)}.
+     */
+    private static DiskLruCache sHttpDiskCache;
 
-    private boolean mHttpDiskCacheStarting = true;
+    private static boolean sHttpDiskCacheStarting = true;
 
-    private final Object mHttpDiskCacheLock = new Object();
+    private static final Object sHttpDiskCacheLock = new Object();
 
     private static final int DISK_CACHE_INDEX = 0;
 
+    /**
+     * Fetches of the same key wait for each other, fetches of keys in other stripes don't. Shared
+     * by all fetchers, as they share the HTTP cache directory.
+     */
+    private static final Striped<Lock> sDownloadLocks = Striped.lock(16);
+
+    /**
+     * The prefetches that are downloading without the stripe lock, by key, so fetches of the same
+     * key can wait for them. Shared by all fetchers.
+     */
+    private static final ConcurrentMap<String, UnlockedDownload> sUnlockedDownloads
+            = new ConcurrentHashMap<String, UnlockedDownload>();
+
+    /**
+     * A prefetch that is downloading without the stripe lock.
+     */
+    private static class UnlockedDownload {
+        final CountDownLatch done = new CountDownLatch(1);
+
+        /** Set when a fetch for an image view waits for the download, which stops throttling it. */
+        volatile boolean waitedFor;
+    }
+
+    /** How storing a download in the HTTP cache turned out. */
+    private enum DownloadResult {
+        STORED,
+        /** The download failed. */
+        FAILED,
+        /** Another fetch is storing the key, the download wasn't attempted. */
+        BUSY
+    }
+
+    private static final Metrics.Histogram DOWNLOAD_TIME = Metrics.histogram("artwork.download_us");
+
+    /** Throughput of each download, in KB per second. */
+    private static final Metrics.Histogram DOWNLOAD_THROUGHPUT = Metrics.histogram("artwork.download_kb_per_s");
+
+    private static final Metrics.Counter BYTES_DOWNLOADED = Metrics.counter("artwork.bytes_downloaded");
+
+    /** Artwork that had to be downloaded at full size because the server couldn't resize it. */
+    private static final Metrics.Counter SERVER_RESIZE_FAILURES = Metrics.counter("artwork.server_resize_failures");
+
+    /**
+     * Caps the bandwidth used by prefetches, all fetchers together, in bytes per second, to
+     * <code>R.integer.ArtworkPrefetchKBytesPerSecond</code>. Only applies while no image view is
+     * waiting for the image, see {@link Request#isPrefetchOnly()}.
+     */
+    private static RateLimiter sPrefetchLimiter;
+
+    private final ConnectivityManager mConnectivityManager;
+
+    /** Artwork served by the server, which can resize it, see {@link #getSizedUrl(String)}. */
+    private static final Pattern COVER_URL = Pattern.compile("/cover(\\.(jpg|png))$");
+
     /**
      * Create an ImageFetcher specifying custom parameters.
      */
     public ImageFetcher(Context context, int imageWidth, int imageHeight) {
         super(context, imageWidth, imageHeight);
-        init(context);
+        mConnectivityManager = init(context);
     }
 
     /**
@@ -71,55 +140,96 @@ public class ImageFetcher extends ImageResizer {
      */
     public ImageFetcher(Context context, int imageSize) {
         super(context, imageSize);
-        init(context);
+        mConnectivityManager = init(context);
     }
 
-    private void init(Context context) {
-        mHttpCacheDir = ImageCache.getDiskCacheDir(context, HTTP_CACHE_DIR);
+    private static synchronized ConnectivityManager init(Context context) {
+        if (sPrefetchLimiter == null) {
+            sPrefetchLimiter = RateLimiter.create(1024 * context.getResources().getInteger(
+                    R.integer.ArtworkPrefetchKBytesPerSecond));
+        }
+        return (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
     }
 
+    /**
+     * Artwork is only prefetched while the active network isn't metered, e.g. on Wi-Fi, as it may
+     * never be shown.
+     */
     @Override
-    protected void initDiskCacheInternal() {
-        super.initDiskCacheInternal();
-        initHttpDiskCache();
+    protected boolean canPrefetch() {
+        return !isActiveNetworkMetered(mConnectivityManager);
     }
 
-    private void initHttpDiskCache() {
-        if (!mHttpCacheDir.exists()) {
-            mHttpCacheDir.mkdirs();
+    @TargetApi(16)
+    private static boolean isActiveNetworkMetered(ConnectivityManager connectivityManager) {
+        if (UIUtils.hasJellyBean()) {
+            return connectivityManager.isActiveNetworkMetered();
         }
-        synchronized (mHttpDiskCacheLock) {
-            if (ImageCache.getUsableSpace(mHttpCacheDir) > HTTP_CACHE_SIZE) {
-                try {
-                    mHttpDiskCache = DiskLruCache.open(mHttpCacheDir, 1, 1, HTTP_CACHE_SIZE);
-                    if (BuildConfig.DEBUG) {
-                        Log.d(TAG, "HTTP cache initialized");
-                    }
-                } catch (IOException e) {
-                    mHttpDiskCache = null;
+
+        NetworkInfo networkInfo = connectivityManager.getActiveNetworkInfo();
+        if (networkInfo == null) {
+            return true;
+        }
+        switch (networkInfo.getType()) {
+            case ConnectivityManager.TYPE_WIFI:
+            case ConnectivityManager.TYPE_ETHERNET:
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Open the HTTP cache. Includes disk access, so this should not be executed on the main/UI
+     * thread. Fetches wait until it has been called.
+     */
+    public static void initHttpDiskCache(Context context) {
+        File httpCacheDir = ImageCache.getDiskCacheDir(context, HTTP_CACHE_DIR);
+        if (!httpCacheDir.exists()) {
+            httpCacheDir.mkdirs();
+        }
+        synchronized (sHttpDiskCacheLock) {
+            if (sHttpDiskCache == null || sHttpDiskCache.isClosed()) {
+                openHttpDiskCache(httpCacheDir);
+            }
+            sHttpDiskCacheStarting = false;
+            sHttpDiskCacheLock.notifyAll();
+        }
+    }
+
+    /**
+     * Must be called with {@link #sHttpDiskCacheLock} held.
+     */
+    private static void openHttpDiskCache(File httpCacheDir) {
+        if (ImageCache.getUsableSpace(httpCacheDir) > HTTP_CACHE_SIZE) {
+            try {
+                sHttpDiskCache = DiskLruCache.open(httpCacheDir, 1, 1, HTTP_CACHE_SIZE);
+                if (BuildConfig.DEBUG) {
+                    Log.d(TAG, "HTTP cache initialized");
                 }
+            } catch (IOException e) {
+                sHttpDiskCache = null;
             }
-            mHttpDiskCacheStarting = false;
-            mHttpDiskCacheLock.notifyAll();
         }
     }
 
     @Override
     protected void clearCacheInternal() {
         super.clearCacheInternal();
-        synchronized (mHttpDiskCacheLock) {
-            if (mHttpDiskCache != null && !mHttpDiskCache.isClosed()) {
+        synchronized (sHttpDiskCacheLock) {
+            if (sHttpDiskCache != null && !sHttpDiskCache.isClosed()) {
+                File httpCacheDir = sHttpDiskCache.getDirectory();
                 try {
-                    mHttpDiskCache.delete();
+                    sHttpDiskCache.delete();
                     if (BuildConfig.DEBUG) {
                         Log.d(TAG, "HTTP cache cleared");
                     }
                 } catch (IOException e) {
                     Log.e(TAG, "clearCacheInternal - " + e);
                 }
-                mHttpDiskCache = null;
-                mHttpDiskCacheStarting = true;
-                initHttpDiskCache();
+                sHttpDiskCache = null;
+                httpCacheDir.mkdirs();
+                openHttpDiskCache(httpCacheDir);
             }
         }
     }
@@ -127,10 +237,10 @@ public class ImageFetcher extends ImageResizer {
     @Override
     protected void flushCacheInternal() {
         super.flushCacheInternal();
-        synchronized (mHttpDiskCacheLock) {
-            if (mHttpDiskCache != null) {
+        synchronized (sHttpDiskCacheLock) {
+            if (sHttpDiskCache != null) {
                 try {
-                    mHttpDiskCache.flush();
+                    sHttpDiskCache.flush();
                     if (BuildConfig.DEBUG) {
                         Log.d(TAG, "HTTP cache flushed");
                     }
@@ -141,86 +251,99 @@ public class ImageFetcher extends ImageResizer {
         }
     }
 
-    @Override
-    protected void closeCacheInternal() {
-        super.closeCacheInternal();
-        synchronized (mHttpDiskCacheLock) {
-            if (mHttpDiskCache != null) {
+    /**
+     * Wait for the HTTP cache to be initialized.
+     *
+     * @return The HTTP cache, or null if it couldn't be opened.
+     */
+    @Nullable
+    private DiskLruCache waitForHttpDiskCache() {
+        synchronized (sHttpDiskCacheLock) {
+            while (sHttpDiskCacheStarting) {
                 try {
-                    if (!mHttpDiskCache.isClosed()) {
-                        mHttpDiskCache.close();
-                        mHttpDiskCache = null;
-                        if (BuildConfig.DEBUG) {
-                            Log.d(TAG, "HTTP cache closed");
-                        }
-                    }
-                } catch (IOException e) {
-                    Log.e(TAG, "closeCacheInternal - " + e);
+                    sHttpDiskCacheLock.wait();
+                } catch (InterruptedException e) {
                 }
             }
+            return sHttpDiskCache;
         }
     }
 
     /**
      * The main process method, which will be called by the ImageWorker in the AsyncTask background
      * thread.
+     * <p/>
+     * Only fetches with the same request key wait for each other, so each image (e.g. an album's
+     * cover, see {@link AlbumArtwork}) is only downloaded once, while others are downloaded in
+     * parallel.
      *
-     * @param key The key to load the bitmap, in this case, a regular http URL
+     * @param data The URL to download the bitmap from, in this case, a regular http URL
+     * @param requestKey The key the bitmap is cached under, see {@link #getRequestKey(Object)}
+     * @param request Who the bitmap is for, null if it's not known. Downloads are throttled
+     * while it's only for a prefetch.
      *
      * @return The downloaded and resized bitmap, null if downloading/resizing failed.
      */
     @Nullable
-    private Bitmap processBitmap(String data) {
+    private Bitmap processBitmap(String data, String requestKey,
+            @Nullable final Request request) {
         if (BuildConfig.DEBUG) {
             Log.d(TAG, "processBitmap - " + data);
         }
 
-        final String key = ImageCache.hashKeyForDisk(data);
+        final String key = ImageCache.hashKeyForDisk(requestKey);
         FileDescriptor fileDescriptor = null;
         FileInputStream fileInputStream = null;
         DiskLruCache.Snapshot snapshot;
-        synchronized (mHttpDiskCacheLock) {
-            // Wait for disk cache to initialize
-            while (mHttpDiskCacheStarting) {
+        DiskLruCache httpDiskCache = waitForHttpDiskCache();
+        if (httpDiskCache != null) {
+            final UnlockedDownload download = new UnlockedDownload();
+            if (request != null && request.isPrefetchOnly()
+                    && sUnlockedDownloads.putIfAbsent(key, download) == null) {
+                // A prefetch may be throttled, so it downloads without the lock, which would hold
+                // up loads of the other keys that share it. Fetches of the key that find the
+                // cache entry busy wait for it, see awaitUnlockedDownload().
                 try {
-                    mHttpDiskCacheLock.wait();
-                } catch (InterruptedException e) {
-                }
-            }
-
-            if (mHttpDiskCache != null) {
-                try {
-                    snapshot = mHttpDiskCache.get(key);
-                    if (snapshot == null) {
-                        if (BuildConfig.DEBUG) {
-                            Log.d(TAG, "processBitmap, not found in http cache, downloading...");
-                        }
-                        DiskLruCache.Editor editor = mHttpDiskCache.edit(key);
-                        if (editor != null) {
-                            if (downloadUrlToStream(data,
-                                    editor.newOutputStream(DISK_CACHE_INDEX))) {
-                                editor.commit();
-                            } else {
-                                editor.abort();
-                            }
+                    snapshot = getOrDownload(httpDiskCache, key, data, new Request() {
+                        @Override
+                        public boolean isPrefetchOnly() {
+                            return !download.waitedFor && request.isPrefetchOnly();
                         }
-                        snapshot = mHttpDiskCache.get(key);
-                    }
+                    }, false);
                     if (snapshot != null) {
-                        fileInputStream =
-                                (FileInputStream) snapshot.getInputStream(DISK_CACHE_INDEX);
-                        fileDescriptor = fileInputStream.getFD();
+                        snapshot.close();
                     }
                 } catch (IOException e) {
                     Log.e(TAG, "processBitmap - " + e);
                 } catch (IllegalStateException e) {
+                    // The cache was closed or cleared while we were using it.
                     Log.e(TAG, "processBitmap - " + e);
                 } finally {
-                    if (fileDescriptor == null && fileInputStream != null) {
-                        try {
-                            fileInputStream.close();
-                        } catch (IOException e) {
-                        }
+                    sUnlockedDownloads.remove(key);
+                    download.done.countDown();
+                }
+            }
+
+            Lock lock = sDownloadLocks.get(key);
+            lock.lock();
+            try {
+                snapshot = getOrDownload(httpDiskCache, key, data, request, true);
+                if (snapshot != null) {
+                    fileInputStream =
+                            (FileInputStream) snapshot.getInputStream(DISK_CACHE_INDEX);
+                    fileDescriptor = fileInputStream.getFD();
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "processBitmap - " + e);
+            } catch (IllegalStateException e) {
+                // The cache was closed or cleared while we were using it.
+                Log.e(TAG, "processBitmap - " + e);
+            } finally {
+                lock.unlock();
+                if (fileDescriptor == null && fileInputStream != null) {
+                    try {
+                        fileInputStream.close();
+                    } catch (IOException e) {
                     }
                 }
             }
@@ -242,10 +365,106 @@ public class ImageFetcher extends ImageResizer {
         return bitmap;
     }
 
+    /**
+     * Artwork from the server can be fetched at the size it will be shown at, which saves
+     * transferring and decoding a full size image.
+     *
+     * @return The URL of the artwork scaled by the server to fit {@link #mImageWidth} and {@link
+     * #mImageHeight}, or the URL unchanged if it isn't server artwork.
+     */
+    private String getSizedUrl(String url) {
+        Matcher matcher = COVER_URL.matcher(url);
+        if (mImageWidth <= 0 || mImageHeight <= 0 || !matcher.find()) {
+            return url;
+        }
+        return matcher.replaceFirst("/cover_" + mImageWidth + "x" + mImageHeight + "_o$1");
+    }
+
+    /**
+     * Get the image from the HTTP cache, downloading it first if it's not there, at the size it
+     * will be shown at if the server can resize it.
+     *
+     * @param waitIfBusy Whether to wait for an unlocked prefetch of the key that is storing the
+     * entry. Only fetches holding the stripe lock may wait, the prefetch could be waiting for
+     * itself otherwise.
+     *
+     * @return A snapshot of the cache entry, null if the image couldn't be downloaded.
+     */
+    @Nullable
+    private DiskLruCache.Snapshot getOrDownload(DiskLruCache httpDiskCache, String key,
+            String data, @Nullable Request request, boolean waitIfBusy) throws IOException {
+        DiskLruCache.Snapshot snapshot = httpDiskCache.get(key);
+        if (snapshot == null) {
+            if (BuildConfig.DEBUG) {
+                Log.d(TAG, "processBitmap, not found in http cache, downloading...");
+            }
+            String url = getSizedUrl(data);
+            DownloadResult result = downloadUrlToCache(httpDiskCache, key, url, request);
+            if (result == DownloadResult.FAILED && !url.equals(data)) {
+                // The server couldn't resize the image, settle for the original.
+                SERVER_RESIZE_FAILURES.increment();
+                result = downloadUrlToCache(httpDiskCache, key, data, request);
+            }
+            if (result == DownloadResult.BUSY && waitIfBusy) {
+                awaitUnlockedDownload(key, request);
+            }
+            snapshot = httpDiskCache.get(key);
+        }
+        return snapshot;
+    }
+
+    /**
+     * Wait for the unlocked prefetch of a key to finish, see {@link #sUnlockedDownloads}. It's no
+     * longer throttled if the fetch is for an image view.
+     */
+    private static void awaitUnlockedDownload(String key, @Nullable Request request) {
+        UnlockedDownload download = sUnlockedDownloads.get(key);
+        if (download == null) {
+            // It has already finished.
+            return;
+        }
+
+        if (request == null || !request.isPrefetchOnly()) {
+            download.waitedFor = true;
+        }
+        try {
+            download.done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Download a URL to an entry in the HTTP cache.
+     */
+    private DownloadResult downloadUrlToCache(DiskLruCache httpDiskCache, String key, String url,
+            @Nullable Request request) throws IOException {
+        DiskLruCache.Editor editor = httpDiskCache.edit(key);
+        if (editor == null) {
+            return DownloadResult.BUSY;
+        }
+        if (downloadUrlToStream(url, editor.newOutputStream(DISK_CACHE_INDEX), request)) {
+            editor.commit();
+            return DownloadResult.STORED;
+        }
+        editor.abort();
+        return DownloadResult.FAILED;
+    }
+
     @Override
     @Nullable
     protected Bitmap processBitmap(Object data) {
-        return processBitmap(String.valueOf(data));
+        return processBitmap(AlbumArtwork.getUrl(data), getRequestKey(data), null);
+    }
+
+    /**
+     * Prefetches are downloaded within the prefetch bandwidth cap, until an image view asks for
+     * the image.
+     */
+    @Override
+    @Nullable
+    protected Bitmap processBitmap(Object data, Request request) {
+        return processBitmap(AlbumArtwork.getUrl(data), getRequestKey(data), request);
     }
 
 
@@ -259,20 +478,41 @@ public class ImageFetcher extends ImageResizer {
      * @return A File pointing to the fetched bitmap
      */
     public boolean downloadUrlToStream(String urlString, OutputStream outputStream) {
+        return downloadUrlToStream(urlString, outputStream, null);
+    }
+
+    /**
+     * As {@link #downloadUrlToStream(String, OutputStream)}. Each buffer read while the request
+     * is only for a prefetch waits for the prefetch bandwidth cap, one byte per permit.
+     */
+    private boolean downloadUrlToStream(String urlString, OutputStream outputStream,
+            @Nullable Request request) {
         disableConnectionReuseIfNecessary();
         HttpURLConnection urlConnection = null;
-        BufferedOutputStream out = null;
-        BufferedInputStream in = null;
+        InputStream in = null;
+        long startNanos = System.nanoTime();
+        long bytes = 0;
 
         try {
             final URL url = new URL(urlString);
             urlConnection = (HttpURLConnection) url.openConnection();
-            in = new BufferedInputStream(urlConnection.getInputStream(), IO_BUFFER_SIZE);
-            out = new BufferedOutputStream(outputStream, IO_BUFFER_SIZE);
+            in = urlConnection.getInputStream();
+
+            byte[] buffer = new byte[IO_BUFFER_SIZE];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, count);
+                bytes += count;
+                if (request != null && count > 0 && request.isPrefetchOnly()) {
+                    sPrefetchLimiter.acquire(count);
+                }
+            }
 
-            int b;
-            while ((b = in.read()) != -1) {
-                out.write(b);
+            long elapsedMicros = Metrics.elapsedMicros(startNanos);
+            DOWNLOAD_TIME.record(elapsedMicros);
+            BYTES_DOWNLOADED.add(bytes);
+            if (elapsedMicros > 0) {
+                DOWNLOAD_THROUGHPUT.record(bytes * 1000 / elapsedMicros);
             }
             return true;
         } catch (final IOException e) {
@@ -282,9 +522,7 @@ public class ImageFetcher extends ImageResizer {
                 urlConnection.disconnect();
             }
             try {
-                if (out != null) {
-                    out.close();
-                }
+                outputStream.close();
                 if (in != null) {
                     in.close();
                 }
@@ -85,6 +85,14 @@ public class ImageResizer extends ImageWorker {
         setImageSize(size, size);
     }
 
+    /**
+     * Images are processed to the target size, so requests for different sizes aren't shared.
+     */
+    @Override
+    protected String getRequestKey(Object data) {
+        return data + "@" + mImageWidth + "x" + mImageHeight;
+    }
+
     /**
      * The main processing method. This happens in a background task. In this case we are just
      * sampling down the bitmap and returning it from a resource.
@@ -128,9 +136,16 @@ public class ImageResizer extends ImageWorker {
         // Calculate inSampleSize
         options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight);
 
-        // Decode bitmap with inSampleSize set
+        // Decode bitmap with inSampleSize set, into a pooled bitmap if there is one that fits
         options.inJustDecodeBounds = false;
-        return BitmapFactory.decodeResource(res, resId, options);
+        BitmapPool.getInstance().addInBitmapOptions(options);
+        try {
+            return BitmapFactory.decodeResource(res, resId, options);
+        } catch (IllegalArgumentException e) {
+            // The pooled bitmap didn't fit after all.
+            options.inBitmap = null;
+            return BitmapFactory.decodeResource(res, resId, options);
+        }
     }
 
     /**
@@ -154,9 +169,16 @@ public class ImageResizer extends ImageWorker {
         // Calculate inSampleSize
         options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight);
 
-        // Decode bitmap with inSampleSize set
+        // Decode bitmap with inSampleSize set, into a pooled bitmap if there is one that fits
         options.inJustDecodeBounds = false;
-        return BitmapFactory.decodeFile(filename, options);
+        BitmapPool.getInstance().addInBitmapOptions(options);
+        try {
+            return BitmapFactory.decodeFile(filename, options);
+        } catch (IllegalArgumentException e) {
+            // The pooled bitmap didn't fit after all.
+            options.inBitmap = null;
+            return BitmapFactory.decodeFile(filename, options);
+        }
     }
 
     /**
@@ -182,9 +204,16 @@ public class ImageResizer extends ImageWorker {
         // Calculate inSampleSize
         options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight);
 
-        // Decode bitmap with inSampleSize set
+        // Decode bitmap with inSampleSize set, into a pooled bitmap if there is one that fits
         options.inJustDecodeBounds = false;
-        return BitmapFactory.decodeFileDescriptor(fileDescriptor, null, options);
+        BitmapPool.getInstance().addInBitmapOptions(options);
+        try {
+            return BitmapFactory.decodeFileDescriptor(fileDescriptor, null, options);
+        } catch (IllegalArgumentException e) {
+            // The pooled bitmap didn't fit after all.
+            options.inBitmap = null;
+            return BitmapFactory.decodeFileDescriptor(fileDescriptor, null, options);
+        }
     }
 
     /**
@@ -23,15 +23,22 @@ import android.graphics.BitmapFactory;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.graphics.drawable.TransitionDrawable;
-import android.support.v4.app.FragmentManager;
 import android.util.Log;
 import android.widget.ImageView;
 
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import javax.annotation.Nullable;
 
 import uk.org.ngo.squeezer.BuildConfig;
+import uk.org.ngo.squeezer.R;
+import uk.org.ngo.squeezer.Squeezer;
+import uk.org.ngo.squeezer.protocol.Metrics;
 
 /**
  * This class wraps up completing some arbitrary long running work when loading a bitmap to an
@@ -46,8 +53,6 @@ public abstract class ImageWorker {
 
     private ImageCache mImageCache;
 
-    private ImageCache.ImageCacheParams mImageCacheParams;
-
     private Bitmap mLoadingBitmap;
 
     private boolean mFadeInBitmap = true;
@@ -62,14 +67,48 @@ public abstract class ImageWorker {
 
     private static final int MESSAGE_CLEAR = 0;
 
-    private static final int MESSAGE_INIT_DISK_CACHE = 1;
+    private static final int MESSAGE_FLUSH = 1;
 
-    private static final int MESSAGE_FLUSH = 2;
+    /**
+     * Runs the image loading tasks of all the workers, <code>R.integer.ArtworkFetchThreads</code>
+     * at a time, in priority order.
+     */
+    private static ArtworkScheduler sScheduler;
 
-    private static final int MESSAGE_CLOSE = 3;
+    /** Image views that joined a task already loading the same image, instead of starting one. */
+    private static final Metrics.Counter DUPLICATES_AVOIDED = Metrics.counter("artwork.duplicate_loads_avoided");
 
+    private static final Metrics.Counter PREFETCHES = Metrics.counter("artwork.prefetches");
+
+    /**
+     * Time from requesting an image that isn't in the memory cache until it's shown, split by
+     * whether it was read from the disk cache or had to be processed.
+     */
+    private static final Metrics.Histogram TIME_TO_IMAGE_FROM_DISK_CACHE
+            = Metrics.histogram("image.time_to_image_disk_cache_us");
+
+    private static final Metrics.Histogram TIME_TO_IMAGE_PROCESSED
+            = Metrics.histogram("image.time_to_image_processed_us");
+
+    /**
+     * The tasks that are loading images, keyed by {@link #getRequestKey(Object)}, so image views
+     * that want the same image share one task. Only used on the UI thread.
+     */
+    private final Map<String, BitmapWorkerTask> mTasksInFlight = new HashMap<String, BitmapWorkerTask>();
+
+    /**
+     * Workers are cheap to create, they all use the application's {@link ImageCache}.
+     */
     protected ImageWorker(Context context) {
         mResources = context.getResources();
+        mImageCache = Squeezer.getImageCache();
+        initScheduler(mResources);
+    }
+
+    private static synchronized void initScheduler(Resources resources) {
+        if (sScheduler == null) {
+            sScheduler = new ArtworkScheduler(resources.getInteger(R.integer.ArtworkFetchThreads));
+        }
     }
 
     /**
@@ -78,12 +117,24 @@ public abstract class ImageWorker {
      * will be used if an {@link ImageCache} has been set using {@link
      * ImageWorker#setImageCache(ImageCache)}. If the image is found in the memory cache, it is set
      * immediately, otherwise an {@link AsyncTask} will be created to asynchronously load the
-     * bitmap.
+     * bitmap. If a task is already loading the same bitmap, the image view is set by that task
+     * too.
+     * <p/>
+     * The image is loaded at {@link ArtworkScheduler#PRIORITY_VISIBLE}.
      *
      * @param data The URL of the image to download.
      * @param imageView The ImageView to bind the downloaded image to.
      */
     public void loadImage(Object data, ImageView imageView) {
+        loadImage(data, imageView, ArtworkScheduler.PRIORITY_VISIBLE);
+    }
+
+    /**
+     * As {@link #loadImage(Object, ImageView)}, at the given priority.
+     *
+     * @param priority One of the <code>PRIORITY_</code> constants in {@link ArtworkScheduler}.
+     */
+    public void loadImage(Object data, ImageView imageView, int priority) {
         if (data == null) {
             return;
         }
@@ -91,23 +142,93 @@ public abstract class ImageWorker {
         Bitmap bitmap = null;
 
         if (mImageCache != null) {
-            bitmap = mImageCache.getBitmapFromMemCache(String.valueOf(data));
+            bitmap = mImageCache.getBitmapFromMemCacheAndHold(getRequestKey(data));
         }
 
         if (bitmap != null) {
-            // Bitmap found in memory cache
+            // Bitmap found in memory cache. It's held until the pool knows it's displayed.
             imageView.setImageBitmap(bitmap);
+            BitmapPool.getInstance().setDisplayed(imageView, bitmap);
+            BitmapPool.getInstance().release(bitmap);
         } else if (cancelPotentialWork(data, imageView)) {
-            final BitmapWorkerTask task = new BitmapWorkerTask(imageView);
+            final String requestKey = getRequestKey(data);
+            BitmapWorkerTask task = mTasksInFlight.get(requestKey);
+            if (task != null && !task.isCancelled()) {
+                DUPLICATES_AVOIDED.increment();
+                task.attach(imageView);
+                task.scheduledExecutor.reschedule(priority);
+                imageView.setImageDrawable(new AsyncDrawable(mResources, mLoadingBitmap, task));
+                BitmapPool.getInstance().setDisplayed(imageView, null);
+                return;
+            }
+
+            task = new BitmapWorkerTask(requestKey, imageView, priority);
             final AsyncDrawable asyncDrawable =
                     new AsyncDrawable(mResources, mLoadingBitmap, task);
             imageView.setImageDrawable(asyncDrawable);
+            BitmapPool.getInstance().setDisplayed(imageView, null);
+            mTasksInFlight.put(requestKey, task);
 
             // NOTE: This uses a custom version of AsyncTask that has been pulled from the
             // framework and slightly modified. Refer to the docs at the top of the class
             // for more info on what was changed.
-            task.executeOnExecutor(AsyncTask.DUAL_THREAD_EXECUTOR, data);
+            task.executeOnExecutor(task.scheduledExecutor, data);
+        }
+    }
+
+    /**
+     * Load an image into the caches without showing it, so it can be shown straight away when
+     * it's wanted. If it's loaded with {@link #loadImage(Object, ImageView)} before the prefetch
+     * has finished, the prefetch is shared.
+     * <p/>
+     * Nothing is prefetched while {@link #canPrefetch()} is false.
+     *
+     * @param data The URL of the image to download.
+     * @param priority One of the <code>PRIORITY_</code> constants in {@link ArtworkScheduler},
+     * usually lower than {@link ArtworkScheduler#PRIORITY_VISIBLE}.
+     */
+    public void prefetch(Object data, int priority) {
+        if (data == null || !canPrefetch()) {
+            return;
+        }
+
+        final String requestKey = getRequestKey(data);
+        BitmapWorkerTask task = mTasksInFlight.get(requestKey);
+        if (task != null && !task.isCancelled()) {
+            task.scheduledExecutor.reschedule(priority);
+            return;
         }
+
+        if (mImageCache != null && mImageCache.getBitmapFromMemCache(requestKey) != null) {
+            return;
+        }
+
+        PREFETCHES.increment();
+        task = new BitmapWorkerTask(requestKey, null, priority);
+        mTasksInFlight.put(requestKey, task);
+        task.executeOnExecutor(task.scheduledExecutor, data);
+    }
+
+    /**
+     * Subclasses should override this if prefetching is sometimes unwanted, it's checked when an
+     * image is prefetched and again before the prefetch starts.
+     *
+     * @return Whether images may be prefetched now.
+     */
+    protected boolean canPrefetch() {
+        return true;
+    }
+
+    /**
+     * Subclasses that load the same data differently, e.g. at different sizes, should override
+     * this so the different versions aren't shared.
+     *
+     * @return The key that identifies the bitmap that {@link #processBitmap(Object)} produces
+     * for the data. Used as the cache key, and to share a task between image views that want the
+     * same bitmap.
+     */
+    protected String getRequestKey(Object data) {
+        return String.valueOf(data);
     }
 
     /**
@@ -128,25 +249,9 @@ public abstract class ImageWorker {
         mLoadingBitmap = BitmapFactory.decodeResource(mResources, resId);
     }
 
-    /**
-     * Adds an {@link ImageCache} to this worker in the background (to prevent disk access on UI
-     * thread).
-     *
-     * @param fragmentManager
-     * @param cacheParams
-     */
-    public void addImageCache(FragmentManager fragmentManager,
-            ImageCache.ImageCacheParams cacheParams) {
-        mImageCacheParams = cacheParams;
-        setImageCache(ImageCache.findOrCreateCache(fragmentManager, mImageCacheParams));
-        new CacheAsyncTask().execute(MESSAGE_INIT_DISK_CACHE);
-    }
-
     /**
      * Sets the {@link ImageCache} object to use with this ImageWorker. Usually you will not need to
-     * call this directly, instead use {@link ImageWorker#addImageCache} which will create and add
-     * the {@link ImageCache} object in a background thread (to ensure no disk access on the main/UI
-     * thread).
+     * call this directly, workers use the application's cache by default.
      *
      * @param imageCache
      */
@@ -179,15 +284,37 @@ public abstract class ImageWorker {
     protected abstract Bitmap processBitmap(Object data);
 
     /**
-     * Cancels any pending work attached to the provided ImageView.
+     * Who an image being processed is for. That can change while it's processed: an image view
+     * can ask for an image that is being prefetched.
+     */
+    protected interface Request {
+        /**
+         * @return True if no image view is waiting for the image now, only a prefetch.
+         */
+        boolean isPrefetchOnly();
+    }
+
+    /**
+     * As {@link #processBitmap(Object)}. Subclasses can override this to treat images that are
+     * only prefetched differently, e.g. to use less bandwidth for them.
+     *
+     * @param request Who the image is for, check it as the image is processed.
+     */
+    @Nullable
+    protected Bitmap processBitmap(Object data, Request request) {
+        return processBitmap(data);
+    }
+
+    /**
+     * Cancels any pending work attached to the provided ImageView. Work that other image views are
+     * waiting for carries on for them.
      *
      * @param imageView
      */
     public static void cancelWork(ImageView imageView) {
         final BitmapWorkerTask bitmapWorkerTask = getBitmapWorkerTask(imageView);
         if (bitmapWorkerTask != null) {
-            bitmapWorkerTask.cancel(true);
-            if (BuildConfig.DEBUG) {
+            if (bitmapWorkerTask.detach(imageView) && BuildConfig.DEBUG) {
                 final Object bitmapData = bitmapWorkerTask.data;
                 Log.d(TAG, "cancelWork - cancelled work for " + bitmapData);
             }
@@ -197,7 +324,8 @@ public abstract class ImageWorker {
     /**
      * Returns true if the current work has been cancelled or if there was no work in progress on
      * this image view. Returns false if the work in progress deals with the same data. The work is
-     * not stopped in that case.
+     * not stopped in that case. Work that other image views are waiting for is not stopped
+     * either, but this image view is no longer set by it.
      */
     public static boolean cancelPotentialWork(Object data, ImageView imageView) {
         final BitmapWorkerTask bitmapWorkerTask = getBitmapWorkerTask(imageView);
@@ -205,8 +333,7 @@ public abstract class ImageWorker {
         if (bitmapWorkerTask != null) {
             final Object bitmapData = bitmapWorkerTask.data;
             if (bitmapData == null || !bitmapData.equals(data)) {
-                bitmapWorkerTask.cancel(true);
-                if (BuildConfig.DEBUG) {
+                if (bitmapWorkerTask.detach(imageView) && BuildConfig.DEBUG) {
                     Log.d(TAG, "cancelPotentialWork - cancelled work for " + data);
                 }
             } else {
@@ -235,16 +362,88 @@ public abstract class ImageWorker {
     }
 
     /**
-     * The actual AsyncTask that will asynchronously process the image.
+     * The actual AsyncTask that will asynchronously process the image, and set it on all the image
+     * views that are waiting for it.
      */
-    private class BitmapWorkerTask extends AsyncTask<Object, Void, Bitmap> {
+    private class BitmapWorkerTask extends AsyncTask<Object, Void, Bitmap>
+            implements ArtworkScheduler.Job, Request {
 
         private Object data;
 
-        private final WeakReference<ImageView> imageViewReference;
+        private final String requestKey;
+
+        /** When the task was created, to measure the time until the image is shown. */
+        private final long startNanos = System.nanoTime();
+
+        /** True if the bitmap was read from the disk cache rather than processed. */
+        private boolean fromDiskCache;
 
-        public BitmapWorkerTask(ImageView imageView) {
-            imageViewReference = new WeakReference<ImageView>(imageView);
+        /**
+         * The image views waiting for the image. Only changed on the UI thread, but read by the
+         * background thread too.
+         */
+        private final List<WeakReference<ImageView>> imageViewReferences
+                = new CopyOnWriteArrayList<WeakReference<ImageView>>();
+
+        /** Schedules the task, and can move it up the queue if more image views want it. */
+        private final ArtworkScheduler.ScheduledExecutor scheduledExecutor;
+
+        /** True if the task was started by {@link #prefetch(Object, int)}. */
+        private final boolean prefetch;
+
+        /**
+         * @param imageView The image view to set the image on, null to prefetch the image.
+         */
+        public BitmapWorkerTask(String requestKey, @Nullable ImageView imageView, int priority) {
+            this.requestKey = requestKey;
+            scheduledExecutor = sScheduler.forJob(this, priority);
+            prefetch = (imageView == null);
+            if (imageView != null) {
+                attach(imageView);
+            }
+        }
+
+        /**
+         * Set the image on the image view too, when it has been processed.
+         */
+        void attach(ImageView imageView) {
+            imageViewReferences.add(new WeakReference<ImageView>(imageView));
+        }
+
+        /**
+         * Stop setting the image on the image view, and cancel the task if no other image views
+         * are waiting for it.
+         *
+         * @return True if the task was cancelled.
+         */
+        boolean detach(ImageView imageView) {
+            for (int i = imageViewReferences.size() - 1; i >= 0; i--) {
+                ImageView attached = imageViewReferences.get(i).get();
+                if (attached == null || attached == imageView) {
+                    imageViewReferences.remove(i);
+                }
+            }
+            if (!prefetch && getAttachedImageViews().isEmpty()) {
+                cancel(true);
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * The task is only worth starting if an image view still wants the image, image views
+         * may have been recycled for other rows while it was queued. Prefetches are wanted as
+         * long as prefetching is allowed.
+         */
+        @Override
+        public boolean isWanted() {
+            return !isCancelled() && !mExitTasksEarly
+                    && (hasAttachedImageView() || (prefetch && canPrefetch()));
+        }
+
+        @Override
+        public void discard() {
+            cancel(true);
         }
 
         /**
@@ -257,7 +456,6 @@ public abstract class ImageWorker {
             }
 
             data = params[0];
-            final String dataString = String.valueOf(data);
             Bitmap bitmap = null;
 
             // Wait here if work is paused and the task is not cancelled
@@ -270,22 +468,25 @@ public abstract class ImageWorker {
                 }
             }
 
-            // If the image cache is available and this task has not been cancelled by another
-            // thread and the ImageView that was originally bound to this task is still bound back
-            // to this task and our "exit early" flag is not set then try and fetch the bitmap from
-            // the cache
-            if (mImageCache != null && !isCancelled() && getAttachedImageView() != null
-                    && !mExitTasksEarly) {
-                bitmap = mImageCache.getBitmapFromDiskCache(dataString);
+            // If the image cache is available and this task is still wanted (it has not been
+            // cancelled by another thread, an ImageView that was bound to this task is still bound
+            // back to this task or it's a prefetch, and our "exit early" flag is not set) then try
+            // and fetch the bitmap from the cache
+            if (mImageCache != null && isWanted()) {
+                bitmap = mImageCache.getBitmapFromDiskCache(requestKey);
+                fromDiskCache = bitmap != null;
+            }
+
+            // If the bitmap was not found in the cache and this task is still wanted, then call
+            // the main process method (as implemented by a subclass)
+            if (bitmap == null && isWanted()) {
+                bitmap = processBitmap(params[0], this);
             }
 
-            // If the bitmap was not found in the cache and this task has not been cancelled by
-            // another thread and the ImageView that was originally bound to this task is still
-            // bound back to this task and our "exit early" flag is not set, then call the main
-            // process method (as implemented by a subclass)
-            if (bitmap == null && !isCancelled() && getAttachedImageView() != null
-                    && !mExitTasksEarly) {
-                bitmap = processBitmap(params[0]);
+            // The bitmap isn't shown until onPostExecute, so it mustn't be reused if it's evicted
+            // from the memory cache before then. Released in onPostExecute or onCancelled.
+            if (bitmap != null) {
+                BitmapPool.getInstance().hold(bitmap);
             }
 
             // If the bitmap was processed and the image cache is available, then add the processed
@@ -293,7 +494,13 @@ public abstract class ImageWorker {
             // cancelled here, if it was, and the thread is still running, we may as well add the
             // processed bitmap to our cache as it might be used again in the future.
             if (bitmap != null && mImageCache != null) {
-                mImageCache.addBitmapToMemoryCache(dataString, bitmap);
+                mImageCache.addBitmapToMemoryCache(requestKey, bitmap);
+
+                // Keep the processed bitmap on disk too, so it doesn't have to be processed from
+                // the original again after a restart.
+                if (!fromDiskCache) {
+                    mImageCache.addBitmapToDiskCacheAsync(requestKey, bitmap);
+                }
             }
 
             if (BuildConfig.DEBUG) {
@@ -304,45 +511,82 @@ public abstract class ImageWorker {
         }
 
         /**
-         * Once the image is processed, associates it to the imageView
+         * Once the image is processed, associates it to the imageViews
          */
         @Override
         protected void onPostExecute(Bitmap bitmap) {
+            removeFromTasksInFlight();
+
             // if cancel was called on this task or the "exit early" flag is set then we're done
-            if (isCancelled() || mExitTasksEarly) {
-                bitmap = null;
+            if (!isCancelled() && !mExitTasksEarly && bitmap != null) {
+                List<ImageView> imageViews = getAttachedImageViews();
+                if (!imageViews.isEmpty()) {
+                    (fromDiskCache ? TIME_TO_IMAGE_FROM_DISK_CACHE : TIME_TO_IMAGE_PROCESSED)
+                            .record(Metrics.elapsedMicros(startNanos));
+                    for (ImageView imageView : imageViews) {
+                        if (BuildConfig.DEBUG) {
+                            Log.d(TAG, "onPostExecute - setting bitmap");
+                        }
+                        setImageBitmap(imageView, bitmap);
+                    }
+                }
             }
 
-            final ImageView imageView = getAttachedImageView();
-            if (bitmap != null && imageView != null) {
-                if (BuildConfig.DEBUG) {
-                    Log.d(TAG, "onPostExecute - setting bitmap");
-                }
-                setImageBitmap(imageView, bitmap);
+            // Now it's either displayed, and kept from reuse by that, or only in the cache.
+            if (bitmap != null) {
+                BitmapPool.getInstance().release(bitmap);
             }
         }
 
         @Override
         protected void onCancelled(Bitmap bitmap) {
             super.onCancelled(bitmap);
+            if (bitmap != null) {
+                BitmapPool.getInstance().release(bitmap);
+            }
+            removeFromTasksInFlight();
             synchronized (mPauseWorkLock) {
                 mPauseWorkLock.notifyAll();
             }
         }
 
+        private void removeFromTasksInFlight() {
+            if (mTasksInFlight.get(requestKey) == this) {
+                mTasksInFlight.remove(requestKey);
+            }
+        }
+
+        @Override
+        public boolean isPrefetchOnly() {
+            return prefetch && !hasAttachedImageView();
+        }
+
         /**
-         * Returns the ImageView associated with this task as long as the ImageView's task still
-         * points to this task as well. Returns null otherwise.
+         * @return True if any of the ImageViews associated with this task still point to this
+         * task as well.
          */
-        private ImageView getAttachedImageView() {
-            final ImageView imageView = imageViewReference.get();
-            final BitmapWorkerTask bitmapWorkerTask = getBitmapWorkerTask(imageView);
-
-            if (this == bitmapWorkerTask) {
-                return imageView;
+        private boolean hasAttachedImageView() {
+            for (WeakReference<ImageView> imageViewReference : imageViewReferences) {
+                if (getBitmapWorkerTask(imageViewReference.get()) == this) {
+                    return true;
+                }
             }
+            return false;
+        }
 
-            return null;
+        /**
+         * Returns the ImageViews associated with this task as long as the ImageView's task still
+         * points to this task as well.
+         */
+        private List<ImageView> getAttachedImageViews() {
+            List<ImageView> imageViews = new ArrayList<ImageView>(imageViewReferences.size());
+            for (WeakReference<ImageView> imageViewReference : imageViewReferences) {
+                final ImageView imageView = imageViewReference.get();
+                if (getBitmapWorkerTask(imageView) == this) {
+                    imageViews.add(imageView);
+                }
+            }
+            return imageViews;
         }
     }
 
@@ -387,6 +631,7 @@ public abstract class ImageWorker {
         } else {
             imageView.setImageDrawable(new BitmapDrawable(mResources, bitmap));
         }
+        BitmapPool.getInstance().setDisplayed(imageView, bitmap);
     }
 
     public void setPauseWork(boolean pauseWork) {
@@ -406,26 +651,14 @@ public abstract class ImageWorker {
                 case MESSAGE_CLEAR:
                     clearCacheInternal();
                     break;
-                case MESSAGE_INIT_DISK_CACHE:
-                    initDiskCacheInternal();
-                    break;
                 case MESSAGE_FLUSH:
                     flushCacheInternal();
                     break;
-                case MESSAGE_CLOSE:
-                    closeCacheInternal();
-                    break;
             }
             return null;
         }
     }
 
-    protected void initDiskCacheInternal() {
-        if (mImageCache != null) {
-            mImageCache.initDiskCache();
-        }
-    }
-
     protected void clearCacheInternal() {
         if (mImageCache != null) {
             mImageCache.clearCache();
@@ -438,13 +671,6 @@ public abstract class ImageWorker {
         }
     }
 
-    protected void closeCacheInternal() {
-        if (mImageCache != null) {
-            mImageCache.close();
-            mImageCache = null;
-        }
-    }
-
     public void clearCache() {
         new CacheAsyncTask().execute(MESSAGE_CLEAR);
     }
@@ -452,8 +678,4 @@ public abstract class ImageWorker {
     public void flushCache() {
         new CacheAsyncTask().execute(MESSAGE_FLUSH);
     }
-
-    public void closeCache() {
-        new CacheAsyncTask().execute(MESSAGE_CLOSE);
-    }
 }
@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2014 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package uk.org.ngo.squeezer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for the {@link Util} methods that are called for every token received from the
+ * server.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class UtilBenchmark {
+
+    /** A typical token value with no escapes. */
+    String plain = "1413451021";
+
+    /** A value with escaped spaces and punctuation, as sent for URLs and titles. */
+    String escaped = "file%3A%2F%2F%2Fmusic%2FMiles%20Davis%2FKind%20of%20Blue%2F01.flac";
+
+    /** A value with escaped multi-byte UTF-8 characters. */
+    String escapedUtf8 = "Sigur%20R%C3%B3s%20-%20%C3%81g%C3%A6tis%20byrjun";
+
+    String unescaped = "Sigur Rós - Ágætis byrjun";
+
+    String integer = "42";
+
+    /** Durations and times are sent as decimals, and truncated to an integer. */
+    String decimal = "251.373";
+
+    @Benchmark
+    public String decodePlain() {
+        return Util.decode(plain);
+    }
+
+    @Benchmark
+    public String decodeEscaped() {
+        return Util.decode(escaped);
+    }
+
+    @Benchmark
+    public String decodeEscapedUtf8() {
+        return Util.decode(escapedUtf8);
+    }
+
+    @Benchmark
+    public String encode() {
+        return Util.encode(unescaped);
+    }
+
+    @Benchmark
+    public int parseDecimalInt() {
+        return Util.parseDecimalInt(integer, 0);
+    }
+
+    @Benchmark
+    public int parseDecimalIntTruncated() {
+        return Util.parseDecimalInt(decimal, 0);
+    }
+}
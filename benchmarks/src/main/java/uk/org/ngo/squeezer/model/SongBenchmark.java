@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2014 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package uk.org.ngo.squeezer.model;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks construction of a {@link Song} from a decoded record, as done for every song in a
+ * list reply.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SongBenchmark {
+
+    /** A record with all the tags the service asks for. */
+    Map<String, String> record = new HashMap<String, String>();
+
+    {
+        record.put("id", "50003");
+        record.put("title", "Blue Night River");
+        record.put("artist", "Nina Simone");
+        record.put("compilation", "0");
+        record.put("duration", "251.373");
+        record.put("album_id", "1000");
+        record.put("coverart", "1");
+        record.put("artwork_track_id", "50000");
+        record.put("album", "Morning Ocean");
+        record.put("artist_id", "201");
+        record.put("tracknum", "4");
+        record.put("url", "file:///music/Nina%20Simone/Morning%20Ocean/04.flac");
+        record.put("remote", "0");
+        record.put("year", "1965");
+    }
+
+    @Benchmark
+    public Song newSong() {
+        return new Song(record);
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2014 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package uk.org.ngo.squeezer.service;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Resources;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import uk.org.ngo.squeezer.protocol.ListCommand;
+import uk.org.ngo.squeezer.protocol.Tokens;
+
+/**
+ * Benchmarks {@link CliClient#parseSqueezerList(ListCommand, java.util.List)}
+ * on recorded replies, including splitting the line in to tokens the way
+ * {@link SqueezeService} does.
+ * <p/>
+ * No request is pending for the replies' correlation ids, so the parsed items are not passed
+ * to a callback and no further pages are requested.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CliClientBenchmark {
+
+    private CliClient cli;
+
+    private ListCommand songsCmd;
+
+    private ListCommand albumsCmd;
+
+    private ListCommand statusCmd;
+
+    /** A page of 20 songs, with all the tags in SqueezeService.SONGTAGS. */
+    private String songsLine;
+
+    /** A page of 20 albums, with all the tags in SqueezeService.ALBUMTAGS. */
+    private String albumsLine;
+
+    /** Player status with the current song, as sent for a status subscription. */
+    private String statusLine;
+
+    @Setup
+    public void setUp() throws IOException {
+        // The service is only used to send commands, which these replies never need.
+        cli = new CliClient(null);
+        songsCmd = cli.extQueryFormatCmdMap.get("songs");
+        albumsCmd = cli.extQueryFormatCmdMap.get("albums");
+        statusCmd = cli.extQueryFormatCmdMap.get("status");
+
+        songsLine = readLine("songs.txt");
+        albumsLine = readLine("albums.txt");
+        statusLine = readLine("status.txt");
+    }
+
+    private static String readLine(String name) throws IOException {
+        return Resources.toString(Resources.getResource(CliClientBenchmark.class, name),
+                Charsets.UTF_8).trim();
+    }
+
+    @Benchmark
+    public void parseSongs() {
+        cli.parseSqueezerList(songsCmd, Tokens.split(songsLine));
+    }
+
+    @Benchmark
+    public void parseAlbums() {
+        cli.parseSqueezerList(albumsCmd, Tokens.split(albumsLine));
+    }
+
+    @Benchmark
+    public void parseStatus() {
+        cli.parseSqueezerList(statusCmd, Tokens.split(statusLine));
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2014 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.service;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Resources;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replays captured sessions as fast as possible, so they can serve as regression fixtures.
+ * <p/>
+ * To add a fixture, capture a session with the "Capture server conversation" setting, copy it
+ * to this directory, and add its name to {@link #session}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ReplayBenchmark {
+
+    /** Browsing songs and albums, with status updates for one player. */
+    @Param({"session.txt"})
+    public String session;
+
+    private SessionReplay replay;
+
+    private List<SessionReplay.CapturedLine> lines;
+
+    @Setup
+    public void setUp() throws IOException {
+        replay = new SessionReplay();
+        String capture = Resources.toString(Resources.getResource(ReplayBenchmark.class, session),
+                Charsets.UTF_8);
+        lines = SessionReplay.read(new BufferedReader(new StringReader(capture)));
+    }
+
+    @Benchmark
+    public int replay() {
+        return replay.dispatchAll(lines);
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright (c) 2014 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.service;
+
+import com.google.common.base.Charsets;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import uk.org.ngo.squeezer.protocol.CommandDispatcher;
+import uk.org.ngo.squeezer.protocol.ListCommand;
+import uk.org.ngo.squeezer.protocol.Metrics;
+import uk.org.ngo.squeezer.protocol.Tokens;
+
+/**
+ * Replays a session captured by {@link ProtocolLog#startCapture(java.io.File)} on a desktop JVM.
+ * <p/>
+ * Received lines are fed through the same parsing as in {@link SqueezeService}, either at the
+ * recorded pace (optionally sped up) or as fast as possible, and the throughput, allocations and
+ * time spent handling each line are reported. Sent lines are only used for their timestamps.
+ * <p/>
+ * Only the replies that are parsed by {@link CliClient} can be handled off-device; other lines
+ * are counted, but skipped.
+ * <p/>
+ * Run with:
+ * <pre>
+ * ./gradlew :benchmarks:replay -Pcapture=cli-20141016-103701.txt [-Pspeed=10]
+ * </pre>
+ * where a speed of 1 replays at the recorded pace, 10 replays ten times faster, and 0 (the
+ * default) replays as fast as possible.
+ */
+public class SessionReplay {
+
+    /**
+     * One line from a capture file.
+     */
+    public static class CapturedLine {
+        /** Milliseconds since the capture started. */
+        final long timeMillis;
+
+        /** True if the line was sent to the server, false if it was received. */
+        final boolean sent;
+
+        final String line;
+
+        CapturedLine(long timeMillis, boolean sent, String line) {
+            this.timeMillis = timeMillis;
+            this.sent = sent;
+            this.line = line;
+        }
+    }
+
+    private final CliClient cli = new CliClient(null);
+
+    /** Finds the list command for a reply, the way SqueezeService finds its handler. */
+    private final CommandDispatcher<ListCommand> dispatcher = new CommandDispatcher<ListCommand>();
+
+    /** Time to handle each received line that could be handled, in microseconds. */
+    private final Metrics.Histogram dispatchTime = Metrics.histogram("replay.dispatch_us");
+
+    public SessionReplay() {
+        for (ListCommand cmd : cli.extQueryFormatCmds) {
+            dispatcher.put(cmd.handlerList, cmd.cmd, cmd);
+        }
+    }
+
+    /**
+     * Read a capture file.
+     *
+     * @throws IOException If the file can't be read, or isn't a capture file.
+     */
+    public static List<CapturedLine> read(BufferedReader reader) throws IOException {
+        List<CapturedLine> lines = new ArrayList<CapturedLine>();
+        String line;
+        int lineNumber = 0;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            if (line.length() == 0 || line.startsWith("#")) {
+                continue;
+            }
+
+            String[] fields = line.split("\t", 3);
+            if (fields.length != 3 || !("SEND".equals(fields[1]) || "RECV".equals(fields[1]))) {
+                throw new IOException("Line " + lineNumber + " is not a captured line: " + line);
+            }
+            try {
+                lines.add(new CapturedLine(Long.parseLong(fields[0]), "SEND".equals(fields[1]),
+                        fields[2]));
+            } catch (NumberFormatException e) {
+                throw new IOException("Line " + lineNumber + " has a bad timestamp: " + line);
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * Handle a line received from the server, the way {@link SqueezeService} would.
+     *
+     * @return True if the line was handled, false if it can't be handled off-device.
+     */
+    public boolean dispatch(String line) {
+        List<String> tokens = Tokens.split(line);
+        ListCommand cmd = findCommand(tokens);
+        if (cmd == null) {
+            return false;
+        }
+
+        long start = System.nanoTime();
+        cli.parseSqueezerList(cmd, tokens);
+        dispatchTime.record(Metrics.elapsedMicros(start));
+        return true;
+    }
+
+    /**
+     * Handle every received line, as fast as possible.
+     *
+     * @return The number of lines that were handled.
+     */
+    public int dispatchAll(List<CapturedLine> lines) {
+        int handled = 0;
+        for (CapturedLine capturedLine : lines) {
+            if (!capturedLine.sent && dispatch(capturedLine.line)) {
+                handled++;
+            }
+        }
+        return handled;
+    }
+
+    /**
+     * @return The list command that a reply is for, null if it isn't a list reply.
+     */
+    private ListCommand findCommand(List<String> tokens) {
+        if (tokens.size() < 3) {
+            return null;
+        }
+
+        // SqueezeService handles the playlists replies itself, the other list replies are
+        // found the same way as their handlers. Status replies are only handled for the active
+        // player, which is whichever player the reply is for.
+        if ("playlists".equals(tokens.get(0))) {
+            if ("tracks".equals(tokens.get(1))) {
+                return cli.extQueryFormatCmdMap.get("playlists tracks");
+            }
+            return isNumber(tokens.get(1)) ? cli.extQueryFormatCmdMap.get("playlists") : null;
+        }
+
+        CommandDispatcher.Entry<ListCommand> entry
+                = dispatcher.find(tokens, Tokens.decode(tokens.get(0)));
+        return entry != null ? entry.handler : null;
+    }
+
+    private static boolean isNumber(String token) {
+        try {
+            Integer.parseInt(token);
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Replay the received lines.
+     *
+     * @param speed How much faster than recorded to replay, or 0 to replay as fast as possible.
+     */
+    public void replay(List<CapturedLine> lines, double speed) throws InterruptedException {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        com.sun.management.ThreadMXBean allocationBean
+                = (threadBean instanceof com.sun.management.ThreadMXBean)
+                ? (com.sun.management.ThreadMXBean) threadBean : null;
+        long threadId = Thread.currentThread().getId();
+
+        int received = 0;
+        int handled = 0;
+        long bytes = 0;
+        long maxLagMillis = 0;
+        long startAllocated = allocationBean != null
+                ? allocationBean.getThreadAllocatedBytes(threadId) : 0;
+        long startNanos = System.nanoTime();
+
+        for (CapturedLine capturedLine : lines) {
+            if (capturedLine.sent) {
+                continue;
+            }
+
+            if (speed > 0) {
+                long dueMillis = (long) (capturedLine.timeMillis / speed);
+                long nowMillis = (System.nanoTime() - startNanos) / 1000000;
+                if (dueMillis > nowMillis) {
+                    Thread.sleep(dueMillis - nowMillis);
+                } else {
+                    maxLagMillis = Math.max(maxLagMillis, nowMillis - dueMillis);
+                }
+            }
+
+            received++;
+            bytes += capturedLine.line.length() + 1;
+            if (dispatch(capturedLine.line)) {
+                handled++;
+            }
+        }
+
+        double elapsedSeconds = (System.nanoTime() - startNanos) / 1e9;
+        long allocated = allocationBean != null
+                ? allocationBean.getThreadAllocatedBytes(threadId) - startAllocated : -1;
+
+        System.out.println(String.format(Locale.US, "Received lines: %d (%d handled, %d skipped)",
+                received, handled, received - handled));
+        System.out.println(String.format(Locale.US, "Elapsed: %.3f s", elapsedSeconds));
+        System.out.println(String.format(Locale.US, "Throughput: %.0f lines/s, %.2f MB/s",
+                received / elapsedSeconds, bytes / elapsedSeconds / (1024 * 1024)));
+        if (allocated >= 0) {
+            System.out.println(String.format(Locale.US, "Allocated: %d bytes (%d per handled line)",
+                    allocated, handled > 0 ? allocated / handled : 0));
+        }
+        if (speed > 0) {
+            System.out.println("Max lag behind the recorded pace: " + maxLagMillis + " ms");
+        }
+        System.out.println("Time per handled line (us): " + dispatchTime);
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 1) {
+            System.err.println("Usage: SessionReplay <capture file> [speed]");
+            System.exit(1);
+        }
+
+        List<CapturedLine> lines;
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(args[0]), Charsets.UTF_8));
+        try {
+            lines = read(reader);
+        } finally {
+            reader.close();
+        }
+
+        double speed = args.length > 1 ? Double.parseDouble(args[1]) : 0;
+        new SessionReplay().replay(lines, speed);
+    }
+}
@@ -0,0 +1,204 @@
+package uk.org.ngo.squeezer.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import uk.org.ngo.squeezer.protocol.Metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ArtworkSchedulerTest {
+
+    private static final long TIMEOUT_SECONDS = 5;
+
+    /** Names of the jobs that ran, in the order they ran. */
+    private final List<String> ran = Collections.synchronizedList(new ArrayList<String>());
+
+    /** Names of the threads the jobs ran on. */
+    private final List<String> threads = Collections.synchronizedList(new ArrayList<String>());
+
+    private final List<String> discarded = Collections.synchronizedList(new ArrayList<String>());
+
+    /** Counted down by every job that runs or is discarded. */
+    private CountDownLatch finished;
+
+    /** Holds up the jobs that block an executor. */
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    private ArtworkScheduler scheduler;
+
+    private class TestJob implements ArtworkScheduler.Job, Runnable {
+        final String name;
+
+        final boolean wanted;
+
+        TestJob(String name, boolean wanted) {
+            this.name = name;
+            this.wanted = wanted;
+        }
+
+        @Override
+        public boolean isWanted() {
+            return wanted;
+        }
+
+        @Override
+        public void discard() {
+            discarded.add(name);
+            finished.countDown();
+        }
+
+        @Override
+        public void run() {
+            ran.add(name);
+            threads.add(Thread.currentThread().getName());
+            finished.countDown();
+        }
+    }
+
+    @Before
+    public void setUp() {
+        scheduler = new ArtworkScheduler(1);
+    }
+
+    @After
+    public void tearDown() {
+        release.countDown();
+    }
+
+    /**
+     * Occupy the thread that runs jobs of the priority until {@link #release} is counted down, so
+     * the jobs scheduled after this queue up.
+     */
+    private void block(int priority) throws InterruptedException {
+        final CountDownLatch started = new CountDownLatch(1);
+        scheduler.forJob(new TestJob("blocker", true), priority).execute(new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        assertTrue(started.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    private ArtworkScheduler.ScheduledExecutor schedule(String name, int priority) {
+        return schedule(name, priority, true);
+    }
+
+    private ArtworkScheduler.ScheduledExecutor schedule(String name, int priority,
+            boolean wanted) {
+        TestJob job = new TestJob(name, wanted);
+        ArtworkScheduler.ScheduledExecutor executor = scheduler.forJob(job, priority);
+        executor.execute(job);
+        return executor;
+    }
+
+    private void awaitFinished() throws InterruptedException {
+        assertTrue(finished.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testPriorityThenMostRecentFirst() throws InterruptedException {
+        finished = new CountDownLatch(4);
+        block(ArtworkScheduler.PRIORITY_PREFETCH);
+
+        schedule("next1", ArtworkScheduler.PRIORITY_NEXT_TRACK);
+        schedule("prefetch1", ArtworkScheduler.PRIORITY_PREFETCH);
+        schedule("next2", ArtworkScheduler.PRIORITY_NEXT_TRACK);
+        schedule("prefetch2", ArtworkScheduler.PRIORITY_PREFETCH);
+        release.countDown();
+
+        awaitFinished();
+        assertEquals(Arrays.asList("prefetch2", "prefetch1", "next2", "next1"), ran);
+    }
+
+    @Test
+    public void testRescheduleMovesToFront() throws InterruptedException {
+        finished = new CountDownLatch(3);
+        block(ArtworkScheduler.PRIORITY_VISIBLE);
+
+        ArtworkScheduler.ScheduledExecutor first = schedule("first",
+                ArtworkScheduler.PRIORITY_VISIBLE);
+        schedule("second", ArtworkScheduler.PRIORITY_VISIBLE);
+        schedule("third", ArtworkScheduler.PRIORITY_VISIBLE);
+        first.reschedule(ArtworkScheduler.PRIORITY_VISIBLE);
+        release.countDown();
+
+        awaitFinished();
+        assertEquals(Arrays.asList("first", "third", "second"), ran);
+    }
+
+    /** A prefetch mustn't move a visible job, e.g. ahead of newer visible jobs. */
+    @Test
+    public void testRescheduleNeverLowers() throws InterruptedException {
+        finished = new CountDownLatch(2);
+        block(ArtworkScheduler.PRIORITY_VISIBLE);
+
+        ArtworkScheduler.ScheduledExecutor first = schedule("first",
+                ArtworkScheduler.PRIORITY_VISIBLE);
+        schedule("second", ArtworkScheduler.PRIORITY_VISIBLE);
+        first.reschedule(ArtworkScheduler.PRIORITY_PREFETCH);
+        release.countDown();
+
+        awaitFinished();
+        assertEquals(Arrays.asList("second", "first"), ran);
+        // It also stayed on the visible threads.
+        assertTrue(threads.get(1).startsWith("Artwork #"));
+    }
+
+    /** A prefetch that becomes visible doesn't wait for the prefetch thread. */
+    @Test
+    public void testRescheduleMovesPrefetchToVisibleThreads() throws InterruptedException {
+        finished = new CountDownLatch(1);
+        block(ArtworkScheduler.PRIORITY_PREFETCH);
+
+        ArtworkScheduler.ScheduledExecutor prefetch = schedule("prefetch",
+                ArtworkScheduler.PRIORITY_PREFETCH);
+        prefetch.reschedule(ArtworkScheduler.PRIORITY_VISIBLE);
+
+        // The prefetch thread is still blocked.
+        awaitFinished();
+        assertEquals(Arrays.asList("prefetch"), ran);
+        assertTrue(threads.get(0).startsWith("Artwork #"));
+    }
+
+    @Test
+    public void testUnwantedJobsAreDiscarded() throws InterruptedException {
+        Metrics.Counter tasksDiscarded = Metrics.counter("artwork.tasks_discarded");
+        long discardedBefore = tasksDiscarded.get();
+        finished = new CountDownLatch(3);
+        block(ArtworkScheduler.PRIORITY_VISIBLE);
+
+        schedule("wanted1", ArtworkScheduler.PRIORITY_VISIBLE);
+        schedule("unwanted", ArtworkScheduler.PRIORITY_VISIBLE, false);
+        schedule("wanted2", ArtworkScheduler.PRIORITY_VISIBLE);
+        release.countDown();
+
+        awaitFinished();
+        assertEquals(Arrays.asList("wanted2", "wanted1"), ran);
+        assertEquals(Arrays.asList("unwanted"), discarded);
+        assertEquals(discardedBefore + 1, tasksDiscarded.get());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testExecutorIsUsedOnce() {
+        finished = new CountDownLatch(1);
+        ArtworkScheduler.ScheduledExecutor executor = schedule("job",
+                ArtworkScheduler.PRIORITY_VISIBLE);
+        executor.execute(new TestJob("again", true));
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2014 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.protocol;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds the handler for a line received from the server.
+ * <p/>
+ * Handlers are registered by command in one of the {@link HandlerList}s, and the lists are
+ * searched in this order:
+ * <ol>
+ * <li>{@link HandlerList#GLOBAL}, with the command in the first token;</li>
+ * <li>{@link HandlerList#PREFIXED}, with the command in the second token;</li>
+ * <li>{@link HandlerList#GLOBAL_PLAYER_SPECIFIC}, with the command in the second token;</li>
+ * </ol>
+ * and, if the first token is the ID of the active player:
+ * <ol>
+ * <li>{@link HandlerList#PLAYER_SPECIFIC}, with the command in the second token;</li>
+ * <li>{@link HandlerList#PREFIXED_PLAYER_SPECIFIC}, with the command in the third token.</li>
+ * </ol>
+ * Handlers must be registered before the dispatcher is used to find them.
+ *
+ * @param <H> The type of the handlers.
+ */
+public class CommandDispatcher<H> {
+
+    /**
+     * A registered handler.
+     */
+    public static class Entry<H> {
+        public final HandlerList handlerList;
+
+        /** The command the handler is registered for. */
+        public final String command;
+
+        public final H handler;
+
+        Entry(HandlerList handlerList, String command, H handler) {
+            this.handlerList = handlerList;
+            this.command = command;
+            this.handler = handler;
+        }
+    }
+
+    private final Map<HandlerList, Map<String, Entry<H>>> handlers
+            = new EnumMap<HandlerList, Map<String, Entry<H>>>(HandlerList.class);
+
+    public CommandDispatcher() {
+        for (HandlerList handlerList : HandlerList.values()) {
+            handlers.put(handlerList, new HashMap<String, Entry<H>>());
+        }
+    }
+
+    /**
+     * Register a handler, replacing any handler already registered for the command in the list.
+     */
+    public void put(HandlerList handlerList, String command, H handler) {
+        handlers.get(handlerList).put(command, new Entry<H>(handlerList, command, handler));
+    }
+
+    /**
+     * Register all the handlers in a map of commands to handlers.
+     */
+    public void putAll(HandlerList handlerList, Map<String, ? extends H> commandHandlers) {
+        for (Map.Entry<String, ? extends H> entry : commandHandlers.entrySet()) {
+            put(handlerList, entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * @param tokens The tokens of a line received from the server, at least two.
+     * @param activePlayerId The ID of the active player, or null if there isn't one.
+     * @return The handler for the line, or null if no handler is registered for it.
+     */
+    public Entry<H> find(List<String> tokens, String activePlayerId) {
+        Entry<H> entry;
+        if ((entry = handlers.get(HandlerList.GLOBAL).get(tokens.get(0))) != null) {
+            return entry;
+        }
+        if ((entry = handlers.get(HandlerList.PREFIXED).get(tokens.get(1))) != null) {
+            return entry;
+        }
+        if ((entry = handlers.get(HandlerList.GLOBAL_PLAYER_SPECIFIC).get(tokens.get(1))) != null) {
+            return entry;
+        }
+
+        // Player-specific commands for our active player.
+        if (Tokens.decode(tokens.get(0)).equals(activePlayerId)) {
+            if ((entry = handlers.get(HandlerList.PLAYER_SPECIFIC).get(tokens.get(1))) != null) {
+                return entry;
+            }
+            if (tokens.size() > 2) {
+                return handlers.get(HandlerList.PREFIXED_PLAYER_SPECIFIC).get(tokens.get(2));
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (c) 2014 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.protocol;
+
+/**
+ * Where the command is found in the lines received from the server, which determines how a
+ * {@link CommandDispatcher} finds the handler for a line.
+ */
+public enum HandlerList {
+    /** <code>&lt;command> ...</code> */
+    GLOBAL(false, false),
+
+    /** <code>&lt;prefix> &lt;command> ...</code> */
+    PREFIXED(false, true),
+
+    /** <code>&lt;playerid> &lt;command> ...</code>, only for the active player. */
+    PLAYER_SPECIFIC(true, false),
+
+    /** <code>&lt;playerid> &lt;command> ...</code>, for any player. */
+    GLOBAL_PLAYER_SPECIFIC(true, false),
+
+    /** <code>&lt;playerid> &lt;prefix> &lt;command> ...</code>, only for the active player. */
+    PREFIXED_PLAYER_SPECIFIC(true, true);
+
+    /** True if lines start with a player ID. */
+    public final boolean playerSpecific;
+
+    /** True if there is a prefix (e.g. a plugin name) before the command. */
+    public final boolean prefixed;
+
+    HandlerList(boolean playerSpecific, boolean prefixed) {
+        this.playerSpecific = playerSpecific;
+        this.prefixed = prefixed;
+    }
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright (c) 2014 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.protocol;
+
+/**
+ * Sends lines to the server, supplied by the platform.
+ */
+public interface LineSender {
+
+    /**
+     * Send the lines to the server.
+     * <p/>
+     * May be called from any thread, including the thread that is handling a received line when
+     * the next page of a list is ordered.
+     *
+     * @param lines The lines to send, without line terminators.
+     */
+    void send(String... lines);
+}
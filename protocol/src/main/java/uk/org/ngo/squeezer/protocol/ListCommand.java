@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2014 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.protocol;
+
+import java.util.Set;
+
+/**
+ * Describes an extended query format command, whose replies are parsed by a
+ * {@link ListEngine}.
+ */
+public class ListCommand {
+
+    public final HandlerList handlerList;
+
+    public final String cmd;
+
+    /**
+     * Parameters that are sent again, unchanged, when the next page is ordered.
+     */
+    final Set<String> taggedParameters;
+
+    final ListParser[] parsers;
+
+    /** Number of tokens before the start index in a reply. */
+    final int offset;
+
+    public ListCommand(HandlerList handlerList, String cmd, Set<String> taggedParameters,
+            ListParser... parsers) {
+        this.handlerList = handlerList;
+        this.cmd = cmd;
+        this.taggedParameters = taggedParameters;
+        this.parsers = parsers;
+        offset = cmd.split(" ").length + (handlerList.playerSpecific ? 1 : 0)
+                + (handlerList.prefixed ? 1 : 0);
+    }
+
+    public ListCommand(String cmd, Set<String> taggedParameters, String itemDelimiter,
+            RecordSink sink) {
+        this(HandlerList.GLOBAL, cmd, taggedParameters, new ListParser(itemDelimiter, sink));
+    }
+
+    public ListCommand(String cmd, Set<String> taggedParameters, RecordSink sink) {
+        this(HandlerList.GLOBAL, cmd, taggedParameters, new ListParser(sink));
+    }
+
+    public String toString() {
+        return "{ cmd:'" + cmd + "', list:" + handlerList + ", player specific:"
+                + handlerList.playerSpecific + ", prefixed:" + handlerList.prefixed + " }";
+    }
+}
@@ -0,0 +1,374 @@
+/*
+ * Copyright (c) 2014 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.protocol;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Requests lists from the server in pages, and parses the replies.
+ * <p/>
+ * This is the control center for asynchronous and paging receiving of data from SqueezeServer.
+ * Each request is tagged with a correlation id, which is used to find the listener for the
+ * replies. When a page has been passed to the listener, the next page is ordered if necessary,
+ * repeating the current query parameters.
+ *
+ * @param <L> The type of the listeners, so the platform can find its own requests again, e.g.
+ * to cancel them.
+ */
+public class ListEngine<L extends PageListener> {
+
+    private static final Metrics.Counter PAGES_REQUESTED = Metrics.counter("cli.pages_requested");
+
+    private static final Metrics.Histogram REQUEST_LATENCY = Metrics.histogram("cli.request_latency_us");
+
+    private static final Metrics.Histogram CALLBACK_DISPATCH = Metrics.histogram("callback.items_received_us");
+
+    private final LineSender sender;
+
+    private final ProtocolLogger logger;
+
+    private volatile int pageSize;
+
+    // All requests are tagged with a correlation id, which can be used when
+    // asynchronous responses are received.
+    private final AtomicInteger correlationId = new AtomicInteger();
+
+    /**
+     * Keeps track of asynchronous request waiting for a reply
+     * <p>
+     * When a request is made, the listener is put this list, along with a
+     * unique correlation id.
+     * <p>
+     * When the reply comes the listener is called, and the request is removed from this list.
+     * <p>
+     * If a reply with no matching entry in this list comes in, it is discarded.
+     */
+    private final Map<Integer, L> pendingRequests = new ConcurrentHashMap<Integer, L>();
+
+    /** When the outstanding page for each pending request was ordered, from System.nanoTime(). */
+    private final Map<Integer, Long> pageRequestTimes = new ConcurrentHashMap<Integer, Long>();
+
+    /** Parsers for the requests that don't use the parsers of their command. */
+    private final Map<Integer, ListParser[]> requestParsers
+            = new ConcurrentHashMap<Integer, ListParser[]>();
+
+    /** How each pending request is paged. */
+    private final Map<Integer, Paging> requestPaging = new ConcurrentHashMap<Integer, Paging>();
+
+    /** How a request is paged. */
+    private static class Paging {
+        /** The number of items to order in each page. */
+        final int pageSize;
+
+        /** Position after the last item that was asked for, unused for full lists. */
+        final int end;
+
+        Paging(int pageSize, int end) {
+            this.pageSize = pageSize;
+            this.end = end;
+        }
+    }
+
+    public ListEngine(LineSender sender, ProtocolLogger logger) {
+        this.sender = sender;
+        this.logger = logger;
+    }
+
+    /**
+     * @param pageSize The number of items to order in each page.
+     */
+    public void setPageSize(int pageSize) {
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * @return The requests waiting for a reply, keyed by correlation id.
+     */
+    public Map<Integer, L> getPendingRequests() {
+        return Collections.unmodifiableMap(pendingRequests);
+    }
+
+    /**
+     * Forget about a request. Any further replies to it are discarded.
+     *
+     * @param correlationId The correlation id of the request.
+     */
+    public void cancel(int correlationId) {
+        pendingRequests.remove(correlationId);
+        pageRequestTimes.remove(correlationId);
+        requestParsers.remove(correlationId);
+        requestPaging.remove(correlationId);
+    }
+
+    /**
+     * Send an asynchronous request to the SqueezeboxServer for the specified items.
+     * <p/>
+     * Items are requested in pages of {@link #setPageSize(int)} items, and returned to the
+     * caller via the specified listener.
+     * <p/>
+     * If start is zero, this will order one item, to quickly learn the number of items
+     * from the server. When the server response with this item it is transferred to the
+     * caller. The remaining items in the first page are then ordered, and transferred
+     * to the caller when they arrive.
+     * <p/>
+     * If start is < 0, it means the caller wants the entire list. They are ordered in
+     * pages, and transferred to the caller as they arrive.
+     * <p/>
+     * Otherwise request a page of items starting from start, whether or not start is at a
+     * page boundary.
+     *
+     * @param playerId Id of the current player or null
+     * @param cmd Identifies the type of items
+     * @param start First item to return
+     * @param parameters Item specific parameters for the request
+     * @param listener Receives the pages.
+     * @return The correlation id of the request.
+     * @see #parse(ListCommand, List)
+     */
+    public int request(String playerId, String cmd, int start, List<String> parameters,
+            L listener) {
+        return request(playerId, cmd, start, parameters, null, listener);
+    }
+
+    /**
+     * As {@link #request(String, String, int, List, PageListener)}, but the replies are parsed
+     * by the given parsers instead of the parsers of the command.
+     * <p/>
+     * This allows a different view of the same list, e.g. just the first letter of each item,
+     * without building the items.
+     *
+     * @param parsers Parse the replies to this request, or null to use the parsers of the
+     * command.
+     */
+    public int request(String playerId, String cmd, int start, List<String> parameters,
+            ListParser[] parsers, L listener) {
+        return request(playerId, cmd, start, pageSize, parameters, parsers, listener);
+    }
+
+    /**
+     * As {@link #request(String, String, int, List, ListParser[], PageListener)}, but the
+     * request is paged in pages of the given size instead of {@link #setPageSize(int)}.
+     * <p/>
+     * Use a small page to order just a few items, or a large page to order a long list of small
+     * items in fewer round trips.
+     *
+     * @param pageSize The number of items to order in each page of this request.
+     */
+    public int request(String playerId, String cmd, int start, int pageSize,
+            List<String> parameters, ListParser[] parsers, L listener) {
+        boolean full_list = (start < 0);
+        int id = correlationId.getAndIncrement();
+
+        if (parsers != null) {
+            requestParsers.put(id, parsers);
+        }
+        requestPaging.put(id, new Paging(pageSize, full_list ? 0 : start + pageSize));
+        pendingRequests.put(id, listener);
+        pageRequestTimes.put(id, System.nanoTime());
+        PAGES_REQUESTED.increment();
+        final StringBuilder sb = new StringBuilder(
+                cmd + " " + (full_list ? 0 : start) + " " + (start == 0 ? 1 : pageSize));
+        if (playerId != null) {
+            sb.insert(0, Tokens.encode(playerId) + " ");
+        }
+        if (parameters != null) {
+            for (String parameter : parameters) {
+                sb.append(" ").append(Tokens.encode(parameter));
+            }
+        }
+        if (full_list)
+            sb.append(" full_list:1");
+        sb.append(" correlationid:");
+        sb.append(id);
+        sender.send(sb.toString());
+        return id;
+    }
+
+    /**
+     * Generic method to parse replies for queries in extended query format
+     * <p/>
+     * Passes each list in the reply to the listener of the request, via the parsers of the
+     * request or else the parsers of the command, and orders the next page if necessary.
+     *
+     * @param cmd Describes of the CLI command
+     * @param tokens List of tokens with value or key:value.
+     */
+    public void parse(ListCommand cmd, List<String> tokens) {
+        if (logger.isTraceEnabled()) {
+            logger.trace("Parsing list, cmd: " + cmd + ", tokens: " + tokens);
+        }
+
+        boolean playerSpecific = cmd.handlerList.playerSpecific;
+        boolean prefixed = cmd.handlerList.prefixed;
+        int ofs = cmd.offset;
+        int actionsCount = 0;
+        String playerid = (playerSpecific ? tokens.get(0) + " " : "");
+        String prefix = (prefixed ? tokens.get(playerSpecific ? 1 : 0) + " " : "");
+        int start = Tokens.parseDecimalIntOrZero(tokens.get(ofs));
+        int itemsPerResponse = Tokens.parseDecimalIntOrZero(tokens.get(ofs + 1));
+
+        int correlationId = 0;
+        boolean rescan = false;
+        boolean full_list = false;
+        Map<String, String> taggedParameters = new HashMap<String, String>();
+        Map<String, String> parameters = new HashMap<String, String>();
+        Set<String> countIdSet = new HashSet<String>();
+        Map<String, ListParser> itemDelimeterMap = new HashMap<String, ListParser>();
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        Map<String, String> record = null;
+
+        ListParser[] parsers = cmd.parsers;
+        if (!requestParsers.isEmpty()) {
+            ListParser[] overrides = requestParsers.get(findCorrelationId(tokens, ofs + 2));
+            if (overrides != null) {
+                parsers = overrides;
+            }
+        }
+
+        for (ListParser parser : parsers) {
+            parser.sink.clear();
+            countIdSet.add(parser.countId);
+            itemDelimeterMap.put(parser.itemDelimiter, parser);
+        }
+
+        ListParser parser = null;
+        for (int idx = ofs + 2; idx < tokens.size(); idx++) {
+            String token = tokens.get(idx);
+            int colonPos = token.indexOf("%3A");
+            if (colonPos == -1) {
+                logger.error("Expected colon in list token. '" + token + "'");
+                return;
+            }
+            String key = Tokens.decode(token.substring(0, colonPos));
+            String value = Tokens.decode(token.substring(colonPos + 3));
+            if (logger.isTraceEnabled()) {
+                logger.trace("key=" + key + ", value: " + value);
+            }
+
+            if (key.equals("rescan")) {
+                rescan = (Tokens.parseDecimalIntOrZero(value) == 1);
+            } else if (key.equals("full_list")) {
+                full_list = (Tokens.parseDecimalIntOrZero(value) == 1);
+                taggedParameters.put(key, token);
+            } else if (key.equals("correlationid")) {
+                correlationId = Tokens.parseDecimalIntOrZero(value);
+                taggedParameters.put(key, token);
+            } else if (key.equals("actions")) {
+                // Apparently squeezer returns some commands which are
+                // included in the count of the current request
+                actionsCount++;
+            }
+            if (countIdSet.contains(key)) {
+                counts.put(key, Tokens.parseDecimalIntOrZero(value));
+            } else {
+                if (itemDelimeterMap.get(key) != null) {
+                    if (record != null) {
+                        parser.sink.add(record);
+                        if (logger.isTraceEnabled()) {
+                            logger.trace("record=" + record);
+                        }
+                    }
+                    parser = itemDelimeterMap.get(key);
+                    record = new HashMap<String, String>();
+                }
+                if (record != null) {
+                    record.put(key, value);
+                } else if (cmd.taggedParameters.contains(key)) {
+                    taggedParameters.put(key, token);
+                } else {
+                    parameters.put(key, value);
+                }
+            }
+        }
+
+        if (record != null) {
+            parser.sink.add(record);
+            if (logger.isTraceEnabled()) {
+                logger.trace("record=" + record);
+            }
+        }
+
+        // Process the lists for all the registered parsers
+        int end = start + itemsPerResponse;
+        int max = 0;
+        L listener = pendingRequests.get(correlationId);
+        Long pageRequestTime = pageRequestTimes.get(correlationId);
+        if (listener != null && pageRequestTime != null) {
+            REQUEST_LATENCY.record(Metrics.elapsedMicros(pageRequestTime));
+        }
+        for (ListParser listParser : parsers) {
+            Integer count = counts.get(listParser.countId);
+            int countValue = (count == null ? 0 : count);
+            if (count != null || start == 0) {
+                if (listener != null) {
+                    long dispatchStart = System.nanoTime();
+                    listener.onPage(listParser, countValue - actionsCount, start, parameters);
+                    CALLBACK_DISPATCH.record(Metrics.elapsedMicros(dispatchStart));
+                }
+                if (countValue > max) {
+                    max = countValue;
+                }
+            }
+        }
+
+        // If the client is still around check if we need to order more items,
+        // otherwise were done, so remove the listener
+        Paging paging = requestPaging.get(correlationId);
+        if (listener != null) {
+            int last = (paging == null ? 0 : full_list ? max : Math.min(paging.end, max));
+            if (end < last) {
+                int count = (full_list ? Math.min(paging.pageSize, last - end) : last - end);
+                StringBuilder cmdline = new StringBuilder();
+                cmdline.append(playerid);
+                cmdline.append(prefix);
+                cmdline.append(cmd.cmd);
+                cmdline.append(" ");
+                cmdline.append(end);
+                cmdline.append(" ");
+                cmdline.append(count);
+                for (String parameter : taggedParameters.values()) {
+                    cmdline.append(" ").append(parameter);
+                }
+                pageRequestTimes.put(correlationId, System.nanoTime());
+                PAGES_REQUESTED.increment();
+                sender.send(cmdline.toString());
+            } else {
+                cancel(correlationId);
+            }
+        }
+    }
+
+    /**
+     * @return The correlation id in the tokens from start onwards, 0 if there isn't one.
+     */
+    private static int findCorrelationId(List<String> tokens, int start) {
+        for (int idx = start; idx < tokens.size(); idx++) {
+            String token = tokens.get(idx);
+            if (token.startsWith("correlationid%3A")) {
+                return Tokens.parseDecimalIntOrZero(token.substring("correlationid%3A".length()));
+            }
+        }
+        return 0;
+    }
+}
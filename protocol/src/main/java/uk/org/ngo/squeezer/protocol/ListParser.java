@@ -0,0 +1,55 @@
+/*
+ * Copyright (c) 2014 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.protocol;
+
+/**
+ * Describes one of the lists in the reply to an extended query format command.
+ *
+ * @author kaa
+ */
+public class ListParser {
+
+    /** The label for the tag which contains the total number of results. */
+    public final String countId;
+
+    /** The tag that starts each item. */
+    public final String itemDelimiter;
+
+    /** Receives the parsed items. */
+    public final RecordSink sink;
+
+    /**
+     * @param countId The label for the tag which contains the total number of results, normally
+     * "count".
+     * @param itemDelimiter As defined for each extended query format command in the
+     * squeezeserver CLI documentation.
+     * @param sink Callback to receive the parsed data.
+     */
+    public ListParser(String countId, String itemDelimiter, RecordSink sink) {
+        this.countId = countId;
+        this.itemDelimiter = itemDelimiter;
+        this.sink = sink;
+    }
+
+    public ListParser(String itemDelimiter, RecordSink sink) {
+        this("count", itemDelimiter, sink);
+    }
+
+    public ListParser(RecordSink sink) {
+        this("id", sink);
+    }
+}
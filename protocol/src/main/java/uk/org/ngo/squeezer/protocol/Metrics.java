@@ -0,0 +1,225 @@
+/*
+ * Copyright (c) 2014 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.protocol;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Process wide registry of performance counters and histograms.
+ * <p/>
+ * Recording a value is a couple of atomic operations with no allocation, so the metrics are
+ * always on, including in production builds. Look up a metric once and keep the reference where
+ * it is recorded on a hot path.
+ * <p/>
+ * Metric names are dotted, with the area first, e.g. <code>cli.lines_received</code>. Durations
+ * are recorded in microseconds, and the name ends with <code>_us</code>.
+ */
+public final class Metrics {
+
+    private Metrics() {
+    }
+
+    private static final ConcurrentMap<String, Counter> counters
+            = new ConcurrentHashMap<String, Counter>();
+
+    private static final ConcurrentMap<String, Histogram> histograms
+            = new ConcurrentHashMap<String, Histogram>();
+
+    /**
+     * @return The counter with the given name, created if necessary.
+     */
+    public static Counter counter(String name) {
+        Counter counter = counters.get(name);
+        if (counter == null) {
+            Counter newCounter = new Counter();
+            counter = counters.putIfAbsent(name, newCounter);
+            if (counter == null) {
+                counter = newCounter;
+            }
+        }
+        return counter;
+    }
+
+    /**
+     * @return The histogram with the given name, created if necessary.
+     */
+    public static Histogram histogram(String name) {
+        Histogram histogram = histograms.get(name);
+        if (histogram == null) {
+            Histogram newHistogram = new Histogram();
+            histogram = histograms.putIfAbsent(name, newHistogram);
+            if (histogram == null) {
+                histogram = newHistogram;
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * @return The elapsed time since <code>startNanos</code> (from {@link System#nanoTime()}), in
+     *     microseconds.
+     */
+    public static long elapsedMicros(long startNanos) {
+        return (System.nanoTime() - startNanos) / 1000;
+    }
+
+    /**
+     * @return A snapshot of all the metrics, one per line, sorted by name.
+     */
+    public static List<String> snapshot() {
+        List<String> lines = new ArrayList<String>();
+        for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+            lines.add(entry.getKey() + ": " + entry.getValue());
+        }
+        for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+            lines.add(entry.getKey() + ": " + entry.getValue());
+        }
+        Collections.sort(lines);
+        return lines;
+    }
+
+    /**
+     * Reset all the metrics to zero.
+     */
+    public static void reset() {
+        for (Counter counter : counters.values()) {
+            counter.reset();
+        }
+        for (Histogram histogram : histograms.values()) {
+            histogram.reset();
+        }
+    }
+
+    /**
+     * A monotonically increasing count.
+     */
+    public static final class Counter {
+        private final AtomicLong value = new AtomicLong();
+
+        private Counter() {
+        }
+
+        public void increment() {
+            value.incrementAndGet();
+        }
+
+        public void add(long delta) {
+            value.addAndGet(delta);
+        }
+
+        public long get() {
+            return value.get();
+        }
+
+        private void reset() {
+            value.set(0);
+        }
+
+        @Override
+        public String toString() {
+            return String.valueOf(value.get());
+        }
+    }
+
+    /**
+     * Distribution of non-negative values, in power of two buckets. Percentiles are reported as
+     * the upper bound of the bucket they fall in, so they are accurate to within a factor of two.
+     */
+    public static final class Histogram {
+        private static final int BUCKETS = 64;
+
+        /** Bucket <i>n</i> counts values in [2<sup>n-1</sup>, 2<sup>n</sup>). */
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+        private final AtomicLong count = new AtomicLong();
+
+        private final AtomicLong sum = new AtomicLong();
+
+        private final AtomicLong max = new AtomicLong();
+
+        private Histogram() {
+        }
+
+        public void record(long value) {
+            if (value < 0) {
+                value = 0;
+            }
+            buckets.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(value));
+            count.incrementAndGet();
+            sum.addAndGet(value);
+
+            long current;
+            while (value > (current = max.get())) {
+                if (max.compareAndSet(current, value)) {
+                    break;
+                }
+            }
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        /**
+         * @param percentile Between 0 and 100.
+         *
+         * @return Upper bound of the bucket that holds the given percentile.
+         */
+        public long getPercentile(double percentile) {
+            long total = count.get();
+            if (total == 0) {
+                return 0;
+            }
+            long threshold = (long) Math.ceil(total * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets.get(i);
+                if (seen >= threshold) {
+                    return i == 0 ? 0 : Math.min(max.get(), (1L << i) - 1);
+                }
+            }
+            return max.get();
+        }
+
+        private void reset() {
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets.set(i, 0);
+            }
+            count.set(0);
+            sum.set(0);
+            max.set(0);
+        }
+
+        @Override
+        public String toString() {
+            long total = count.get();
+            return "count=" + total
+                    + ", mean=" + (total > 0 ? sum.get() / total : 0)
+                    + ", p50=" + getPercentile(50)
+                    + ", p90=" + getPercentile(90)
+                    + ", p99=" + getPercentile(99)
+                    + ", max=" + max.get();
+        }
+    }
+}
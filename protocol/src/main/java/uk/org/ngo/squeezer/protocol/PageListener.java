@@ -0,0 +1,39 @@
+/*
+ * Copyright (c) 2014 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.protocol;
+
+import java.util.Map;
+
+/**
+ * Receives the pages of a list requested with
+ * {@link ListEngine#request(String, String, int, java.util.List, PageListener)}.
+ */
+public interface PageListener {
+
+    /**
+     * Called for each list in each page of the reply.
+     * <p/>
+     * The items are in the parser's {@link ListParser#sink}, and are only valid for the duration
+     * of the call.
+     *
+     * @param parser The list the items are for.
+     * @param count The total number of items in the list.
+     * @param start The index of the first item in this page.
+     * @param parameters Parameters in the reply that aren't part of an item.
+     */
+    void onPage(ListParser parser, int count, int start, Map<String, String> parameters);
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2014 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.protocol;
+
+/**
+ * Logging for the protocol engine, supplied by the platform.
+ */
+public interface ProtocolLogger {
+
+    /**
+     * @return True if {@link #trace(String)} messages should be built. Checked before building
+     * a trace message, so tracing costs nothing when it is off.
+     */
+    boolean isTraceEnabled();
+
+    /**
+     * Log a verbose message about the protocol traffic.
+     */
+    void trace(String message);
+
+    void error(String message);
+
+    /**
+     * Doesn't log anything.
+     */
+    ProtocolLogger NONE = new ProtocolLogger() {
+        @Override
+        public boolean isTraceEnabled() {
+            return false;
+        }
+
+        @Override
+        public void trace(String message) {
+        }
+
+        @Override
+        public void error(String message) {
+        }
+    };
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright (c) 2014 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.protocol;
+
+import java.util.Map;
+
+/**
+ * Receives the records parsed from a reply to an extended query format command.
+ */
+public interface RecordSink {
+
+    /**
+     * Prepare for parsing an extended query format response
+     */
+    void clear();
+
+    /**
+     * Called for each item received in the current reply. Just store this internally.
+     *
+     * @param record Item data from Squeezebox Server
+     */
+    void add(Map<String, String> record);
+}
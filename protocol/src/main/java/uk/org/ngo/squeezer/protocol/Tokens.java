@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2014 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.protocol;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splitting, encoding and decoding of the tokens in CLI lines.
+ * <p/>
+ * The CLI separates tokens with single spaces, and URL encodes each token, so a space inside a
+ * token is sent as <code>%20</code>.
+ */
+public final class Tokens {
+
+    private Tokens() {
+    }
+
+    /**
+     * Split a line in to its tokens.
+     * <p/>
+     * Gives the same result as <code>line.split(" ")</code>, including dropping trailing empty
+     * tokens, without going through the regular expression machinery.
+     */
+    public static List<String> split(String line) {
+        List<String> tokens = new ArrayList<String>();
+        int space = line.indexOf(' ');
+        if (space == -1) {
+            tokens.add(line);
+            return tokens;
+        }
+
+        int start = 0;
+        for (; space != -1; space = line.indexOf(' ', start)) {
+            tokens.add(line.substring(start, space));
+            start = space + 1;
+        }
+        tokens.add(line.substring(start));
+
+        int size = tokens.size();
+        while (size > 0 && tokens.get(size - 1).length() == 0) {
+            tokens.remove(--size);
+        }
+        return tokens;
+    }
+
+    public static String encode(String string) {
+        try {
+            return URLEncoder.encode(string, "UTF-8").replace("+", "%20");
+        } catch (UnsupportedEncodingException e) {
+            return "";
+        }
+    }
+
+    public static String decode(String string) {
+        try {
+            return URLDecoder.decode(string, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            return "";
+        }
+    }
+
+    /**
+     * Parse an integer that the server may have sent with a fractional part.
+     *
+     * @param value The value to parse, may be null.
+     * @param defaultValue Returned if the value is null, empty or not a number.
+     * @return The integer part of the value.
+     */
+    public static int parseDecimalInt(String value, int defaultValue) {
+        if (value == null) {
+            return defaultValue;
+        }
+        int decimalPoint = value.indexOf('.');
+        if (decimalPoint != -1) {
+            value = value.substring(0, decimalPoint);
+        }
+        if (value.length() == 0) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    public static int parseDecimalIntOrZero(String value) {
+        return parseDecimalInt(value, 0);
+    }
+}
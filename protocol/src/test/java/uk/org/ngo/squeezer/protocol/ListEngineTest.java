@@ -0,0 +1,223 @@
+package uk.org.ngo.squeezer.protocol;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ListEngineTest {
+
+    /** Records the lines that are sent. */
+    private static class RecordingSender implements LineSender {
+        final List<String> lines = new ArrayList<String>();
+
+        @Override
+        public void send(String... lines) {
+            this.lines.addAll(Arrays.asList(lines));
+        }
+    }
+
+    /** Records the IDs of the items it's given. */
+    private static class IdSink implements RecordSink {
+        final List<String> ids = new ArrayList<String>();
+
+        @Override
+        public void clear() {
+            ids.clear();
+        }
+
+        @Override
+        public void add(Map<String, String> record) {
+            ids.add(record.get("id"));
+        }
+    }
+
+    /** Records the pages it receives. */
+    private static class RecordingListener implements PageListener {
+        final List<String> pages = new ArrayList<String>();
+
+        @Override
+        public void onPage(ListParser parser, int count, int start, Map<String, String> parameters) {
+            pages.add(count + " " + start + " " + ((IdSink) parser.sink).ids);
+        }
+    }
+
+    private RecordingSender sender;
+
+    private IdSink sink;
+
+    private ListCommand songs;
+
+    private ListEngine<RecordingListener> engine;
+
+    @Before
+    public void setUp() {
+        sender = new RecordingSender();
+        sink = new IdSink();
+        songs = new ListCommand("songs", new HashSet<String>(Arrays.asList("tags")), sink);
+        engine = new ListEngine<RecordingListener>(sender, ProtocolLogger.NONE);
+        engine.setPageSize(20);
+    }
+
+    @Test
+    public void testRequestFirstItem() {
+        int id = engine.request(null, "songs", 0, Arrays.asList("tags:a"), new RecordingListener());
+
+        assertEquals(Collections.singletonList("songs 0 1 tags%3Aa correlationid:" + id),
+                sender.lines);
+    }
+
+    @Test
+    public void testRequestForPlayer() {
+        int id = engine.request("00:04:20:12:34:56", "status", 5, null, new RecordingListener());
+
+        assertEquals(Collections.singletonList(
+                "00%3A04%3A20%3A12%3A34%3A56 status 5 20 correlationid:" + id), sender.lines);
+    }
+
+    @Test
+    public void testPaging() {
+        RecordingListener listener = new RecordingListener();
+        int id = engine.request(null, "songs", 0, null, listener);
+        sender.lines.clear();
+
+        // The first item, which orders the rest of the first page.
+        engine.parse(songs, Tokens.split("songs 0 1 tags%3Aa correlationid%3A" + id
+                + " id%3A1 title%3AOne count%3A25"));
+        assertEquals(Collections.singletonList("25 0 [1]"), listener.pages);
+        assertEquals(1, sender.lines.size());
+        assertTrue(sender.lines.get(0).startsWith("songs 1 19 "));
+        assertTrue(sender.lines.get(0).contains("tags%3Aa"));
+        assertTrue(sender.lines.get(0).contains("correlationid%3A" + id));
+
+        // The rest of the first page completes the request.
+        sender.lines.clear();
+        engine.parse(songs, Tokens.split("songs 1 19 tags%3Aa correlationid%3A" + id
+                + " id%3A2 title%3ATwo id%3A3 title%3AThree count%3A25"));
+        assertEquals(Arrays.asList("25 0 [1]", "25 1 [2, 3]"), listener.pages);
+        assertTrue(sender.lines.isEmpty());
+        assertTrue(engine.getPendingRequests().isEmpty());
+    }
+
+    @Test
+    public void testFullList() {
+        RecordingListener listener = new RecordingListener();
+        int id = engine.request(null, "songs", -1, null, listener);
+
+        engine.parse(songs, Tokens.split("songs 0 20 full_list%3A1 correlationid%3A" + id
+                + " id%3A1 count%3A45"));
+        assertEquals(2, sender.lines.size());
+        assertTrue(sender.lines.get(1).startsWith("songs 20 20 "));
+
+        engine.parse(songs, Tokens.split("songs 20 20 full_list%3A1 correlationid%3A" + id
+                + " id%3A21 count%3A45"));
+        assertEquals(3, sender.lines.size());
+        assertTrue(sender.lines.get(2).startsWith("songs 40 5 "));
+
+        engine.parse(songs, Tokens.split("songs 40 5 full_list%3A1 correlationid%3A" + id
+                + " id%3A41 count%3A45"));
+        assertEquals(3, sender.lines.size());
+        assertEquals(3, listener.pages.size());
+        assertTrue(engine.getPendingRequests().isEmpty());
+    }
+
+    @Test
+    public void testRequestPageSize() {
+        RecordingListener listener = new RecordingListener();
+        int id = engine.request(null, "songs", -1, 5000, null, null, listener);
+        assertTrue(sender.lines.get(0).startsWith("songs 0 5000 "));
+
+        engine.parse(songs, Tokens.split("songs 0 5000 full_list%3A1 correlationid%3A" + id
+                + " id%3A1 count%3A12000"));
+        assertTrue(sender.lines.get(1).startsWith("songs 5000 5000 "));
+
+        // Other requests keep the default page size.
+        engine.request(null, "songs", 20, null, new RecordingListener());
+        assertTrue(sender.lines.get(2).startsWith("songs 20 20 "));
+    }
+
+    @Test
+    public void testRequestUnalignedPage() {
+        RecordingListener listener = new RecordingListener();
+        int id = engine.request("00:04:20:12:34:56", "status", 6, 3, null, null, listener);
+        assertEquals(Collections.singletonList(
+                "00%3A04%3A20%3A12%3A34%3A56 status 6 3 correlationid:" + id), sender.lines);
+
+        // Only the items that were asked for are ordered, not the rest of a page.
+        engine.parse(songs, Tokens.split("songs 6 3 correlationid%3A" + id
+                + " id%3A7 id%3A8 id%3A9 count%3A25"));
+        assertEquals(Collections.singletonList("25 6 [7, 8, 9]"), listener.pages);
+        assertEquals(1, sender.lines.size());
+        assertTrue(engine.getPendingRequests().isEmpty());
+    }
+
+    @Test
+    public void testCancel() {
+        RecordingListener listener = new RecordingListener();
+        int id = engine.request(null, "songs", 0, null, listener);
+        engine.cancel(id);
+        sender.lines.clear();
+
+        engine.parse(songs, Tokens.split("songs 0 1 correlationid%3A" + id
+                + " id%3A1 count%3A25"));
+        assertTrue(listener.pages.isEmpty());
+        assertTrue(sender.lines.isEmpty());
+    }
+
+    @Test
+    public void testRequestParsers() {
+        IdSink titles = new IdSink() {
+            @Override
+            public void add(Map<String, String> record) {
+                ids.add(record.get("title"));
+            }
+        };
+        RecordingListener listener = new RecordingListener();
+        int id = engine.request(null, "songs", -1, null,
+                new ListParser[]{new ListParser("count", "id", titles)}, listener);
+        int other = engine.request(null, "songs", 0, null, new RecordingListener());
+
+        engine.parse(songs, Tokens.split("songs 0 20 full_list%3A1 correlationid%3A" + id
+                + " id%3A1 title%3AOne count%3A2"));
+        assertEquals(Collections.singletonList("2 0 [One]"), listener.pages);
+        assertTrue(sink.ids.isEmpty());
+
+        // Replies to other requests still use the parsers of the command.
+        engine.parse(songs, Tokens.split("songs 0 1 correlationid%3A" + other
+                + " id%3A3 title%3AThree count%3A2"));
+        assertEquals(Collections.singletonList("3"), sink.ids);
+
+        engine.cancel(id);
+        assertTrue(engine.getPendingRequests().keySet().equals(Collections.singleton(other)));
+    }
+
+    @Test
+    public void testMultipleLists() {
+        IdSink albums = new IdSink();
+        IdSink tracks = new IdSink();
+        ListCommand search = new ListCommand(HandlerList.GLOBAL, "search",
+                new HashSet<String>(Arrays.asList("term")),
+                new ListParser("albums_count", "album_id", albums),
+                new ListParser("tracks_count", "track_id", tracks));
+        final List<String> counts = new ArrayList<String>();
+        int id = engine.request(null, "search", 0, Arrays.asList("term:x"), new RecordingListener() {
+            @Override
+            public void onPage(ListParser parser, int count, int start,
+                    Map<String, String> parameters) {
+                counts.add(parser.countId + "=" + count);
+            }
+        });
+
+        engine.parse(search, Tokens.split("search 0 1 term%3Ax correlationid%3A" + id
+                + " albums_count%3A2 album_id%3A7 album%3AX tracks_count%3A3 track_id%3A9"));
+        assertEquals(Arrays.asList("albums_count=2", "tracks_count=3"), counts);
+    }
+}
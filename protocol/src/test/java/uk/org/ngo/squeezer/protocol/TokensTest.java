@@ -0,0 +1,34 @@
+package uk.org.ngo.squeezer.protocol;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+public class TokensTest {
+
+    @Test
+    public void testSplit() {
+        for (String line : new String[]{"", " ", "a", "a b", "a  b", " a b", "a b ", "a b  ",
+                "00%3A04%3A20 status - 1 tags%3Aa"}) {
+            assertEquals("'" + line + "'", Arrays.asList(line.split(" ")), Tokens.split(line));
+        }
+    }
+
+    @Test
+    public void testEncodeDecode() {
+        assertEquals("a%20b%3Ac", Tokens.encode("a b:c"));
+        assertEquals("a b:c", Tokens.decode("a%20b%3Ac"));
+        assertEquals("Caf\u00e9", Tokens.decode(Tokens.encode("Caf\u00e9")));
+    }
+
+    @Test
+    public void testParseDecimalInt() {
+        assertEquals(12, Tokens.parseDecimalInt("12.75", -1));
+        assertEquals(-1, Tokens.parseDecimalInt(null, -1));
+        assertEquals(-1, Tokens.parseDecimalInt(".5", -1));
+        assertEquals(-1, Tokens.parseDecimalInt("x", -1));
+        assertEquals(0, Tokens.parseDecimalIntOrZero("x"));
+    }
+}